@@ -1,8 +1,9 @@
 package com.kcl.extractor;
 
 import com.kcl.extractor.FileExtractor.FileType;
-import com.kcl.extractor.trapcache.DummyTrapCache;
+import com.kcl.extractor.trapcache.DefaultTrapCache;
 import com.kcl.extractor.trapcache.ITrapCache;
+import com.kcl.parser.KclAstParser;
 import com.kcl.parser.ParseError;
 import com.semmle.util.data.StringUtil;
 import com.semmle.util.diagnostic.DiagnosticLevel;
@@ -33,6 +34,8 @@ import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import static com.kcl.extractor.ExtractorOptionsUtil.readExtractorOption;
+
 /**
  * An alternative entry point to the JavaScript extractor.
  *
@@ -143,8 +146,56 @@ import java.util.stream.Stream;
  *   <li><code>LGTM_THREADS</code> determines how many threads are used for parallel extraction of
  *       JavaScript files (TypeScript files cannot currently be extracted in parallel). If left
  *       unspecified, the extractor uses a single thread.
- *   <li><code>LGTM_TRAP_CACHE</code> and <code>LGTM_TRAP_CACHE_BOUND</code> can be used to specify
- *       the location and size of a trap cache to be used during extraction.
+ *   <li><code>EXTRACTOR_KCL_OPTION_TRAP_CACHE_DIR</code> and <code>
+ *       EXTRACTOR_KCL_OPTION_TRAP_CACHE_BOUND</code> can be used to specify the location and size of
+ *       a trap cache to be used during extraction, which evicts its least recently used files once
+ *       it grows too large; <code>EXTRACTOR_KCL_OPTION_TRAP_CACHE_WRITE</code> can be set to <code>
+ *       false</code> to only read from it. The cache can be shared by concurrent extractor
+ *       processes; <code>EXTRACTOR_KCL_OPTION_TRAP_CACHE_LOCK_TIMEOUT</code> specifies how many
+ *       seconds to wait for another process populating the same entry before extracting it
+ *       without the cache. Setting <code>EXTRACTOR_KCL_OPTION_TRAP_CACHE_FORMAT</code> to <code>
+ *       segments</code> packs the cached files into a few large segment files rather than keeping
+ *       one file per entry. A cached file is only reused if the root and the contents of every file
+ *       of the program it belongs to are unchanged. Telling whether they are takes the parse cache
+ *       entry of the program if there is an up-to-date one; otherwise, the program is loaded and
+ *       resolved by kcl-lib and deserialized, so without a parse cache a hit only saves emitting
+ *       the TRAP output. Enable the parse cache (see below) for hits to skip the resolver as well.
+ *   <li><code>EXTRACTOR_KCL_OPTION_SHARED_IMPORTS</code> can be set to <code>false</code> to emit
+ *       imported packages into the TRAP file of every importing file instead of once per run, once
+ *       all files have been extracted.
+ *   <li><code>EXTRACTOR_KCL_OPTION_PARSE_CACHE_DIR</code> and <code>
+ *       EXTRACTOR_KCL_OPTION_PARSE_CACHE_BOUND</code> can be used to specify the location and size
+ *       of a cache of parse results, which survives changes to the extractor itself.
+ *   <li><code>EXTRACTOR_KCL_OPTION_TRAP_COMPRESSION_THREADS</code>, <code>
+ *       EXTRACTOR_KCL_OPTION_TRAP_COMPRESSION_LEVEL</code> and <code>
+ *       EXTRACTOR_KCL_OPTION_TRAP_COMPRESSION_BLOCK</code> can be used to specify the number of
+ *       threads compressing TRAP files (0 to compress on the extracting threads), the gzip
+ *       compression level and the number of kilobytes compressed per gzip member.
+ *   <li><code>EXTRACTOR_KCL_OPTION_IO_QUEUE</code>, <code>EXTRACTOR_KCL_OPTION_IO_THREADS</code>,
+ *       <code>EXTRACTOR_KCL_OPTION_IO_BUFFER</code> and <code>EXTRACTOR_KCL_OPTION_IO_FSYNC</code>
+ *       can be used to specify how many writes may wait for each background I/O thread (0 to
+ *       write on the extracting threads), the number of such threads, the number of megabytes
+ *       that may wait to be written, and whether TRAP files are forced to disk when closed
+ *       (<code>never</code> or <code>close</code>).
+ *   <li><code>EXTRACTOR_KCL_OPTION_TRAP_SHARD_SIZE</code> can be used to specify the size of TRAP
+ *       output (128 MB by default, 0 to disable) after which the remaining modules of a file are
+ *       emitted into further TRAP files, in the same units as the trap cache bound. The output of
+ *       files extracted while a trap cache is in use is never split up, since the cache keeps a
+ *       single TRAP file per file.
+ *   <li><code>EXTRACTOR_KCL_OPTION_MODULE_THREADS</code> and <code>
+ *       EXTRACTOR_KCL_OPTION_MODULE_CHUNK</code> can be used to specify the number of threads
+ *       emitting the modules of a single large file in parallel (0 to emit them on the extracting
+ *       thread), and the minimum number of AST nodes each of them is given. Each thread emits into
+ *       TRAP files of its own, so, like sharding, this does not apply while a trap cache is in use.
+ *   <li><code>EXTRACTOR_KCL_OPTION_DETERMINISTIC</code> can be set to <code>true</code> to make the
+ *       TRAP output byte-identical across runs and thread counts; extraction timings are then only
+ *       reported on standard error, if requested by <code>EXTRACTOR_KCL_OPTION_METRICS</code>.
+ *       Imported packages are emitted deterministically with or without this option: each of them
+ *       goes into a TRAP file keyed on its directory, once all files have been extracted, as it was
+ *       loaded by the importing program with the least root and package name.
+ *   <li><code>EXTRACTOR_KCL_OPTION_METRICS</code> can be set to <code>true</code> to report the
+ *       number of AST nodes extracted from each file, the bytes allocated doing so, and the size of
+ *       the resulting TRAP file.
  * </ul>
  */
 public class AutoBuild {
@@ -152,6 +203,10 @@ public class AutoBuild {
      * The default timeout when installing dependencies, in milliseconds.
      */
     public static final int INSTALL_DEPENDENCIES_DEFAULT_TIMEOUT = 10 * 60 * 1000; // 10 minutes
+    /**
+     * The default size of TRAP output after which the output of a file is split into shards.
+     */
+    public static final long DEFAULT_TRAP_SHARD_SIZE = 128L * 1024 * 1024;
     /**
      * Compares files in the order they should be extracted.
      * <p>
@@ -181,6 +236,7 @@ public class AutoBuild {
         }
     };
     private final ExtractorOutputConfig outputConfig;
+    private final ParallelGzipTrapWriterFactory trapWriterFactory;
     private final ITrapCache trapCache;
     private final Map<String, FileExtractor.FileType> fileTypes = new LinkedHashMap<>();
     private final Set<Path> includes = new LinkedHashSet<>();
@@ -211,15 +267,17 @@ public class AutoBuild {
     public AutoBuild() {
         this.projectPath = Path.of(System.getProperty("user.dir")).resolve("data");
         this.LGTM_SRC = toRealPath(projectPath.resolve("project"));
+        this.state = new ExtractorState();
         DefaultTrapWriterFactory defaultTrapWriterFactory = new DefaultTrapWriterFactory(projectPath.resolve("report").resolve("trap").toString());
+        this.trapWriterFactory = ParallelGzipTrapWriterFactory.fromExtractorOptions(defaultTrapWriterFactory, state.getWriteBehind());
         DefaultSourceArchive defaultSourceArchive = new DefaultSourceArchive(projectPath.resolve("report").resolve("source").toString());
-        this.outputConfig = new ExtractorOutputConfig(defaultTrapWriterFactory, defaultSourceArchive);
-        this.trapCache = new DummyTrapCache();
+        this.outputConfig = new ExtractorOutputConfig(trapWriterFactory, defaultSourceArchive);
+        this.trapCache = ITrapCache.fromExtractorOptions();
         this.defaultEncoding = "utf8";
         this.virtualSourceRoot = makeVirtualSourceRoot();
         this.fileTypes.put(".k", FileType.KCL);
         setupMatchers();
-        this.state = new ExtractorState();
+        this.state.getImportedPackages().setOutputConfig(outputConfig);
     }
 
     /**
@@ -380,6 +438,8 @@ public class AutoBuild {
         try {
             CompletableFuture<?> sourceFuture = extractSource();
             sourceFuture.join(); // wait for source extraction to complete
+            extractImportedPackages().join(); // then emit the packages the source imports
+            state.getWriteBehind().drain(); // and for its output to be written
         } catch (OutOfMemoryError oom) {
             System.err.println("Out of memory while extracting the project.");
             return 137; // the CodeQL CLI will interpret this as an out-of-memory error
@@ -391,6 +451,9 @@ public class AutoBuild {
             return 1;
         } finally {
             shutdownThreadPool();
+            trapWriterFactory.shutdown();
+            state.getModulePool().shutdown();
+            state.getWriteBehind().shutdown();
             diagnosticsToClose.forEach(DiagnosticWriter::close);
         }
 
@@ -509,12 +572,69 @@ public class AutoBuild {
                 .sorted(PATH_ORDERING)
                 .collect(Collectors.toCollection(LinkedHashSet::new));
 
+        // resolve each package once for all of its files
+        state.getPackages().register(filesToExtract);
+
         Set<Path> extractedFiles = new LinkedHashSet<>();
 
         // extract remaining files
         return extractFiles(filesToExtract, extractedFiles, extractors);
     }
 
+    /**
+     * Extract the packages offered by the extraction of the files that import them (cf. {@link
+     * ImportedPackages}), once all files have been extracted, so that the importer a package is
+     * emitted for does not depend on the order in which the files were extracted. Each package goes
+     * into a TRAP file of its own; the packages offered by the same importing program are extracted
+     * together, so that program is only loaded once, and different importers are extracted in
+     * parallel.
+     */
+    private CompletableFuture<?> extractImportedPackages() {
+        ExtractorConfig config = mkExtractorConfig();
+        Map<List<Path>, SortedMap<Path, ImportedPackages.Offer>> byImporter = new LinkedHashMap<>();
+        state.getImportedPackages().takeAll().forEach((directory, offer) ->
+                byImporter.computeIfAbsent(offer.inputs(), k -> new TreeMap<>()).put(directory, offer));
+        List<CompletableFuture<?>> futures = new ArrayList<>();
+        for (SortedMap<Path, ImportedPackages.Offer> offers : byImporter.values()) {
+            if (threadPool != null) {
+                futures.add(CompletableFuture.runAsync(() -> doExtractImportedPackages(config, offers), threadPool));
+            } else {
+                doExtractImportedPackages(config, offers);
+            }
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]));
+    }
+
+    /**
+     * Extract imported packages that were all offered by the same importing program.
+     */
+    private void doExtractImportedPackages(ExtractorConfig config, SortedMap<Path, ImportedPackages.Offer> offers) {
+        KclAstParser.ParseResult importer = null;
+        for (Map.Entry<Path, ImportedPackages.Offer> entry : offers.entrySet()) {
+            Path directory = entry.getKey();
+            ImportedPackages.Offer offer = entry.getValue();
+            try {
+                long start = logBeginProcess("Extracting imported package " + directory);
+                if (importer == null)
+                    importer = KclAstParser.parse(offer.inputs(), state.getApiPool(), state.getParseCache(), new ExtractionMetrics());
+                new KclExtractor(config, state).extractImportedPackage(directory, offer, importer);
+                logEndProcess(start, "Done extracting imported package " + directory);
+            } catch (OutOfMemoryError oom) {
+                System.err.println("Out of memory while extracting an imported package.");
+                System.exit(137); // caught by the CodeQL CLI
+            } catch (Exception e) {
+                // the files importing the package have been extracted regardless
+                System.err.println("Exception while extracting imported package " + directory + ".");
+                e.printStackTrace(System.err);
+                try {
+                    writeDiagnostics("Internal error: " + e, KCLDiagnosticKind.INTERNAL_ERROR);
+                } catch (IOException ignored) {
+                    Exceptions.ignore(ignored, "the package has not been extracted anyway");
+                }
+            }
+        }
+    }
+
     private CompletableFuture<?> extractFiles(
             Set<Path> filesToExtract,
             Set<Path> extractedFiles,
@@ -536,6 +656,11 @@ public class AutoBuild {
         config = config.withSourceType(getSourceType());
         config = config.withVirtualSourceRoot(virtualSourceRoot);
         if (defaultEncoding != null) config = config.withDefaultEncoding(defaultEncoding);
+        config = config.withSharedImports(!"false".equalsIgnoreCase(readExtractorOption("shared", "imports")));
+        String shardSize = readExtractorOption("trap", "shard", "size");
+        Long trapShardSize = shardSize == null ? DEFAULT_TRAP_SHARD_SIZE : DefaultTrapCache.asFileSize(shardSize);
+        if (trapShardSize == null) throw new UserError("Invalid TRAP shard size: " + shardSize);
+        config = config.withTrapShardSize(trapShardSize);
         return config;
     }
 
@@ -685,6 +810,8 @@ public class AutoBuild {
                 Exceptions.ignore(ignored, "we are already crashing");
             }
             System.exit(1);
+        } finally {
+            state.getPackages().release(file);
         }
     }
 
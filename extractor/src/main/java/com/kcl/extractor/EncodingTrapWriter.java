@@ -0,0 +1,181 @@
+package com.kcl.extractor;
+
+import com.semmle.util.exception.ResourceError;
+import com.semmle.util.files.FileUtil;
+import com.semmle.util.trap.TrapWriter;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.function.UnaryOperator;
+
+/**
+ * A trap writer whose tuples can also be written by a {@link TupleEncoder}, which encodes them
+ * straight into the underlying output rather than going through {@link #addTuple(String,
+ * Object...)}.
+ */
+public class EncodingTrapWriter extends TrapWriter {
+    private static final int OUTPUT_BUFFER = 64 * 1024;
+
+    /**
+     * The stage writing the output, or {@code null} if it is written by this trap writer.
+     */
+    private final WriteBehind writeBehind;
+
+    /**
+     * The file the output is written to.
+     */
+    private final File outputFile;
+
+    /**
+     * The key of the write-behind tasks of this trap writer, which is the trap file (or the file the
+     * output is teed to), so that they stay in order with other tasks concerning it.
+     */
+    private final File key;
+
+    /**
+     * The number of characters of tuples written so far, cf. {@link #getCharsWritten()}.
+     */
+    private long charsWritten;
+
+    public EncodingTrapWriter(File trapFile) {
+        super(trapFile);
+        this.writeBehind = null;
+        this.outputFile = null;
+        this.key = null;
+    }
+
+    public EncodingTrapWriter(File trapFile, boolean concurrent) {
+        super(trapFile, concurrent);
+        this.writeBehind = null;
+        this.outputFile = null;
+        this.key = null;
+    }
+
+    /**
+     * Creates a trap writer for a gzip-compressed trap file whose output is compressed by the stream
+     * {@code compressor} wraps around the file, rather than by this trap writer, and written by
+     * {@code writeBehind}.
+     */
+    public EncodingTrapWriter(File trapFile, UnaryOperator<OutputStream> compressor, WriteBehind writeBehind) {
+        this(trapFile, false, compressor, writeBehind, null);
+    }
+
+    /**
+     * Creates a trap writer like {@link #EncodingTrapWriter(File, UnaryOperator, WriteBehind)}, whose
+     * compressed output is also appended to {@code teeFile}, if it is not {@code null}; the output is
+     * then written by tasks keyed by {@code teeFile}.
+     */
+    public EncodingTrapWriter(File trapFile, boolean concurrent, UnaryOperator<OutputStream> compressor,
+            WriteBehind writeBehind, File teeFile) {
+        super(trapFile, concurrent);
+        // the output the trap writer has opened is finished as an (empty) gzip member of its own,
+        // and the members written by the compressor are appended to it
+        FileUtil.close(out);
+        this.outputFile = tmpFile != null ? tmpFile : trapFile;
+        this.key = teeFile != null ? teeFile : trapFile;
+        this.writeBehind = writeBehind.isSynchronous() ? null : writeBehind;
+        try {
+            OutputStream file = open(outputFile);
+            if (teeFile != null) file = new TeeOutputStream(file, open(teeFile));
+            out = new BufferedWriter(new OutputStreamWriter(compressor.apply(file), StandardCharsets.UTF_8), OUTPUT_BUFFER);
+        } catch (IOException e) {
+            throw new ResourceError("Could not open TRAP file " + outputFile, e);
+        }
+    }
+
+    private OutputStream open(File file) throws IOException {
+        return writeBehind != null ? writeBehind.open(key, file, true) : new FileOutputStream(file, true);
+    }
+
+    /**
+     * A stream writing everything to two streams.
+     */
+    private static class TeeOutputStream extends OutputStream {
+        private final OutputStream first, second;
+
+        TeeOutputStream(OutputStream first, OutputStream second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            first.write(b);
+            second.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            first.write(b, off, len);
+            second.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            first.flush();
+            second.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                first.close();
+            } finally {
+                second.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the writer the TRAP file is written to; tuples must be written to it whole, so that
+     * they stay in order with the label definitions written by this trap writer.
+     */
+    Writer output() {
+        return out;
+    }
+
+    void countChars(int chars) {
+        charsWritten += chars;
+    }
+
+    /**
+     * Write a tuple and count its characters, including those of the tuples a {@link TupleEncoder}
+     * cannot encode itself; their values are counted as they are before escaping.
+     */
+    @Override
+    public void addTuple(String tableName, Object... values) {
+        super.addTuple(tableName, values);
+        int chars = tableName.length() + 3;
+        for (Object value : values) chars += value instanceof String string ? string.length() + 3 : String.valueOf(value).length() + 1;
+        countChars(chars);
+    }
+
+    /**
+     * Returns the approximate size of the output so far, in uncompressed characters; tuples written
+     * by {@link TupleEncoder}s are counted exactly, others by {@link #addTuple(String, Object...)}.
+     */
+    public long getCharsWritten() {
+        return charsWritten;
+    }
+
+    /**
+     * Close this trap writer. If the output is written behind, the remaining output is compressed
+     * and handed to the write-behind stage right away, but the trap writer itself is closed (which
+     * may move the file into place) only once it has been written.
+     */
+    @Override
+    public void close() {
+        if (writeBehind == null) {
+            super.close();
+            return;
+        }
+        FileUtil.close(out);
+        writeBehind.submit(key, 0, () -> super.close());
+    }
+}
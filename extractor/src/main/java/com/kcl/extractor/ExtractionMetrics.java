@@ -8,10 +8,29 @@ import java.lang.management.ManagementFactory;
 import java.lang.management.ThreadMXBean;
 import java.util.Stack;
 
+import static com.kcl.extractor.ExtractorOptionsUtil.readExtractorOption;
+
 /**
- * Metrics for the (single-threaded) extraction of a single file.
+ * Metrics for the extraction of a single file.
+ *
+ * <p>Timings are measured on the thread extracting the file. The AST nodes and allocations of modules
+ * emitted on other threads (cf. {@link ModulePool}) are measured there and added to the phase that
+ * forked them once they have been joined.
  */
 public class ExtractionMetrics {
+    /**
+     * Whether to report the allocation metrics of every file on standard error; they are always
+     * collected, but only reported if the {@code metrics} extractor option is set to {@code true}.
+     */
+    private static final boolean REPORT = "true".equalsIgnoreCase(readExtractorOption("metrics"));
+    /**
+     * Whether metrics must be kept out of the TRAP output, so that it is deterministic.
+     */
+    private static final boolean DETERMINISTIC = ExtractorOptionsUtil.isDeterministic();
+    /**
+     * Whether the JVM can measure the number of bytes allocated by the current thread.
+     */
+    private static final boolean ALLOCATION = allocationSupported();
     /**
      * The cumulative CPU-time spent in each extraction phase so far.
      */
@@ -28,6 +47,19 @@ public class ExtractionMetrics {
      * The cumulative wallclock-time spent in each extraction phase so far.
      */
     private final long[] wallclockTimes = new long[ExtractionPhase.values().length];
+    /**
+     * The cumulative number of bytes allocated on the heap in each extraction phase so far, or {@code
+     * null} if the JVM cannot measure allocation.
+     */
+    private final long[] allocatedBytes = ALLOCATION ? new long[ExtractionPhase.values().length] : null;
+    /**
+     * The number of AST nodes that have been extracted.
+     */
+    private long nodeCount;
+    /**
+     * The previous time an allocation measure was performed.
+     */
+    private long previousAllocatedBytes;
     /**
      * The cache file, if any.
      */
@@ -60,9 +92,10 @@ public class ExtractionMetrics {
 
     /**
      * Writes the data metrics to a trap file. Note that this makes the resulting trap file content
-     * non-deterministic.
+     * non-deterministic, so nothing is written if the {@code deterministic} extractor option is set.
      */
     public void writeDataToTrap(TrapWriter trapwriter) {
+        if (DETERMINISTIC) return;
 //        trapwriter.addTuple(
 //                "extraction_data",
 //                fileLabel,
@@ -73,9 +106,11 @@ public class ExtractionMetrics {
 
     /**
      * Writes the timing metrics to a trap file. Note that this makes the resulting trap file content
-     * non-deterministic.
+     * non-deterministic, so nothing is written if the {@code deterministic} extractor option is set;
+     * {@link #reportTimings(String)} reports them on standard error instead.
      */
     public void writeTimingsToTrap(TrapWriter trapwriter) {
+        if (DETERMINISTIC) return;
         if (!stack.isEmpty()) {
             failTimings(
                     String.format(
@@ -90,6 +125,84 @@ public class ExtractionMetrics {
         }
     }
 
+    private static boolean allocationSupported() {
+        return ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean bean
+                && bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled();
+    }
+
+    /**
+     * Returns the number of bytes allocated on the heap by the current thread so far, or -1 if the
+     * JVM cannot measure allocation.
+     */
+    public static long currentThreadAllocatedBytes() {
+        if (!ALLOCATION) return -1;
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getCurrentThreadAllocatedBytes();
+    }
+
+    /**
+     * Record that {@code bytes} have been allocated on another thread on behalf of the given phase.
+     */
+    public void addAllocatedBytes(ExtractionPhase phase, long bytes) {
+        if (allocatedBytes != null && bytes > 0) allocatedBytes[phase.dbschemeId] += bytes;
+    }
+
+    /**
+     * Record that {@code count} AST nodes have been extracted.
+     */
+    public void addNodes(long count) {
+        this.nodeCount += count;
+    }
+
+    public long getNodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * Returns the number of bytes allocated on the heap during the given phase, or -1 if the JVM
+     * cannot measure allocation.
+     */
+    public long getAllocatedBytes(ExtractionPhase phase) {
+        return allocatedBytes == null ? -1 : allocatedBytes[phase.dbschemeId];
+    }
+
+    /**
+     * Writes the allocation metrics to standard error, provided they have been requested by the
+     * {@code metrics} extractor option.
+     */
+    public void reportAllocations(String file) {
+        if (!REPORT || allocatedBytes == null) return;
+        long bytes = getAllocatedBytes(ExtractionPhase.KclExtractor_extract);
+        System.err.printf("%s: %d nodes, %d bytes allocated during extraction (%d bytes per node)%n",
+                file, nodeCount, bytes, nodeCount == 0 ? 0 : bytes / nodeCount);
+    }
+
+    /**
+     * Writes the CPU-time and wallclock-time spent in each extraction phase of {@code file} to
+     * standard error, provided they have been requested by the {@code metrics} extractor option.
+     */
+    public void reportTimings(String file) {
+        if (!REPORT || timingsFailed) return;
+        StringBuilder sb = new StringBuilder(file).append(": extraction times (CPU/wallclock ms)");
+        for (ExtractionPhase phase : ExtractionPhase.values()) {
+            int i = phase.dbschemeId;
+            if (cpuTimes[i] == 0 && wallclockTimes[i] == 0) continue;
+            sb.append(' ').append(phase).append('=').append(cpuTimes[i] / 1_000_000).append('/')
+                    .append(wallclockTimes[i] / 1_000_000);
+        }
+        System.err.println(sb);
+    }
+
+    /**
+     * Writes the size of the TRAP file written for {@code file} and the wallclock-time its extraction
+     * took to standard error, provided they have been requested by the {@code metrics} extractor
+     * option.
+     */
+    public void reportTrapSize(String file, File trapFile) {
+        if (!REPORT || trapFile == null || !trapFile.exists()) return;
+        System.err.printf("%s: %d bytes of TRAP, written in %d ms%n", file, trapFile.length(),
+                wallclockTimes[ExtractionPhase.FileExtractor_extractContents.dbschemeId] / 1_000_000);
+    }
+
     private void failTimings(String msg) {
         System.err.println(msg);
         System.err.flush();
@@ -99,16 +212,20 @@ public class ExtractionMetrics {
     private void incrementCurrentTimer() {
         long nowWallclock = System.nanoTime();
         long nowCpu = thread.getCurrentThreadCpuTime();
+        long nowAllocated = allocatedBytes == null ? 0 : ((com.sun.management.ThreadMXBean) thread).getCurrentThreadAllocatedBytes();
 
         if (!stack.isEmpty()) {
             // increment by the time elapsed
             wallclockTimes[stack.peek().dbschemeId] += nowWallclock - previousWallclockTime;
             cpuTimes[stack.peek().dbschemeId] += nowCpu - previousCpuTime;
+            if (allocatedBytes != null)
+                allocatedBytes[stack.peek().dbschemeId] += nowAllocated - previousAllocatedBytes;
         }
 
         // update the running clock
         previousWallclockTime = nowWallclock;
         previousCpuTime = nowCpu;
+        previousAllocatedBytes = nowAllocated;
     }
 
     public void setCacheFile(File cacheFile) {
@@ -168,7 +285,8 @@ public class ExtractionMetrics {
         LexicalExtractor_extractLines(5),
         LexicalExtractor_extractTokens(6),
         TypeScriptASTConverter_convertAST(7),
-        TypeScriptParser_talkToParserWrapper(8);
+        TypeScriptParser_talkToParserWrapper(8),
+        KclAstParser_deserialize(9);
 
         /**
          * The id used in the database for the time spent performing this phase of the extraction.
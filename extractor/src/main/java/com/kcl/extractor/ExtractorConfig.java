@@ -53,6 +53,16 @@ public class ExtractorConfig {
      * The default character encoding to use for parsing source files.
      */
     private String defaultEncoding;
+    /**
+     * Should imported packages be emitted once per run into TRAP files of their own, rather than into
+     * the TRAP file of every file importing them?
+     */
+    private boolean sharedImports;
+    /**
+     * The number of characters of TRAP output after which the modules of a file are emitted into
+     * further TRAP files, or zero if the output of a file is never split up.
+     */
+    private long trapShardSize;
     private VirtualSourceRoot virtualSourceRoot;
 
     public ExtractorConfig(boolean experimental) {
@@ -68,6 +78,8 @@ public class ExtractorConfig {
         this.sourceType = that.sourceType;
         this.extractLines = that.extractLines;
         this.defaultEncoding = that.defaultEncoding;
+        this.sharedImports = that.sharedImports;
+        this.trapShardSize = that.trapShardSize;
         this.virtualSourceRoot = that.virtualSourceRoot;
     }
 
@@ -124,6 +136,26 @@ public class ExtractorConfig {
         return res;
     }
 
+    public boolean getSharedImports() {
+        return sharedImports;
+    }
+
+    public ExtractorConfig withSharedImports(boolean sharedImports) {
+        ExtractorConfig res = new ExtractorConfig(this);
+        res.sharedImports = sharedImports;
+        return res;
+    }
+
+    public long getTrapShardSize() {
+        return trapShardSize;
+    }
+
+    public ExtractorConfig withTrapShardSize(long trapShardSize) {
+        ExtractorConfig res = new ExtractorConfig(this);
+        res.trapShardSize = trapShardSize;
+        return res;
+    }
+
     public VirtualSourceRoot getVirtualSourceRoot() {
         return virtualSourceRoot;
     }
@@ -147,6 +179,10 @@ public class ExtractorConfig {
                 + extractLines
                 + ", defaultEncoding="
                 + defaultEncoding
+                + ", sharedImports="
+                + sharedImports
+                + ", trapShardSize="
+                + trapShardSize
                 + ", virtualSourceRoot="
                 + virtualSourceRoot
                 + "]";
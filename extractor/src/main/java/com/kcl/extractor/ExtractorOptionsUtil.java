@@ -9,4 +9,13 @@ public class ExtractorOptionsUtil {
             name.append("_").append(segment.toUpperCase());
         return Env.systemEnv().getNonEmpty(name.toString());
     }
+
+    /**
+     * Whether the {@code deterministic} option asks for TRAP output that is byte-identical across
+     * runs and thread counts. The output for imported packages does not depend on either in any case
+     * (cf. {@link ImportedPackages}).
+     */
+    public static boolean isDeterministic() {
+        return "true".equalsIgnoreCase(readExtractorOption("deterministic"));
+    }
 }
@@ -2,6 +2,9 @@ package com.kcl.extractor;
 
 //import com.semmle.ts.extractor.TypeScriptParser;
 
+import com.kcl.parser.ApiPool;
+import com.kcl.parser.ParseCache;
+
 import java.io.File;
 import java.nio.file.Path;
 import java.util.Optional;
@@ -17,13 +20,20 @@ import java.util.concurrent.ConcurrentMap;
  * <p>The {@link #reset()} method resets the semantic state while retaining shared resources when
  * possible.
  *
- * <p>Concretely, the shared resource is the Node.js process running the TypeScript compiler, which
- * is expensive to restart. The semantic state is the set of projects currently open in that
- * process, which affects the type information obtained during extraction of a file.
+ * <p>Concretely, the shared resources are the pool of kcl-lib API handles, each of which is expensive
+ * to set up, the on-disk cache of parse results, the stage writing extraction output in the
+ * background, and the pool on which the modules of large programs are emitted in parallel.
  */
 public class ExtractorState {
     private static final ConcurrentMap<File, Optional<String>> packageTypeCache = new ConcurrentHashMap<>();
     private final ConcurrentHashMap<Path, FileSnippet> snippets = new ConcurrentHashMap<>();
+    private final ApiPool apiPool = ApiPool.fromExtractorOptions();
+    private final ParseCache parseCache = ParseCache.fromExtractorOptions();
+    private final WriteBehind writeBehind = WriteBehind.fromExtractorOptions();
+    private final ModulePool modulePool = ModulePool.fromExtractorOptions();
+    private final KclPackages packages = new KclPackages();
+    private final ImportedPackages importedPackages = new ImportedPackages();
+    private final SchemaCatalogue schemaCatalogue = new SchemaCatalogue();
 
     /**
      * Returns the mapping that denotes where a snippet file originated from.
@@ -43,6 +53,70 @@ public class ExtractorState {
         return this.packageTypeCache;
     }
 
+    /**
+     * Returns the pool of kcl-lib API handles used for parsing.
+     *
+     * <p>The pool is thread-safe; each thread is served its own handle.
+     */
+    public ApiPool getApiPool() {
+        return this.apiPool;
+    }
+
+    /**
+     * Returns the cache of parse results, which is disabled unless the {@code parse.cache.dir}
+     * extractor option is set.
+     *
+     * <p>The cache is thread-safe.
+     */
+    public ParseCache getParseCache() {
+        return this.parseCache;
+    }
+
+    /**
+     * Returns the stage writing extraction output in the background.
+     *
+     * <p>The stage is thread-safe; tasks submitted with the same key are performed in order.
+     */
+    public WriteBehind getWriteBehind() {
+        return this.writeBehind;
+    }
+
+    /**
+     * Returns the pool on which the modules of large programs are emitted in parallel.
+     *
+     * <p>The pool is thread-safe.
+     */
+    public ModulePool getModulePool() {
+        return this.modulePool;
+    }
+
+    /**
+     * Returns the packages the files to extract belong to.
+     *
+     * <p>The packages are thread-safe and may be shared between extraction threads.
+     */
+    public KclPackages getPackages() {
+        return this.packages;
+    }
+
+    /**
+     * Returns the imported packages emitted during this run.
+     *
+     * <p>The registry is thread-safe and may be shared between extraction threads.
+     */
+    public ImportedPackages getImportedPackages() {
+        return this.importedPackages;
+    }
+
+    /**
+     * Returns the catalogue of schemas resolved during this run.
+     *
+     * <p>The catalogue is thread-safe and may be shared between extraction threads.
+     */
+    public SchemaCatalogue getSchemaCatalogue() {
+        return this.schemaCatalogue;
+    }
+
     /**
      * Makes this semantically equivalent to a fresh state, but may internally retain shared resources
      * that are expensive to reacquire.
@@ -14,11 +14,15 @@ import com.semmle.util.trap.TrapWriter.Label;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.LinkedHashSet;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.UnaryOperator;
+import java.util.zip.Deflater;
 
 /**
  * The file extractor extracts a single file and handles source archive population and TRAP caching;
@@ -117,10 +121,10 @@ public class FileExtractor {
 
         // populate source archive
         String source = new WholeIO(config.getDefaultEncoding()).strictread(f);
-        outputConfig.getSourceArchive().add(f, source);
+        state.getWriteBehind().submit(f, source.length(), () -> outputConfig.getSourceArchive().add(f, source));
 
         // extract language-independent bits
-        TrapWriter trapwriter = new TrapWriter(outputConfig.getTrapWriterFactory().getTrapFileFor(f));
+        TrapWriter trapwriter = outputConfig.getTrapWriterFactory().mkTrapWriter(f);
         Label fileLabel = trapwriter.populateFile(f);
 
         LocationManager locationManager = new LocationManager(f, trapwriter, fileLabel);
@@ -137,7 +141,7 @@ public class FileExtractor {
      * source archive entry are based on the original file.
      */
     private ParseResultInfo extractSnippet(Path file, FileSnippet origin, ExtractorState state) throws IOException {
-        TrapWriter trapwriter = new TrapWriter(outputConfig.getTrapWriterFactory().getTrapFileFor(file.toFile()));
+        TrapWriter trapwriter = outputConfig.getTrapWriterFactory().mkTrapWriter(file.toFile());
 
         File originalFile = origin.getOriginalFile().toFile();
         Label fileLabel = trapwriter.populateFile(originalFile);
@@ -186,57 +190,108 @@ public class FileExtractor {
         if (bumpIdCounter(trapwriter)) {
             resultFile = outputConfig.getTrapWriterFactory().getTrapFileFor(extractedFile);
         }
+        IExtractor extractor = fileType.mkExtractor(config, state);
         // check whether we can perform caching
         if (resultFile != null && fileType.isTrapCachingAllowed()) {
-            cacheFile = trapCache.lookup(source, config, fileType);
+            String dependencies = null;
+            try {
+                dependencies = extractor.dependencyDigest(extractedFile, metrics);
+            } catch (Exception e) {
+                Exceptions.ignore(e, "Extract the file without the TRAP cache; the extraction reports the error.");
+            }
+            if (dependencies != null) cacheFile = trapCache.lookup(source, dependencies, config, fileType);
         }
 
         boolean canUseCacheFile = cacheFile != null;
-        boolean canReuseCacheFile = canUseCacheFile && cacheFile.exists();
-
-        metrics.setCacheFile(cacheFile);
-        metrics.setCanReuseCacheFile(canReuseCacheFile);
-        metrics.writeDataToTrap(trapwriter);
-        if (canUseCacheFile) {
-            FileUtil.close(trapwriter);
+        boolean canReuseCacheFile = canUseCacheFile && trapCache.isPopulated(cacheFile);
+
+        // the cache file is locked until it is released, which is up to the task appending it to the
+        // result file or to the caching trap writer once either of them exists, and up to us until then
+        File lockedFile = cacheFile;
+        AtomicBoolean released = new AtomicBoolean(lockedFile == null);
+        Runnable release = () -> {
+            if (released.compareAndSet(false, true)) trapCache.release(lockedFile);
+        };
+        try {
+            metrics.setCacheFile(cacheFile);
+            metrics.setCanReuseCacheFile(canReuseCacheFile);
+            metrics.writeDataToTrap(trapwriter);
+            if (canUseCacheFile) {
+                FileUtil.close(trapwriter);
+
+                if (canReuseCacheFile) {
+                    File to = resultFile;
+                    state.getWriteBehind().submit(to, trapCache.sizeOf(lockedFile), () -> {
+                        try {
+                            trapCache.appendTo(lockedFile, to);
+                        } finally {
+                            release.run();
+                        }
+                    });
+                    try {
+                        extractor.extractCached(extractedFile);
+                    } catch (Exception e) {
+                        // the TRAP output of the file itself is taken from the cache regardless
+                        System.err.println("Exception while offering the imported packages of " + extractedFile + ".");
+                        e.printStackTrace(System.err);
+                    }
+                    return null;
+                }
 
-            if (canReuseCacheFile) {
-                FileUtil.append(cacheFile, resultFile);
-                return null;
+                // not in the cache yet, so use a caching TRAP writer to
+                // put the data into the cache and append it to the result file
+                trapwriter = new CachingTrapWriter(cacheFile, resultFile, trapCache, compressor(), state.getWriteBehind());
+                // the writer releases the cache file once it is closed, which happens below
+                released.set(true);
             }
-
-            // not in the cache yet, so use a caching TRAP writer to
-            // put the data into the cache and append it to the result file
-            trapwriter = new CachingTrapWriter(cacheFile, resultFile);
-            bumpIdCounter(trapwriter);
-            // re-initialise the location manager, since it keeps a reference to the TRAP writer
-            locationManager = new LocationManager(extractedFile, trapwriter, locationManager.getFileLabel());
+        } catch (Throwable t) {
+            release.run();
+            throw t;
         }
 
         // now do the extraction itself
         boolean successful = false;
         try {
-            IExtractor extractor = fileType.mkExtractor(config, state);
+            if (trapwriter instanceof CachingTrapWriter) {
+                bumpIdCounter(trapwriter);
+                // re-initialise the location manager, since it keeps a reference to the TRAP writer
+                locationManager = new LocationManager(extractedFile, trapwriter, locationManager.getFileLabel());
+            }
             TextualExtractor textualExtractor = new TextualExtractor(trapwriter, locationManager, source, config.getExtractLines(), metrics, extractedFile);
             ParseResultInfo loc = extractor.extract(textualExtractor);
             int numLines = textualExtractor.isSnippet() ? 0 : textualExtractor.getNumLines();
             int linesOfCode = loc.getLinesOfCode(), linesOfComments = loc.getLinesOfComments();
-            trapwriter.addTuple("numlines", fileLabel, numLines, linesOfCode, linesOfComments);
+            locationManager.getTupleEncoder().begin("numlines").label(fileLabel)
+                    .integer(numLines).integer(linesOfCode).integer(linesOfComments).end();
 //            trapwriter.addTuple("filetype", fileLabel, fileType.toString());
             metrics.stopPhase(ExtractionMetrics.ExtractionPhase.FileExtractor_extractContents);
             metrics.writeTimingsToTrap(trapwriter);
+            metrics.reportAllocations(extractedFile.toString());
+            metrics.reportTimings(extractedFile.toString());
             successful = true;
             return loc;
         } catch (Exception e) {
             System.out.println(e);
             return null;
         } finally {
-            if (!successful && trapwriter instanceof CachingTrapWriter)
-                ((CachingTrapWriter) trapwriter).discard();
+            if (!successful && trapwriter instanceof CachingTrapWriter cachingTrapWriter) cachingTrapWriter.discard();
             FileUtil.close(trapwriter);
+            if (successful && resultFile != null) {
+                File trapFile = resultFile;
+                state.getWriteBehind().submit(trapFile, 0, () -> metrics.reportTrapSize(extractedFile.toString(), trapFile));
+            }
         }
     }
 
+    /**
+     * Returns a function wrapping the same compressing stream around the output for a TRAP file as
+     * the trap writers of this extractor do.
+     */
+    private UnaryOperator<OutputStream> compressor() {
+        if (outputConfig.getTrapWriterFactory() instanceof ParallelGzipTrapWriterFactory factory) return factory::compress;
+        return out -> new ParallelGzipOutputStream(out, null, Deflater.DEFAULT_COMPRESSION, ParallelGzipTrapWriterFactory.DEFAULT_BLOCK_SIZE, 1);
+    }
+
     public FileType getFileType(File f) {
         return config.hasFileType()
                 ? FileType.valueOf(config.getFileType())
@@ -248,7 +303,7 @@ public class FileExtractor {
      *
      * @return true if the counter was successfully bumped
      */
-    public boolean bumpIdCounter(TrapWriter trapwriter) {
+    public static boolean bumpIdCounter(TrapWriter trapwriter) {
         return trapwriter.bumpIdCount(20000);
     }
 
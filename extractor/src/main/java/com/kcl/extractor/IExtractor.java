@@ -1,5 +1,6 @@
 package com.kcl.extractor;
 
+import java.io.File;
 import java.io.IOException;
 
 /**
@@ -12,4 +13,21 @@ public interface IExtractor {
      * lines of comments extracted.
      */
     public ParseResultInfo extract(TextualExtractor textualExtractor) throws IOException;
+
+    /**
+     * Returns a digest of everything besides the contents of {@code file} and the configuration
+     * options that the TRAP output of {@code file} depends on, which becomes part of the key of its
+     * TRAP cache entry, or {@code null} if its TRAP output must not be cached. The same extractor is
+     * then used to extract the file.
+     */
+    public default String dependencyDigest(File file, ExtractionMetrics metrics) throws Exception {
+        return "";
+    }
+
+    /**
+     * Called instead of {@link #extract} for a file whose TRAP output is taken from the TRAP cache,
+     * to produce any output that does not go into the TRAP file of the file itself.
+     */
+    public default void extractCached(File file) throws Exception {
+    }
 }
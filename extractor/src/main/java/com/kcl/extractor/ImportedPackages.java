@@ -0,0 +1,91 @@
+package com.kcl.extractor;
+
+import com.semmle.util.extraction.ExtractorOutputConfig;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of the imported packages to emit during this run.
+ *
+ * <p>A package that is imported by an extracted file, but whose own files are not extracted (such as
+ * a dependency declared in {@code kcl.mod}), is emitted once per run into a TRAP file of its own,
+ * rather than into the TRAP file of every file importing it. Packages are identified by their
+ * directory, so the same dependency imported from different programs is still only emitted once.
+ *
+ * <p>The extraction of every importing file {@linkplain #offer offers} the package as it was loaded
+ * into its program, and the packages are only emitted once all files have been extracted (cf. {@link
+ * #takeAll()}). Of all offers for the same directory, the one with the least root and package name
+ * is kept, so the output does not depend on the order in which the files are extracted, and a package
+ * is still emitted if the TRAP output of all its importers is taken from the TRAP cache.
+ *
+ * <p>An offer only records the files the importing program was loaded from, not the parse result it
+ * was offered from, so that parse results are still dropped as soon as their files have been
+ * extracted. The importing program is loaded again when its packages are emitted, once for all
+ * packages it offered.
+ */
+public class ImportedPackages {
+    /**
+     * The order in which offers for the same directory are preferred.
+     */
+    private static final Comparator<Offer> PREFERENCE = Comparator.comparing(Offer::root).thenComparing(Offer::pkg)
+            .thenComparing(offer -> offer.inputs().toString());
+
+    private final ConcurrentHashMap<Path, Offer> offers = new ConcurrentHashMap<>();
+    private ExtractorOutputConfig outputConfig;
+
+    /**
+     * An imported package as it was loaded into the program of an importing file.
+     *
+     * @param root   the root of the importing program
+     * @param pkg    the name of the package in that program
+     * @param inputs the files the importing program was loaded from
+     */
+    public record Offer(String root, String pkg, List<Path> inputs) {
+    }
+
+    public ExtractorOutputConfig getOutputConfig() {
+        return outputConfig;
+    }
+
+    /**
+     * Sets the output configuration that the TRAP files and source archive entries of imported
+     * packages are written to.
+     */
+    public void setOutputConfig(ExtractorOutputConfig outputConfig) {
+        this.outputConfig = outputConfig;
+    }
+
+    /**
+     * Offer the package in {@code directory} for emission, unless it has been offered by a preferred
+     * importer already.
+     */
+    public void offer(Path directory, Offer offer) {
+        if (outputConfig == null) return;
+        offers.merge(directory, offer, (kept, other) -> PREFERENCE.compare(kept, other) <= 0 ? kept : other);
+    }
+
+    /**
+     * Returns the packages offered so far, sorted by their directories, and forgets them.
+     */
+    public SortedMap<Path, Offer> takeAll() {
+        SortedMap<Path, Offer> result = new TreeMap<>();
+        for (Path directory : List.copyOf(offers.keySet())) {
+            Offer offer = offers.remove(directory);
+            if (offer != null) result.put(directory, offer);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the file whose TRAP file the package in {@code directory} is emitted into.
+     */
+    public File getTrapFileKey(Path directory) {
+        return directory.resolve(".codeql-kcl-package").toFile();
+    }
+}
@@ -3,28 +3,48 @@ package com.kcl.extractor;
 import com.kcl.api.Spec;
 import com.kcl.ast.Module;
 import com.kcl.ast.*;
+import com.kcl.extractor.trapcache.CachingTrapWriter;
+import com.kcl.parser.ApiPool;
 import com.kcl.parser.KclAstParser;
-import com.kcl.util.SematicUtil;
+import com.kcl.parser.KclAstParser.InputModule;
+import com.kcl.parser.ParseCache;
+import com.kcl.parser.SemanticIndex;
 import com.semmle.util.collections.CollectionUtil;
+import com.semmle.util.extraction.ExtractorOutputConfig;
 import com.semmle.util.files.FileUtil;
+import com.semmle.util.io.WholeIO;
 import com.semmle.util.trap.TrapWriter;
 import com.semmle.util.trap.TrapWriter.Label;
 
 import java.io.File;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.kcl.parser.KclAstParser.modulePath;
 
 public class KclExtractor implements IExtractor {
+    /**
+     * The name of the package the files a program is loaded from belong to.
+     */
+    private static final String MAIN_PACKAGE = "__main__";
 
     private ExtractorConfig config;
 
     private TrapWriter trapWriter;
 
+    private TupleEncoder tuples;
+
     private LocationManager locationManager;
 
     private TextualExtractor textualExtractor;
@@ -34,15 +54,96 @@ public class KclExtractor implements IExtractor {
     private SyntacticContextManager contextManager;
     private ConcurrentMap<File, Optional<String>> packageTypeCache;
 
+    private ApiPool apiPool;
+
+    private ParseCache parseCache;
+
+    private KclPackages packages;
+
+    private ImportedPackages importedPackages;
+
+    private SchemaCatalogue schemaCatalogue;
+
+    private WriteBehind writeBehind;
+
+    private ModulePool modulePool;
+
     private Spec.LoadPackage_Result specResult;
 
     private KclAstParser.ParseResult parseResult;
 
+    private final TraversalStack stack = new TraversalStack();
+
+    private final WorkList work = new WorkList();
+
+    /**
+     * The number of AST nodes visited so far.
+     */
+    private int nodeCount;
+
+    /**
+     * The trap writer of the file being extracted; {@link #trapWriter} differs from it once the
+     * output has been split into shards.
+     */
+    private TrapWriter fileTrapWriter;
+
+    /**
+     * Whether the output of the file being extracted may be split into shards.
+     */
+    private boolean sharding;
+
+    /**
+     * The key the keys of further shards of the output being emitted are derived from: the file
+     * being extracted, or the key of the shard a forked chunk started out in (cf. {@link
+     * #shardKey(File, int)}).
+     */
+    private File shardBase;
+
+    /**
+     * The number of shards derived from {@link #shardBase} so far.
+     */
+    private int shardCount;
+
+    /**
+     * The files of the modules that are emitted into the output of the file being extracted although
+     * they do not stem from it, and are hence emitted again for every file importing them (cf. {@link
+     * #schemaLabel(String, Path)}).
+     */
+    private Set<Path> copiedModuleFiles = new HashSet<>();
+
 //    private Program
 
     public KclExtractor(ExtractorConfig config, ExtractorState state) {
         this.config = config;
         this.packageTypeCache = state.getPackageTypeCache();
+        this.apiPool = state.getApiPool();
+        this.parseCache = state.getParseCache();
+        this.packages = state.getPackages();
+        this.importedPackages = state.getImportedPackages();
+        this.schemaCatalogue = state.getSchemaCatalogue();
+        this.writeBehind = state.getWriteBehind();
+        this.modulePool = state.getModulePool();
+        this.contextManager = new SyntacticContextManager();
+    }
+
+    /**
+     * Creates an extractor for emitting a chunk of the modules of the program {@code that} is
+     * extracting (cf. {@link #emitModules}).
+     */
+    private KclExtractor(KclExtractor that) {
+        this.config = that.config;
+        this.packageTypeCache = that.packageTypeCache;
+        this.apiPool = that.apiPool;
+        this.parseCache = that.parseCache;
+        this.packages = that.packages;
+        this.importedPackages = that.importedPackages;
+        this.schemaCatalogue = that.schemaCatalogue;
+        this.writeBehind = that.writeBehind;
+        this.modulePool = that.modulePool;
+        this.parseResult = that.parseResult;
+        this.specResult = that.specResult;
+        this.sharding = that.sharding;
+        this.copiedModuleFiles = that.copiedModuleFiles;
         this.contextManager = new SyntacticContextManager();
     }
 
@@ -50,69 +151,464 @@ public class KclExtractor implements IExtractor {
     public ParseResultInfo extract(TextualExtractor textualExtractor) {
         this.textualExtractor = textualExtractor;
         this.locationManager = textualExtractor.getLocationManager();
-        String sourceFile = textualExtractor.getExtractedFile().getAbsolutePath();
         String source = textualExtractor.getSource();
         ExtractionMetrics metrics = textualExtractor.getMetrics();
         this.trapWriter = textualExtractor.getTrapwriter();
+        this.fileTrapWriter = trapWriter;
+        this.sharding = !(trapWriter instanceof CachingTrapWriter) && importedPackages.getOutputConfig() != null;
+        this.shardBase = textualExtractor.getExtractedFile();
+        this.tuples = new TupleEncoder(trapWriter);
         try {
             //parse file
-            metrics.startPhase(ExtractionMetrics.ExtractionPhase.KclAstParser_parse);
-            this.parseResult = KclAstParser.parse(Path.of(sourceFile));
-            this.specResult = this.parseResult.getSpec();
-            Path jsonPath = Path.of(System.getProperty("user.dir")).resolve("data/report/extend/kcl.json");
-            FileUtil.write(jsonPath.toFile(), specResult.getProgram());
-            metrics.stopPhase(ExtractionMetrics.ExtractionPhase.KclAstParser_parse);
+            this.specResult = acquire(textualExtractor.getExtractedFile(), metrics).getSpec();
 
             //extract
             metrics.startPhase(ExtractionMetrics.ExtractionPhase.KclExtractor_extract);
             this.lexicalExtractor = new LexicalExtractor(textualExtractor);
             Program program = this.parseResult.getProgram();
             visit(program);
+            metrics.addNodes(nodeCount);
             ParseResultInfo loc = lexicalExtractor.extractLines(source, locationManager.getFileLabel());
             metrics.stopPhase(ExtractionMetrics.ExtractionPhase.KclExtractor_extract);
             return loc;
         } catch (Exception e) {
             e.printStackTrace();
             return null;
+        } finally {
+            if (trapWriter != fileTrapWriter) FileUtil.close(trapWriter);
         }
     }
 
     public void visit(Program program) {
         String root = program.getRoot();
-        Label rootLabel = trapWriter.globalID("kcl;{" + root + "}," + this.locationManager.getStartLine() + ',' + this.locationManager.getStartColumn());
-        this.trapWriter.addTuple("roots", rootLabel, root);
-
-        program.getPkgs().forEach((pkg, modules) -> {
-            Label packageLabel = this.trapWriter.freshLabel();
-            this.trapWriter.addTuple("packages", packageLabel, pkg, rootLabel);
-
-            AtomicInteger idx = new AtomicInteger();
-            modules.forEach(module -> {
-                Label moduleLabel = trapWriter.freshLabel();
-                this.trapWriter.addTuple("modules", moduleLabel, module.getName(), locationManager.getFileLabel(), packageLabel, idx.get());
-
-                contextManager.enterContainer(moduleLabel);
-                this.visit(module, new Context(packageLabel, moduleLabel, idx.get()));
-                contextManager.leaveContainer();
-                idx.getAndIncrement();
+        Label rootLabel = rootLabel(root);
+        tuples.begin("roots").label(rootLabel).string(root).end();
+
+        // the modules of the other files in this package are emitted by their own extraction
+        List<InputModule> ownModules = parseResult.takeModules(textualExtractor.getExtractedFile().toPath());
+        List<ModuleJob> jobs = new ArrayList<>();
+        Map<String, Label> packageLabels = new HashMap<>();
+        // packages are visited in order of their names, so the numbering of labels does not depend
+        // on the order of the map they were deserialised into
+        new TreeMap<>(program.getPkgs()).forEach((pkg, modules) -> {
+            List<InputModule> own = new ArrayList<>();
+            for (InputModule module : ownModules)
+                if (module.pkg().equals(pkg)) own.add(module);
+
+            if (own.isEmpty() && config.getSharedImports()) {
+                offerImportedPackage(root, pkg, modulePaths(modules), parseResult.getInputs());
+                return;
+            }
+
+            Label packageLabel = packageLabel(root, pkg);
+            packageLabels.put(pkg, packageLabel);
+            tuples.begin("packages").label(packageLabel).string(pkg).label(rootLabel).end();
+
+            for (InputModule module : own) jobs.add(new ModuleJob(pkg, module.module(), module.index(), module.nodeCount()));
+            // the remaining modules do not stem from any of the files the program was parsed from
+            for (int idx = 0; idx < modules.size(); idx++) {
+                Module module = modules.get(idx);
+                if (module == null) continue;
+                copiedModuleFiles.add(modulePath(module.getFilename()));
+                jobs.add(new ModuleJob(pkg, module, idx, parseResult.getNodeCount(module)));
+            }
+        });
+        emitModules(root, jobs, packageLabels);
+    }
+
+    /**
+     * A module to emit, together with its package, its index therein and the number of its AST nodes.
+     */
+    private record ModuleJob(String pkg, Module module, int idx, int nodeCount) {
+    }
+
+    /**
+     * Emit the given modules, splitting them up into chunks that are emitted in parallel if there
+     * are enough of them.
+     *
+     * <p>The first chunk is emitted by this extractor; every other chunk is emitted by a copy of it
+     * on the {@link ModulePool}, into a TRAP shard of its own (see {@link #startShardIfFull()}). Since
+     * the chunks and their shards only depend on the modules, the output is the same however the
+     * chunks are scheduled. A chunk whose output grows beyond the shard size is split up further into
+     * shards whose keys are derived from that of its first shard, so they are disjoint from those of
+     * all other chunks.
+     *
+     * <p>Modules are only split up into chunks if the output may be split into shards, so output that
+     * goes into the TRAP cache is always emitted on the extracting thread.
+     */
+    private void emitModules(String root, List<ModuleJob> jobs, Map<String, Label> packageLabels) {
+        List<List<ModuleJob>> chunks = sharding
+                ? modulePool.chunk(jobs, ModuleJob::nodeCount)
+                : List.of(jobs);
+        // the shards the first chunk may be split into are numbered after those of the other chunks
+        shardCount = chunks.size() - 1;
+        List<CompletableFuture<ForkedChunk>> forked = new ArrayList<>();
+        for (int i = 1; i < chunks.size(); i++) {
+            KclExtractor copy = new KclExtractor(this);
+            List<ModuleJob> chunk = chunks.get(i);
+            File shardKey = shardKey(textualExtractor.getExtractedFile(), i);
+            TextualExtractor fileText = textualExtractor;
+            forked.add(modulePool.submit(() -> copy.emitForkedChunk(root, chunk, shardKey, fileText)));
+        }
+        // every forked chunk is waited for, even if another one fails, so that none of them is still
+        // writing its shards once the extraction of the file is over
+        Throwable failure = null;
+        try {
+            emitChunk(root, chunks.get(0), packageLabels);
+        } catch (RuntimeException | Error e) {
+            failure = e;
+        }
+        ExtractionMetrics metrics = textualExtractor.getMetrics();
+        for (CompletableFuture<ForkedChunk> future : forked) {
+            try {
+                ForkedChunk chunk = future.join();
+                nodeCount += chunk.nodeCount();
+                metrics.addAllocatedBytes(ExtractionMetrics.ExtractionPhase.KclExtractor_extract, chunk.allocatedBytes());
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause() == null ? e : e.getCause();
+                if (failure == null) failure = cause;
+                else failure.addSuppressed(cause);
+            }
+        }
+        if (failure instanceof RuntimeException e) throw e;
+        if (failure instanceof Error e) throw e;
+        if (failure != null) throw new CompletionException(failure);
+    }
+
+    /**
+     * The number of AST nodes visited and of bytes allocated while emitting a chunk on the {@link
+     * ModulePool}.
+     */
+    private record ForkedChunk(int nodeCount, long allocatedBytes) {
+    }
+
+    /**
+     * Emit the given modules of the file being extracted.
+     *
+     * @param packageLabels the labels of the packages emitted into the current TRAP file so far
+     */
+    private void emitChunk(String root, List<ModuleJob> jobs, Map<String, Label> packageLabels) {
+        for (ModuleJob job : jobs) {
+            if (startShardIfFull()) packageLabels.clear();
+            Label packageLabel = packageLabels.computeIfAbsent(job.pkg(), pkg -> packageLabel(root, pkg));
+            emitModule(job.module(), packageLabel, job.idx());
+        }
+    }
+
+    /**
+     * Emit the given modules of the file {@code fileText} belongs to into a TRAP shard of their own.
+     */
+    private ForkedChunk emitForkedChunk(String root, List<ModuleJob> jobs, File shardKey, TextualExtractor fileText) {
+        long allocated = ExtractionMetrics.currentThreadAllocatedBytes();
+        this.shardBase = shardKey;
+        this.shardCount = 0;
+        this.trapWriter = importedPackages.getOutputConfig().getTrapWriterFactory().mkTrapWriter(shardKey);
+        try {
+            startTrapFile(trapWriter, fileText);
+            emitChunk(root, jobs, new HashMap<>());
+            return new ForkedChunk(nodeCount, ExtractionMetrics.currentThreadAllocatedBytes() - allocated);
+        } finally {
+            // the chunk may have continued in further shards, the earlier ones of which are closed
+            FileUtil.close(trapWriter);
+        }
+    }
+
+    /**
+     * Continue the output of the file {@code fileText} belongs to in {@code shard}, starting it with
+     * the same location-dependent prelude as the TRAP file of the file itself.
+     */
+    private void startTrapFile(TrapWriter shard, TextualExtractor fileText) {
+        this.trapWriter = shard;
+        this.tuples = new TupleEncoder(shard);
+        this.locationManager = fileText.getLocationManager().forTrapWriter(shard);
+        if (!fileText.isSnippet()) locationManager.emitFileLocation(locationManager.getFileLabel(), 0, 0, 0, 0);
+        FileExtractor.bumpIdCounter(shard);
+        this.textualExtractor = fileText.withLocationManager(locationManager);
+        this.lexicalExtractor = new LexicalExtractor(textualExtractor);
+    }
+
+    /**
+     * Continue the output of the file being extracted in a new TRAP file if the current one has grown
+     * beyond the configured shard size, so that the TRAP files of very large files can be imported in
+     * parallel. Shards are only ever started between modules.
+     *
+     * <p>Every shard starts with the same location-dependent prelude as the TRAP file of the file
+     * itself. Labels referenced from more than one module (of files, roots, packages and schemas) are
+     * keyed on their names, so they agree between shards; they must be looked up again in the new
+     * shard, though.
+     *
+     * <p>Output that goes into the TRAP cache is never split up, since the cache only keeps a single
+     * TRAP file per file.
+     *
+     * @return whether a new shard was started
+     */
+    private boolean startShardIfFull() {
+        long shardSize = config.getTrapShardSize();
+        if (!sharding || shardSize <= 0 || !(trapWriter instanceof EncodingTrapWriter current)
+                || current.getCharsWritten() < shardSize)
+            return false;
+
+        TrapWriter shard = importedPackages.getOutputConfig().getTrapWriterFactory()
+                .mkTrapWriter(shardKey(shardBase, ++shardCount));
+        if (trapWriter != fileTrapWriter) FileUtil.close(trapWriter);
+        startTrapFile(shard, textualExtractor);
+        return true;
+    }
+
+    /**
+     * Returns the file whose TRAP file the {@code n}th shard of the output for {@code file} is
+     * emitted into.
+     */
+    static File shardKey(File file, int n) {
+        return new File(file.getParentFile(), file.getName() + ".shard" + n);
+    }
+
+    private void emitModule(Module module, Label packageLabel, int idx) {
+        Label moduleLabel = trapWriter.freshLabel();
+        tuples.begin("modules").label(moduleLabel).string(module.getName()).label(locationManager.getFileLabel())
+                .label(packageLabel).integer(idx).end();
+
+        contextManager.enterContainer(moduleLabel);
+        work.push(Task.MODULE, module, packageLabel, moduleLabel, idx, null);
+        traverse();
+        contextManager.leaveContainer();
 //            emitNodeSymbol(nd, toplevelLabel);
+    }
+
+    /**
+     * Returns the parse result to use for extracting {@code file}, which is only acquired once per
+     * extractor.
+     */
+    private KclAstParser.ParseResult acquire(File file, ExtractionMetrics metrics) throws Exception {
+        if (parseResult == null) {
+            metrics.startPhase(ExtractionMetrics.ExtractionPhase.KclAstParser_parse);
+            this.parseResult = packages.acquire(file.toPath(), apiPool, parseCache, metrics);
+            metrics.stopPhase(ExtractionMetrics.ExtractionPhase.KclAstParser_parse);
+        }
+        return parseResult;
+    }
+
+    /**
+     * The TRAP output of a file depends on the whole program it belongs to, such as the schemas it
+     * instantiates and, unless they are shared, the packages it imports.
+     *
+     * <p>The digest is taken from the parse cache entry of the program if there is an up-to-date
+     * one, so that a TRAP cache hit does not cost a round trip through the KCL resolver; otherwise,
+     * the program is loaded, and then used for extracting the file on a TRAP cache miss.
+     */
+    @Override
+    public String dependencyDigest(File file, ExtractionMetrics metrics) throws Exception {
+        ParseCache.Summary summary = summarize(file);
+        if (summary != null) return summary.dependencyDigest();
+        return acquire(file, metrics).getDependencyDigest();
+    }
+
+    /**
+     * Returns the parse cache entry of the program {@code file} belongs to, unless the program has
+     * been acquired already or there is no up-to-date entry.
+     */
+    private ParseCache.Summary summarize(File file) {
+        if (parseResult != null) return null;
+        return parseCache.summarize(packages.inputsOf(file.toPath()));
+    }
+
+    /**
+     * Offer the packages of the program {@code file} belongs to that none of its modules stem from
+     * for emission, as {@link #visit(Program)} would. The packages are taken from the parse cache
+     * entry of the program if possible, so the program is not loaded for that.
+     */
+    @Override
+    public void extractCached(File file) throws Exception {
+        if (!config.getSharedImports() || importedPackages.getOutputConfig() == null) return;
+        ParseCache.Summary summary = summarize(file);
+        if (summary != null) {
+            List<Path> inputs = packages.inputsOf(file.toPath());
+            summary.packages().forEach((pkg, moduleFiles) -> {
+                if (!moduleFiles.contains(file.toPath())) offerImportedPackage(summary.root(), pkg, moduleFiles, inputs);
             });
+            return;
+        }
+        acquire(file, new ExtractionMetrics());
+        Set<String> ownPackages = new HashSet<>();
+        for (InputModule module : parseResult.takeModules(file.toPath())) ownPackages.add(module.pkg());
+        Program program = parseResult.getProgram();
+        new TreeMap<>(program.getPkgs()).forEach((pkg, modules) -> {
+            if (!ownPackages.contains(pkg))
+                offerImportedPackage(program.getRoot(), pkg, modulePaths(modules), parseResult.getInputs());
         });
     }
 
-    public void visit(Module module, Context c) {
-        visit(module.getBody(), c);
+    /**
+     * Returns the files the given modules stem from, leaving out detached modules.
+     */
+    private static List<Path> modulePaths(List<Module> modules) {
+        List<Path> result = new ArrayList<>(modules.size());
+        for (Module module : modules)
+            if (module != null) result.add(modulePath(module.getFilename()));
+        return result;
+    }
+
+    /**
+     * Offer an imported package for emission into a TRAP file of its own once all files have been
+     * extracted (cf. {@link ImportedPackages}). Packages all of whose modules stem from files that are
+     * extracted in their own right are not offered.
+     *
+     * @param moduleFiles the files the modules of the package stem from
+     * @param inputs      the files the importing program was loaded from
+     */
+    private void offerImportedPackage(String root, String pkg, List<Path> moduleFiles, List<Path> inputs) {
+        for (Path moduleFile : moduleFiles) {
+            if (!packages.isRegistered(moduleFile)) {
+                importedPackages.offer(moduleFile.getParent(), new ImportedPackages.Offer(root, pkg, inputs));
+                return;
+            }
+        }
+    }
+
+    /**
+     * Emit the imported package in {@code directory} into a TRAP file of its own, leaving out the
+     * modules stemming from files that are extracted in their own right.
+     *
+     * @param importer the importing program of {@code offer}, loaded again from its inputs
+     */
+    public void extractImportedPackage(Path directory, ImportedPackages.Offer offer, KclAstParser.ParseResult importer) {
+        this.parseResult = importer;
+        this.specResult = importer.getSpec();
+        List<Module> modules = importer.getProgram().getPkgs().getOrDefault(offer.pkg(), List.of());
+        extractImportedPackage(offer.root(), offer.pkg(), modules, directory);
+    }
+
+    private void extractImportedPackage(String root, String pkg, List<Module> modules, Path directory) {
+        ExtractorOutputConfig outputConfig = importedPackages.getOutputConfig();
+        this.trapWriter = outputConfig.getTrapWriterFactory().mkTrapWriter(importedPackages.getTrapFileKey(directory));
+        this.tuples = new TupleEncoder(trapWriter);
+        try {
+            Label rootLabel = rootLabel(root);
+            tuples.begin("roots").label(rootLabel).string(root).end();
+            Label packageLabel = packageLabel(root, pkg);
+            tuples.begin("packages").label(packageLabel).string(pkg).label(rootLabel).end();
+
+            for (int idx = 0; idx < modules.size(); idx++) {
+                Module module = modules.get(idx);
+                if (module == null) continue;
+                File moduleFile = modulePath(module.getFilename()).toFile();
+                if (packages.isRegistered(moduleFile.toPath())) continue;
+
+                String source = new WholeIO(config.getDefaultEncoding()).strictread(moduleFile);
+                writeBehind.submit(moduleFile, source.length(), () -> outputConfig.getSourceArchive().add(moduleFile, source));
+                Label fileLabel = trapWriter.populateFile(moduleFile);
+                this.locationManager = new LocationManager(moduleFile, trapWriter, fileLabel);
+                this.locationManager.emitFileLocation(fileLabel, 0, 0, 0, 0);
+                this.textualExtractor = new TextualExtractor(trapWriter, locationManager, source, config.getExtractLines(), new ExtractionMetrics(), moduleFile);
+                this.lexicalExtractor = new LexicalExtractor(textualExtractor);
+
+                emitModule(module, packageLabel, idx);
+                lexicalExtractor.extractLines(source, fileLabel);
+            }
+        } finally {
+            FileUtil.close(trapWriter);
+        }
+    }
+
+    /*
+     * Roots, packages and schema statements may be referenced from several TRAP files, so their labels
+     * are keyed on their names and source locations rather than on anything that depends on the
+     * particular parse they stem from. All other nodes are only referenced from the TRAP file of their
+     * module, so they get fresh labels, which keeps kcl-lib's node IDs out of the TRAP files.
+     *
+     * A schema statement is only emitted once per run under the key of its location if its module is
+     * emitted once per run, i.e. if it stems from the file being extracted or belongs to an imported
+     * package emitted by extractImportedPackage; a copy emitted into the output of every importing
+     * file has a key of its own for each of them.
+     */
+
+    private Label rootLabel(String root) {
+        return trapWriter.globalID("root;{" + root + "}");
+    }
+
+    /**
+     * Returns the label of package {@code pkg}; since every directory under a root is compiled with a
+     * main package of its own, main packages are scoped by the directory of the program being
+     * extracted, as in {@link SchemaCatalogue#lookup}.
+     */
+    private Label packageLabel(String root, String pkg) {
+        if (pkg.equals(MAIN_PACKAGE))
+            return trapWriter.globalID("package;{" + root + "},{" + parseResult.getPackageDirectory() + "}," + pkg);
+        return trapWriter.globalID("package;{" + root + "}," + pkg);
+    }
+
+    private Label nodeLabel(Node<?> node) {
+        if (node.getNode() instanceof SchemaStmt)
+            return schemaLabel(SchemaCatalogue.trapKey(node), modulePath(node.getFilename()));
+        return trapWriter.freshLabel();
+    }
+
+    /**
+     * Returns the label of the schema statement with the given key in {@code file}.
+     */
+    private Label schemaLabel(String trapKey, Path file) {
+        if (copiedModuleFiles.contains(file))
+            return trapWriter.globalID(trapKey + ";{" + textualExtractor.getExtractedFile() + "}");
+        return trapWriter.globalID(trapKey);
+    }
+
+    /**
+     * Run the tasks on the work list until it is empty.
+     *
+     * <p>Rather than recursing into the children of a node, the visitor methods defer visiting them by
+     * pushing tasks onto the work list, so the depth of the Java stack does not depend on how deeply
+     * the AST is nested. All tasks deferred by a visitor method are reversed once it returns, so they
+     * are run in the order they were deferred in, and each of them runs to completion (including the
+     * tasks it defers in turn) before the next one starts. The tuples are hence emitted in exactly the
+     * order a recursive traversal would emit them in.
+     */
+    @SuppressWarnings("unchecked")
+    private void traverse() {
+        while (!work.isEmpty()) {
+            Task task = work.task();
+            Object object = work.object();
+            stack.push(work.parent(), work.current(), work.childIndex(), work.nodeId());
+            work.pop();
+            int mark = work.size();
+            switch (task) {
+                case MODULE -> visit((Module) object);
+                case COMMENTS -> visitComments((Module) object);
+                case NODE -> visit((Node<?>) object);
+                case LEAVE_NODE -> this.locationManager.emitNodeLocation((Node<?>) object, stack.current());
+                case LIST -> visit((List<? extends Node<?>>) object);
+                case AUG_OP -> visit((AugOp) object);
+                case CONFIG_ENTRY_OPERATION -> visit((ConfigEntryOperation) object);
+            }
+            work.reverseFrom(mark);
+            stack.pop();
+        }
+    }
+
+    /**
+     * Defer running {@code task} on {@code object} in the current frame, but with the given child
+     * index.
+     */
+    private void defer(Task task, Object object, int childIndex) {
+        if (object != null) work.push(task, object, stack.parent(), stack.current(), childIndex, stack.nodeId());
+    }
+
+    public void visit(Module module) {
+        visit(module.getBody(), stack.childIndex());
+        defer(Task.COMMENTS, module, stack.childIndex());
+    }
+
+    private void visitComments(Module module) {
         int idx = 0;
         for (Node<Comment> commentNode : module.getComments()) {
-            Label commentLabel = this.trapWriter.globalID(commentNode.getId());
-            this.trapWriter.addTuple("comments", commentLabel, c.current, idx,
-                    commentNode.getNode().getText(),
-                    this.textualExtractor.mkToString(this.textualExtractor.getLine(commentNode))
-            );
+            Label commentLabel = this.trapWriter.freshLabel();
+            tuples.begin("comments").label(commentLabel).label(stack.current()).integer(idx)
+                    .string(commentNode.getNode().getText())
+                    .string(this.textualExtractor.mkToString(commentNode))
+                    .end();
         }
     }
 
-    public void visit(List<? extends Node<?>> listNode, Context c) {
+    public void visit(List<? extends Node<?>> listNode) {
         if (CollectionUtil.isNullOrEmpty(listNode)) {
             return;
         }
@@ -127,29 +623,36 @@ public class KclExtractor implements IExtractor {
             case Keyword ignored -> "keyword_lists";
             default -> throw new RuntimeException(listNode.get(0).getId());
         };
-        this.trapWriter.addTuple(tableName, listLabel, c.current, c.childIndex);
+        tuples.begin(tableName).label(listLabel).label(stack.current()).integer(stack.childIndex()).end();
         int idx = 0;
         for (Node<?> node : listNode) {
-            visit(node, new Context(c.current, listLabel, idx));
+            if (node != null) work.push(Task.NODE, node, stack.current(), listLabel, idx, null);
             idx++;
         }
     }
 
+    /**
+     * Defer visiting {@code listNode} as the child of the current node with the given index.
+     */
+    private void visit(List<? extends Node<?>> listNode, int childIndex) {
+        if (!CollectionUtil.isNullOrEmpty(listNode)) defer(Task.LIST, listNode, childIndex);
+    }
 
-    public Label visit(Node<?> node, Context c) {
+    public Label visit(Node<?> node) {
         if (node == null) {
             return null;
         }
 
-        Label lbl = this.trapWriter.globalID(node.getId());
-        c.pushLableInfo(lbl, node.getId());
-
-        Context newContext = new Context(c.current, lbl, c.childIndex);
-        newContext.pushLableInfo(lbl, node.getId());
+        ++nodeCount;
+        Label lbl = nodeLabel(node);
+        Label parent = stack.current();
+        int childIndex = stack.childIndex();
+        stack.push(parent, lbl, childIndex, node.getId());
+        int mark = work.size();
 
         switch (node.getNode()) {
             case Stmt stmt -> {
-                String tostring = this.textualExtractor.mkToString(this.textualExtractor.getLine(node));
+                String tostring = this.textualExtractor.mkToString(node);
 
                 int kind = switch (stmt) {
                     case SchemaStmt ignored -> 9;
@@ -158,18 +661,18 @@ public class KclExtractor implements IExtractor {
                     default -> throw new RuntimeException(stmt.toString());
                 };
 
-                this.trapWriter.addTuple("stmts", lbl, kind, c.current, c.childIndex, tostring);
+                tuples.begin("stmts").label(lbl).integer(kind).label(parent).integer(childIndex).string(tostring).end();
 
                 contextManager.setCurrentStatement(stmt);
 
                 switch (stmt) {
                     case SchemaStmt schemaStmt -> {
-                        this.visit(schemaStmt, newContext);
+                        this.visit(schemaStmt);
                     }
                     case AssignStmt assignStmt -> {
-                        this.visit(assignStmt, newContext);
+                        this.visit(assignStmt);
                     }
-                    case SchemaAttr schemaAttr -> this.visit(schemaAttr, newContext);
+                    case SchemaAttr schemaAttr -> this.visit(schemaAttr);
                     default -> throw new RuntimeException(stmt.toString());
                 }
             }
@@ -182,148 +685,163 @@ public class KclExtractor implements IExtractor {
                     case NumberLit ignored -> 22;
                     default -> throw new RuntimeException(expr.toString());
                 };
-                String tostring = this.textualExtractor.mkToString(this.textualExtractor.getLine(node));
+                String tostring = this.textualExtractor.mkToString(node);
 
-                this.trapWriter.addTuple("exprs", lbl, kind, c.current, c.childIndex, tostring);
+                tuples.begin("exprs").label(lbl).integer(kind).label(parent).integer(childIndex).string(tostring).end();
 
                 switch (expr) {
-                    case SchemaExpr schemaExpr -> visit(schemaExpr, newContext);
-                    case ConfigExpr configExpr -> visit(configExpr, newContext);
-                    case NumberLit numberLit -> visit(numberLit, newContext);
+                    case SchemaExpr schemaExpr -> visit(schemaExpr);
+                    case ConfigExpr configExpr -> visit(configExpr);
+                    case NumberLit numberLit -> visit(numberLit);
                     case IdentifierExpr identifierExpr -> {
-                        Label identifierLable = visit(identifierExpr, newContext);
+                        Label identifierLable = visit(identifierExpr);
                         this.locationManager.emitNodeLocation(node, identifierLable);
                     }
                     default -> throw new RuntimeException(expr.toString());
                 }
             }
             case String string -> {
-                visit(string, newContext);
+                visit(string);
             }
             case Type type -> {
-                visit(type, newContext);
+                visit(type);
             }
             case ConfigEntry configEntry -> {
-                visit(configEntry, newContext);
+                visit(configEntry);
             }
             case Identifier identifier -> {
-                visit(identifier, newContext);
+                visit(identifier);
             }
             case Keyword keyword -> {
-                visit(keyword, newContext);
+                visit(keyword);
             }
             default -> throw new RuntimeException(node.toString());
         }
-        this.locationManager.emitNodeLocation(node, lbl);
+        // the location is emitted once all children have been visited
+        if (work.size() == mark) this.locationManager.emitNodeLocation(node, lbl);
+        else work.push(Task.LEAVE_NODE, node, parent, lbl, childIndex, node.getId());
+        stack.pop();
         return lbl;
     }
 
-    public void visit(SchemaStmt schemaStmt, Context c) {
+    /**
+     * Defer visiting {@code node} as the child of the current node with the given index.
+     */
+    private void visit(Node<?> node, int childIndex) {
+        defer(Task.NODE, node, childIndex);
+    }
+
+    public void visit(SchemaStmt schemaStmt) {
         //string
-        visit(schemaStmt.getDoc(), c.withNewIdx(0));
-        visit(schemaStmt.getName(), c.withNewIdx(1));
+        visit(schemaStmt.getDoc(), 0);
+        visit(schemaStmt.getName(), 1);
 
         //identifier
-        visit(schemaStmt.getParentName(), c.withNewIdx(0));
-        visit(schemaStmt.getForHostName(), c.withNewIdx(1));
+        visit(schemaStmt.getParentName(), 0);
+        visit(schemaStmt.getForHostName(), 1);
 
         //list<stmt>
-        visit(schemaStmt.getBody(), c.withNewIdx(0));
+        visit(schemaStmt.getBody(), 0);
     }
 
-    public void visit(SchemaAttr schemaAttr, Context c) {
+    public void visit(SchemaAttr schemaAttr) {
         //string
-//        visit(schemaAttr.getDoc(), c.withNewIdx(0));
-        visit(schemaAttr.getName(), c.withNewIdx(1));
+//        visit(schemaAttr.getDoc(), 0);
+        visit(schemaAttr.getName(), 1);
 
         //augop
-        visit(schemaAttr.getOp(), c.withNewIdx(0));
+        defer(Task.AUG_OP, schemaAttr.getOp(), 0);
 
         //expr
-        visit(schemaAttr.getValue(), c.withNewIdx(0));
+        visit(schemaAttr.getValue(), 0);
 
         //list_expr
-        visit(schemaAttr.getDecorators(), c.withNewIdx(0));
+        visit(schemaAttr.getDecorators(), 0);
 
         //type
-        visit(schemaAttr.getTy(), new Context(c.parent, c.current, 0));
+        visit(schemaAttr.getTy(), 0);
     }
 
-    public void visit(AssignStmt assignStmt, Context c) {
+    public void visit(AssignStmt assignStmt) {
         //List<NodeRef<Identifier>>
-        visit(assignStmt.getTargets(), c.withNewIdx(0));
+        visit(assignStmt.getTargets(), 0);
 
         //expr
-        visit(assignStmt.getValue(), c.withNewIdx(0));
+        visit(assignStmt.getValue(), 0);
 
         //type
-        visit(assignStmt.getTy(), c.withNewIdx(0));
+        visit(assignStmt.getTy(), 0);
     }
 
-    public void visit(SchemaExpr schemaExpr, Context c) {
+    public void visit(SchemaExpr schemaExpr) {
         //identifier
-        visit(schemaExpr.getName(), c.withNewIdx(0));
+        visit(schemaExpr.getName(), 0);
 
         //List<NodeRef<Expr>>
-        visit(schemaExpr.getArgs(), c.withNewIdx(0));
+        visit(schemaExpr.getArgs(), 0);
 
         //List<NodeRef<Keyword>>
-        visit(schemaExpr.getKwargs(), c.withNewIdx(0));
+        visit(schemaExpr.getKwargs(), 0);
 
         //NodeRef<Expr>
-        visit(schemaExpr.getConfig(), c.withNewIdx(0));
+        visit(schemaExpr.getConfig(), 0);
     }
 
-    public Label visit(IdentifierExpr identifierExpr, Context c) {
+    public Label visit(IdentifierExpr identifierExpr) {
         Label label = trapWriter.freshLabel();
-        this.trapWriter.addTuple("identifiers", label, c.current, c.childIndex, identifierExpr.getName());
+        tuples.begin("identifiers").label(label).label(stack.current()).integer(stack.childIndex())
+                .string(identifierExpr.getName()).end();
 
         //String
-        this.visit(identifierExpr.getPkgpath(), new Context(label, trapWriter.freshLabel(), 0));
+        stack.push(label, trapWriter.freshLabel(), 0, null);
+        this.visit(identifierExpr.getPkgpath());
+        stack.pop();
 
         //ExprContext
-        this.visit(identifierExpr.getCtx(), new Context(label, trapWriter.freshLabel(), 0));
+        stack.push(label, trapWriter.freshLabel(), 0, null);
+        this.visit(identifierExpr.getCtx());
+        stack.pop();
         return label;
     }
 
-    public void visit(ConfigExpr configExpr, Context c) {
+    public void visit(ConfigExpr configExpr) {
         int idx = 0;
         for (NodeRef<ConfigEntry> item : configExpr.getItems()) {
-            this.visit(item, c.withNewIdx(idx));
+            this.visit(item, idx);
             idx++;
         }
     }
 
-    public void visit(NumberLit numberLit, Context c) {
+    public void visit(NumberLit numberLit) {
         //NumberBinarySuffix
         if (numberLit.getBinarySuffix() != null && numberLit.getBinarySuffix().isPresent())
-            visit(numberLit.getBinarySuffix().get(), c.withNewIdx(0));
+            visit(numberLit.getBinarySuffix().get());
 
         //NumberLitValue
-        visit(numberLit.getValue(), c);
+        visit(numberLit.getValue());
     }
 
-    public void visit(StringLit stringLit, Context c) {
-        this.trapWriter.addTuple("literals", trapWriter.freshLabel(), 3, c.current, stringLit.getValue());
+    public void visit(StringLit stringLit) {
+        tuples.begin("literals").label(trapWriter.freshLabel()).integer(3).label(stack.current()).string(stringLit.getValue()).end();
     }
 
 
-    public void visit(ConfigEntry configEntry, Context c) {
-        this.trapWriter.addTuple("configentrys", c.current, c.parent, c.childIndex);
+    public void visit(ConfigEntry configEntry) {
+        tuples.begin("configentrys").label(stack.current()).label(stack.parent()).integer(stack.childIndex()).end();
 
         //Expr
-        visit(configEntry.getKey(), c.withNewIdx(0));
-        visit(configEntry.getValue(), c.withNewIdx(1));
+        visit(configEntry.getKey(), 0);
+        visit(configEntry.getValue(), 1);
 
         //op
-        visit(configEntry.getOperation(), c.withNewIdx(0));
+        defer(Task.CONFIG_ENTRY_OPERATION, configEntry.getOperation(), 0);
     }
 
-    public void visit(NumberBinarySuffix suffix, Context c) {
-        this.trapWriter.addTuple("numberbinarysuffixs", trapWriter.freshLabel(), suffix.value(), c.parent);
+    public void visit(NumberBinarySuffix suffix) {
+        tuples.begin("numberbinarysuffixs").label(trapWriter.freshLabel()).string(suffix.value()).label(stack.parent()).end();
     }
 
-    public void visit(NumberLitValue numberLitValue, Context c) {
+    public void visit(NumberLitValue numberLitValue) {
         String value;
         int kind;
         switch (numberLitValue) {
@@ -338,22 +856,22 @@ public class KclExtractor implements IExtractor {
             default -> throw new RuntimeException(numberLitValue.toString());
         }
 //        Label label = ;
-        this.trapWriter.addTuple("literals", trapWriter.freshLabel(), kind, c.current, value);
-//        this.locationManager.emitNodeLocation(c.current, label);
+        tuples.begin("literals").label(trapWriter.freshLabel()).integer(kind).label(stack.current()).string(value).end();
+//        this.locationManager.emitNodeLocation(stack.current(), label);
     }
 
-    public void visit(ConfigEntryOperation op, Context c) {
+    public void visit(ConfigEntryOperation op) {
         Label opLabel = this.trapWriter.freshLabel();
         int kind = switch (op) {
             case Union -> 0;
             case Override -> 1;
             case Insert -> 2;
         };
-        this.trapWriter.addTuple("configentry_operation", opLabel, kind, op.symbol(), c.current);
+        tuples.begin("configentry_operation").label(opLabel).integer(kind).string(op.symbol()).label(stack.current()).end();
     }
 
 
-    public Label visit(BasicType type, Context c) {
+    public Label visit(BasicType type) {
         int kind = switch (type.getValue()) {
             case Bool -> 2;
             case Int -> 3;
@@ -361,20 +879,24 @@ public class KclExtractor implements IExtractor {
             case Str -> 5;
         };
 
+        Label current = stack.current();
         Label stringLable = trapWriter.freshLabel();
-        this.visit(type.getValue().toString(), new Context(c.current, stringLable, 0));
-        this.trapWriter.addTuple("types", c.current, kind, stringLable, c.parent, c.childIndex, type.getValue().toString());
-        return c.current;
+        stack.push(current, stringLable, 0, null);
+        this.visit(type.getValue().toString());
+        stack.pop();
+        tuples.begin("types").label(current).integer(kind).label(stringLable).label(stack.parent()).integer(stack.childIndex())
+                .string(type.getValue().toString()).end();
+        return current;
     }
 
-    public void visit(Type type, Context c) {
+    public void visit(Type type) {
         switch (type) {
-            case BasicType basicType -> this.visit(basicType, c);
+            case BasicType basicType -> this.visit(basicType);
             default -> throw new RuntimeException(type.toString());
         }
     }
 
-    public void visit(AugOp op, Context c) {
+    public void visit(AugOp op) {
         if (op == null) {
             return;
         }
@@ -394,113 +916,217 @@ public class KclExtractor implements IExtractor {
             case BitAnd -> 10;
             case BitOr -> 11;
         };
-        this.trapWriter.addTuple("augops", augOp, kind, c.parent, op.symbol());
+        tuples.begin("augops").label(augOp).integer(kind).label(stack.parent()).string(op.symbol()).end();
     }
 
 
-    public void visit(Identifier identifier, Context c) {
-        this.trapWriter.addTuple("identifiers", c.current, c.parent, c.childIndex, identifier.getName());
-        try {
-            String astID = c.getNodeId(c.current);
-            Spec.Symbol identSymbol = SematicUtil.findSymbolByAstId(this.specResult, astID);
-            if (identSymbol != null && identSymbol.hasTy()) {
-                String schemaFullName = identSymbol.getTy().getPkgPath() + "." + identSymbol.getTy().getSchemaName();
-                Spec.Symbol appConfigSymbol = SematicUtil.findSymbol(specResult,
-                        specResult.getFullyQualifiedNameMapOrDefault(schemaFullName, null));
-                String nameId = SematicUtil.findNodeBySymbol(this.specResult, appConfigSymbol.getDef());
-                String schemaId = this.parseResult.getSchemaMap().get(nameId);
-                Node<?> schemaNode = this.parseResult.getNodeMap().get(schemaId);
-                this.trapWriter.addTuple("schemas", c.current, this.trapWriter.globalID(schemaNode.getId()));
-            }
-
-
-        } catch (Exception e) {
-            e.printStackTrace();
+    public void visit(Identifier identifier) {
+        Label current = stack.current();
+        tuples.begin("identifiers").label(current).label(stack.parent()).integer(stack.childIndex()).string(identifier.getName()).end();
+        SemanticIndex index = this.parseResult.getSemanticIndex();
+        String schemaName = index.typeSchemaNameOf(stack.nodeId());
+        if (schemaName != null) {
+            SchemaCatalogue.Schema schema = schemaCatalogue.lookup(parseResult.getProgram().getRoot(),
+                    parseResult.getPackageDirectory(), schemaName, index);
+            if (schema != null) tuples.begin("schemas").label(current).label(schemaLabel(schema.trapKey(), schema.file())).end();
         }
 
         //String
-        this.visit(identifier.getPkgpath(), new Context(c.current, trapWriter.freshLabel(), 1));
+        stack.push(current, trapWriter.freshLabel(), 1, null);
+        this.visit(identifier.getPkgpath());
+        stack.pop();
 
         //ExprContext
-        this.visit(identifier.getCtx(), new Context(c.current, trapWriter.freshLabel(), 1));
+        stack.push(current, trapWriter.freshLabel(), 1, null);
+        this.visit(identifier.getCtx());
+        stack.pop();
     }
 
-    public void visit(String node, Context c) {
+    public void visit(String node) {
         if (node == null) {
             return;
         }
-        this.trapWriter.addTuple("strings", c.current, c.parent, c.childIndex, node);
+        tuples.begin("strings").label(stack.current()).label(stack.parent()).integer(stack.childIndex()).string(node).end();
     }
 
-    public void visit(ExprContext exprContext, Context c) {
+    public void visit(ExprContext exprContext) {
         int kind = switch (exprContext) {
             case Load -> 0;
             case Store -> 1;
         };
-        this.trapWriter.addTuple("expr_contexts", c.current, kind, c.parent);
+        tuples.begin("expr_contexts").label(stack.current()).integer(kind).label(stack.parent()).end();
     }
 
-    public void visit(Keyword keyword, Context c) {
-        this.trapWriter.addTuple("keywords", c.current, c.childIndex);
+    public void visit(Keyword keyword) {
+        tuples.begin("keywords").label(stack.current()).integer(stack.childIndex()).end();
 
-        visit(keyword.getArg(), c.withNewIdx(0));
-        visit(keyword.getValue(), c.withNewIdx(0));
+        visit(keyword.getArg(), 0);
+        visit(keyword.getValue(), 0);
     }
 
-    private static class Context {
-        private final TrapWriter.Label parent;
-        private final TrapWriter.Label current;
-        private final int childIndex;
-        private final Map<Label, String> labelInfo = new HashMap<>();
+    /**
+     * The kinds of task on the work list.
+     */
+    private enum Task {
+        MODULE, COMMENTS, NODE, LEAVE_NODE, LIST, AUG_OP, CONFIG_ENTRY_OPERATION
+    }
 
-        public Context(Label parent, int childIndex) {
-            this.parent = parent;
-            this.childIndex = childIndex;
-            this.current = null;
+    /**
+     * The work list of the extractor: a stack of tasks, each consisting of the task to run, the
+     * object to run it on and the frame to run it in (cf. {@link TraversalStack}), stored in parallel
+     * arrays.
+     */
+    private static final class WorkList {
+        private Task[] tasks = new Task[64];
+        private Object[] objects = new Object[64];
+        private Label[] parents = new Label[64];
+        private Label[] currents = new Label[64];
+        private int[] childIndices = new int[64];
+        private String[] nodeIds = new String[64];
+        private int size;
+
+        private void push(Task task, Object object, Label parent, Label current, int childIndex, String nodeId) {
+            if (size == tasks.length) {
+                int capacity = 2 * tasks.length;
+                tasks = Arrays.copyOf(tasks, capacity);
+                objects = Arrays.copyOf(objects, capacity);
+                parents = Arrays.copyOf(parents, capacity);
+                currents = Arrays.copyOf(currents, capacity);
+                childIndices = Arrays.copyOf(childIndices, capacity);
+                nodeIds = Arrays.copyOf(nodeIds, capacity);
+            }
+            tasks[size] = task;
+            objects[size] = object;
+            parents[size] = parent;
+            currents[size] = current;
+            childIndices[size] = childIndex;
+            nodeIds[size] = nodeId;
+            ++size;
         }
 
-        public Context(Label parent, Label current, int childIndex) {
-            this.parent = parent;
-            this.current = current;
-            this.childIndex = childIndex;
+        private void pop() {
+            --size;
+            objects[size] = null;
+            parents[size] = null;
+            currents[size] = null;
+            nodeIds[size] = null;
         }
 
-        public Context withNewIdx(int childIndex) {
-            return new Context(this.parent, this.current, childIndex);
+        private boolean isEmpty() {
+            return size == 0;
         }
 
-        public void pushLableInfo(Label label, String id) {
-            this.labelInfo.put(label, id);
+        private int size() {
+            return size;
         }
 
-        public String getNodeId(Label label) {
-            return this.labelInfo.get(label);
+        private Task task() {
+            return tasks[size - 1];
         }
 
-//        public Context(Label parent, int childIndex, IdContext idcontext, int kind) {
-//            this(parent, childIndex, idcontext, kind, false);
-//        }
-//
-//        public Context(Label parent, int childIndex, IdContext idcontext, int kind, boolean binopOperand) {
-//            this.parent = parent;
-//            this.childIndex = childIndex;
-//            this.idcontext = idcontext;
-//            this.binopOperand = binopOperand;
-//        }
+        private Object object() {
+            return objects[size - 1];
+        }
+
+        private Label parent() {
+            return parents[size - 1];
+        }
+
+        private Label current() {
+            return currents[size - 1];
+        }
+
+        private int childIndex() {
+            return childIndices[size - 1];
+        }
+
+        private String nodeId() {
+            return nodeIds[size - 1];
+        }
 
         /**
-         * True if the visited AST node occurs as part of a type annotation.
+         * Reverse the order of the tasks from index {@code from} to the top.
          */
-//        public boolean isInsideType() {
-//            return idcontext.isInsideType();
-//        }
+        private void reverseFrom(int from) {
+            for (int i = from, j = size - 1; i < j; ++i, --j) {
+                swap(tasks, i, j);
+                swap(objects, i, j);
+                swap(parents, i, j);
+                swap(currents, i, j);
+                swap(nodeIds, i, j);
+                int childIndex = childIndices[i];
+                childIndices[i] = childIndices[j];
+                childIndices[j] = childIndex;
+            }
+        }
+
+        private static <T> void swap(T[] array, int i, int j) {
+            T tmp = array[i];
+            array[i] = array[j];
+            array[j] = tmp;
+        }
+    }
+
+    /**
+     * The traversal stack of the extractor.
+     *
+     * <p>Each frame records the label of the parent of the node being visited, the label of the node
+     * itself, its index among its siblings and the ID of the AST node it stems from (if any). The
+     * frames are stored in parallel arrays that are reused for the whole extraction, so descending
+     * into a node does not allocate.
+     *
+     * <p>Since children are visited through the {@link WorkList} rather than recursively, the stack
+     * only ever holds the frame of the task being run, that of the node it visits and those of the
+     * leaves visited directly by the latter.
+     */
+    private static final class TraversalStack {
+        private Label[] parents = new Label[64];
+        private Label[] currents = new Label[64];
+        private int[] childIndices = new int[64];
+        private String[] nodeIds = new String[64];
+        private int top = -1;
+
+        private void push(Label parent, Label current, int childIndex, String nodeId) {
+            if (++top == parents.length) {
+                int capacity = 2 * parents.length;
+                parents = Arrays.copyOf(parents, capacity);
+                currents = Arrays.copyOf(currents, capacity);
+                childIndices = Arrays.copyOf(childIndices, capacity);
+                nodeIds = Arrays.copyOf(nodeIds, capacity);
+            }
+            parents[top] = parent;
+            currents[top] = current;
+            childIndices[top] = childIndex;
+            nodeIds[top] = nodeId;
+        }
+
+        private void pop() {
+            // clear the frame so that it does not keep its labels alive
+            parents[top] = null;
+            currents[top] = null;
+            nodeIds[top] = null;
+            --top;
+        }
+
+        private Label parent() {
+            return parents[top];
+        }
+
+        private Label current() {
+            return currents[top];
+        }
+
+        private int childIndex() {
+            return childIndices[top];
+        }
 
         /**
-         * True if the visited AST node occurs as one of the operands of a binary operation.
+         * Returns the ID of the AST node the current frame stems from, or {@code null} if it does not
+         * stem from an AST node.
          */
-//        public boolean isBinopOperand() {
-//            return binopOperand;
-//        }
+        private String nodeId() {
+            return nodeIds[top];
+        }
     }
 
 //    private void emitNodeSymbol(String def, Label key) {
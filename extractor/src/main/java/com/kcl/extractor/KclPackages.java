@@ -0,0 +1,114 @@
+package com.kcl.extractor;
+
+import com.kcl.parser.ApiPool;
+import com.kcl.parser.KclAstParser;
+import com.kcl.parser.KclAstParser.ParseResult;
+import com.kcl.parser.ParseCache;
+import com.semmle.util.exception.Exceptions;
+
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Groups the files to extract by KCL package, so that each package is loaded and resolved only once.
+ *
+ * <p>A KCL package is a directory; all {@code .k} files directly inside it are loaded together with a
+ * single call to the KCL resolver, and the result is shared by the extractions of those files. The
+ * shared result is dropped again once every file of the package has been extracted (cf. {@link
+ * #release(Path)}).
+ *
+ * <p>If resolving a package as a whole fails, its files fall back to being parsed one at a time, so a
+ * single broken file cannot prevent its siblings from being extracted.
+ *
+ * <p>Files that were never {@linkplain #register(Collection) registered} are parsed on their own.
+ */
+public class KclPackages {
+    private final ConcurrentHashMap<Path, Package> packages = new ConcurrentHashMap<>();
+
+    /**
+     * Register the files that are going to be extracted, grouping them into packages.
+     */
+    public void register(Collection<Path> files) {
+        Map<Path, List<Path>> byDirectory = new LinkedHashMap<>();
+        for (Path file : files) byDirectory.computeIfAbsent(file.getParent(), k -> new ArrayList<>()).add(file);
+        for (List<Path> paths : byDirectory.values()) {
+            Package pkg = new Package(paths);
+            for (Path path : paths) packages.put(path, pkg);
+        }
+    }
+
+    /**
+     * Returns the parse result to use for extracting {@code file}, resolving its package first if that
+     * has not happened yet.
+     */
+    public ParseResult acquire(Path file, ApiPool apiPool, ParseCache parseCache, ExtractionMetrics metrics) throws Exception {
+        Package pkg = packages.get(file);
+        if (pkg != null) {
+            ParseResult result = pkg.parse(apiPool, parseCache, metrics);
+            if (result != null) return result;
+        }
+        return KclAstParser.parse(List.of(file), apiPool, parseCache, metrics);
+    }
+
+    /**
+     * Returns the files that are loaded together with {@code file}, including {@code file} itself.
+     */
+    public List<Path> inputsOf(Path file) {
+        Package pkg = packages.get(file);
+        return pkg != null ? pkg.files : List.of(file);
+    }
+
+    /**
+     * Signal that extraction of {@code file} is done, whether or not it succeeded. This must be called
+     * exactly once for every registered file.
+     */
+    public void release(Path file) {
+        Package pkg = packages.get(file);
+        if (pkg != null) pkg.release();
+    }
+
+    /**
+     * Returns true if {@code file} has been registered for extraction.
+     */
+    public boolean isRegistered(Path file) {
+        return packages.containsKey(file);
+    }
+
+    private static class Package {
+        private final List<Path> files;
+        private final AtomicInteger remaining;
+        private ParseResult result;
+        private boolean failed;
+
+        private Package(List<Path> files) {
+            this.files = files;
+            this.remaining = new AtomicInteger(files.size());
+        }
+
+        /**
+         * Returns the shared parse result for this package, or {@code null} if the package could not
+         * be resolved as a whole.
+         */
+        private synchronized ParseResult parse(ApiPool apiPool, ParseCache parseCache, ExtractionMetrics metrics) {
+            if (result == null && !failed) {
+                try {
+                    result = KclAstParser.parse(files, apiPool, parseCache, metrics);
+                } catch (Exception e) {
+                    Exceptions.ignore(e, "Fall back to parsing the files of the package one at a time.");
+                    failed = true;
+                }
+            }
+            return result;
+        }
+
+        private void release() {
+            if (remaining.decrementAndGet() == 0) {
+                synchronized (this) {
+                    result = null;
+                }
+            }
+        }
+    }
+}
@@ -97,7 +97,8 @@ public class LexicalExtractor {
 //      }
 //    }
 
-        trapwriter.addTuple("numlines", key, num_lines, num_code, num_comment);
+        locationManager.getTupleEncoder().begin("numlines").label(key)
+                .integer(num_lines).integer(num_code).integer(num_comment).end();
         return new ParseResultInfo(num_code, num_comment, Collections.emptyList());
     }
 
@@ -0,0 +1,133 @@
+package com.kcl.extractor;
+
+import java.util.Arrays;
+
+/**
+ * An index of the lines of a source file, built in a single pass over the source.
+ *
+ * <p>Lines are delimited by any of the terminators {@code \n}, {@code \r\n}, {@code \r}, U+2028
+ * and U+2029, matching {@link TextualExtractor}'s notion of a line. The line
+ * numbers reported by kcl-lib, however, only count {@code \n}, so the index also records the
+ * offsets of those, which are used to translate node positions into source offsets.
+ */
+public class LineIndex {
+    private final String source;
+
+    /**
+     * The offset at which each line starts; there is one more entry than there are line terminators,
+     * the last of which is the start of the (possibly empty) unterminated tail of the source.
+     */
+    private final int[] lineStarts;
+
+    /**
+     * The offset at which the content of each line ends, that is, where its terminator starts.
+     */
+    private final int[] contentEnds;
+
+    /**
+     * The offset at which each {@code \n}-delimited line starts.
+     */
+    private final int[] newlineStarts;
+
+    public LineIndex(String source) {
+        this.source = source;
+        int n = source.length();
+        int[] starts = new int[16], ends = new int[16], newlines = new int[16];
+        int lines = 0, newlineCount = 0;
+        starts[0] = 0;
+        newlines[0] = 0;
+        for (int i = 0; i < n; ++i) {
+            char c = source.charAt(i);
+            if (c != '\n' && c != '\r' && c != '\u2028' && c != '\u2029') continue;
+            int end = i;
+            if (c == '\r' && i + 1 < n && source.charAt(i + 1) == '\n') ++i;
+            if (lines + 1 == starts.length) {
+                starts = Arrays.copyOf(starts, 2 * starts.length);
+                ends = Arrays.copyOf(ends, 2 * ends.length);
+            }
+            ends[lines++] = end;
+            starts[lines] = i + 1;
+            if (source.charAt(i) == '\n') {
+                if (newlineCount + 1 == newlines.length) newlines = Arrays.copyOf(newlines, 2 * newlines.length);
+                newlines[++newlineCount] = i + 1;
+            }
+        }
+        ends[lines] = n;
+        this.lineStarts = Arrays.copyOf(starts, lines + 1);
+        this.contentEnds = Arrays.copyOf(ends, lines + 1);
+        this.newlineStarts = Arrays.copyOf(newlines, newlineCount + 1);
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * Returns the number of line terminators in the source.
+     */
+    public int getNumTerminators() {
+        return lineStarts.length - 1;
+    }
+
+    /**
+     * Returns the number of lines in the source, not counting an empty tail after the last
+     * terminator.
+     */
+    public int getNumLines() {
+        int terminated = getNumTerminators();
+        return lineStarts[terminated] < source.length() ? terminated + 1 : terminated;
+    }
+
+    /**
+     * Returns the offset at which the given (0-based) line starts.
+     */
+    public int getLineStart(int line) {
+        return lineStarts[line];
+    }
+
+    /**
+     * Returns the offset at which the content of the given (0-based) line ends, excluding its
+     * terminator.
+     */
+    public int getContentEnd(int line) {
+        return contentEnds[line];
+    }
+
+    /**
+     * Returns the terminator of the given (0-based) line, or the empty string for the unterminated
+     * tail.
+     */
+    public String getTerminator(int line) {
+        if (line == getNumTerminators()) return "";
+        int start = contentEnds[line];
+        return switch (source.charAt(start)) {
+            case '\n' -> "\n";
+            case '\r' -> lineStarts[line + 1] - start == 2 ? "\r\n" : "\r";
+            case '\u2028' -> "\u2028";
+            default -> "\u2029";
+        };
+    }
+
+    /**
+     * Returns the number of {@code \n}-delimited lines, including an empty tail after the last
+     * {@code \n}.
+     */
+    public int getNumNewlineLines() {
+        return newlineStarts.length;
+    }
+
+    /**
+     * Returns the offset at which the given (0-based) {@code \n}-delimited line starts.
+     */
+    public int getNewlineLineStart(int line) {
+        return newlineStarts[line];
+    }
+
+    /**
+     * Returns the length of the given (0-based) {@code \n}-delimited line, excluding the {@code \n}.
+     */
+    public int getNewlineLineLength(int line) {
+        int end = line + 1 < newlineStarts.length ? newlineStarts[line + 1] - 1 : source.length();
+        return end - newlineStarts[line];
+    }
+}
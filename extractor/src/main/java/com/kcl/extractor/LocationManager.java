@@ -7,8 +7,6 @@ import com.semmle.util.trap.TrapWriter;
 import com.semmle.util.trap.TrapWriter.Label;
 
 import java.io.File;
-import java.util.LinkedHashSet;
-import java.util.Set;
 
 /**
  * This class handles location information; in particular, it translates locations reported by the
@@ -18,7 +16,8 @@ public class LocationManager {
     private final File sourceFile;
     private final TrapWriter trapWriter;
     private final Label fileLabel;
-    private final Set<String> locationDefaultEmitted = new LinkedHashSet<String>();
+    private final TupleEncoder tuples;
+    private final LocationLabels locationDefaultEmitted = new LocationLabels();
     private int startColumn;
     private int startLine;
     private String hasLocation = "hasLocation";
@@ -27,6 +26,7 @@ public class LocationManager {
         this.sourceFile = sourceFile;
         this.trapWriter = trapWriter;
         this.fileLabel = fileLabel;
+        this.tuples = new TupleEncoder(trapWriter);
         this.startLine = 1;
         this.startColumn = 1;
     }
@@ -35,10 +35,23 @@ public class LocationManager {
         this.sourceFile = other.sourceFile;
         this.trapWriter = other.trapWriter;
         this.fileLabel = other.fileLabel;
+        this.tuples = new TupleEncoder(trapWriter);
         this.startLine = other.startLine;
         this.startColumn = other.startColumn;
     }
 
+    /**
+     * Returns a location manager for the same source file and starting point that emits locations
+     * into {@code trapWriter} instead, having populated the file there.
+     */
+    public LocationManager forTrapWriter(TrapWriter trapWriter) {
+        LocationManager copy = new LocationManager(sourceFile, trapWriter, trapWriter.populateFile(sourceFile));
+        copy.startLine = startLine;
+        copy.startColumn = startColumn;
+        copy.hasLocation = hasLocation;
+        return copy;
+    }
+
     /**
      * Returns a copy of this location manager whose locations are relative to the
      * given 1-based line and column numbers (which themselves are relative to this location manager's
@@ -71,6 +84,13 @@ public class LocationManager {
         return fileLabel;
     }
 
+    /**
+     * Returns the encoder for writing tuples to {@link #getTrapWriter()}.
+     */
+    public TupleEncoder getTupleEncoder() {
+        return tuples;
+    }
+
     public int getStartLine() {
         return startLine;
     }
@@ -135,9 +155,7 @@ public class LocationManager {
      * @param ec  end column (1-based, inclusive)
      */
     public void emitSnippetLocation(Label lbl, int sl, int sc, int el, int ec) {
-        Position start = translatePosition(new Position(sl, sc, -1));
-        Position end = translatePosition(new Position(el, ec, -1));
-        emitFileLocation(lbl, start.getLine(), start.getColumn(), end.getLine(), end.getColumn());
+        emitFileLocation(lbl, translateLine(sl), translateColumn(sl, sc), translateLine(el), translateColumn(el, ec));
     }
 
     /**
@@ -145,7 +163,7 @@ public class LocationManager {
      */
     public void emitFileLocation(Label lbl, int sl, int sc, int el, int ec) {
         Label locLabel = emitLocationsDefault(sl, sc, el, ec);
-        trapWriter.addTuple(hasLocation, lbl, locLabel);
+        tuples.begin(hasLocation).label(lbl).label(locLabel).end();
     }
 
     /**
@@ -153,9 +171,15 @@ public class LocationManager {
      * performed.
      */
     public Label emitLocationsDefault(int sl, int sc, int el, int ec) {
-        Label locLabel = trapWriter.location(fileLabel, sl, sc, el, ec);
-        if (locationDefaultEmitted.add(locLabel.toString()))
-            trapWriter.addTuple("locations_default", locLabel, fileLabel, sl, sc, el, ec);
+        long start = LocationLabels.pack(sl, sc), end = LocationLabels.pack(el, ec);
+        int slot = locationDefaultEmitted.slot(start, end);
+        Label locLabel = locationDefaultEmitted.labelAt(slot);
+        if (locLabel == null) {
+            locLabel = trapWriter.location(fileLabel, sl, sc, el, ec);
+            locationDefaultEmitted.insert(slot, start, end, locLabel);
+            tuples.begin("locations_default").label(locLabel).label(fileLabel)
+                    .integer(sl).integer(sc).integer(el).integer(ec).end();
+        }
         return locLabel;
     }
 
@@ -174,9 +198,75 @@ public class LocationManager {
      * Translate a relative position into an absolute position.
      */
     public Position translatePosition(Position p) {
-        int line = p.getLine(), column = p.getColumn();
-        if (line == 1) column += startColumn - 1;
-        line += startLine - 1;
-        return new Position(line, column, -1);
+        return new Position(translateLine(p.getLine()), translateColumn(p.getLine(), p.getColumn()), -1);
+    }
+
+    private int translateLine(int line) {
+        return line + startLine - 1;
+    }
+
+    private int translateColumn(int line, int column) {
+        return line == 1 ? column + startColumn - 1 : column;
+    }
+
+    /**
+     * The labels of the locations emitted so far, keyed by their coordinates.
+     *
+     * <p>This is an open-addressing hash table with linear probing, whose keys are the start and end
+     * positions of a location each packed into a {@code long}, so that looking up a location that has
+     * already been emitted does not allocate.
+     */
+    private static final class LocationLabels {
+        private long[] keys = new long[2 * 256];
+        private Label[] labels = new Label[256];
+        private int size;
+
+        static long pack(int line, int column) {
+            return (long) line << 32 | column & 0xffffffffL;
+        }
+
+        private static int hash(long start, long end) {
+            long h = (start * 0x9e3779b97f4a7c15L) ^ end;
+            h *= 0xc2b2ae3d27d4eb4fL;
+            return (int) (h ^ h >>> 32);
+        }
+
+        /**
+         * Returns the slot holding the given location, or the empty slot it should be inserted into.
+         */
+        int slot(long start, long end) {
+            int mask = labels.length - 1;
+            for (int i = hash(start, end) & mask; ; i = i + 1 & mask) {
+                if (labels[i] == null || keys[2 * i] == start && keys[2 * i + 1] == end) return i;
+            }
+        }
+
+        Label labelAt(int slot) {
+            return labels[slot];
+        }
+
+        /**
+         * Insert a location into the empty slot returned by {@link #slot}.
+         */
+        void insert(int slot, long start, long end, Label label) {
+            keys[2 * slot] = start;
+            keys[2 * slot + 1] = end;
+            labels[slot] = label;
+            if (2 * ++size > labels.length) grow();
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            Label[] oldLabels = labels;
+            keys = new long[2 * oldKeys.length];
+            labels = new Label[2 * oldLabels.length];
+            for (int i = 0; i < oldLabels.length; ++i) {
+                if (oldLabels[i] == null) continue;
+                int slot = slot(oldKeys[2 * i], oldKeys[2 * i + 1]);
+                keys[2 * slot] = oldKeys[2 * i];
+                keys[2 * slot + 1] = oldKeys[2 * i + 1];
+                labels[slot] = oldLabels[i];
+            }
+        }
     }
 }
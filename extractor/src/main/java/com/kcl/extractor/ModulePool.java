@@ -0,0 +1,145 @@
+package com.kcl.extractor;
+
+import com.semmle.util.exception.UserError;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+
+import static com.kcl.extractor.ExtractorOptionsUtil.readExtractorOption;
+
+/**
+ * A thread pool on which the modules of a single program are emitted in parallel, so that a file
+ * with many modules does not keep a single extraction thread busy while the others run out of
+ * work.
+ *
+ * <p>The modules are partitioned into contiguous chunks of roughly equal numbers of AST nodes; the
+ * partition only depends on the modules and the number of threads (in deterministic mode, only on
+ * the modules), so the output does not depend on how the chunks happen to be scheduled. Chunks
+ * never wait for other chunks, so they cannot starve the pool.
+ */
+public class ModulePool {
+    /**
+     * The default number of AST nodes below which the modules of a program are not split up.
+     */
+    public static final int DEFAULT_MIN_CHUNK_NODES = 50_000;
+
+    /**
+     * The maximum number of chunks per program in deterministic mode, where it does not depend on
+     * the number of threads.
+     */
+    static final int DETERMINISTIC_MAX_CHUNKS = 64;
+
+    /**
+     * The pool, or {@code null} if modules are emitted on the extraction threads.
+     */
+    private final ExecutorService pool;
+
+    private final int parallelism;
+    private final int minChunkNodes;
+
+    /**
+     * Whether programs are partitioned the same way whatever the number of threads; their chunks are
+     * emitted one after another if there are none.
+     */
+    private final boolean deterministic;
+
+    /**
+     * @param threads       the number of threads; if this is zero, modules are not emitted in
+     *                      parallel
+     * @param minChunkNodes the minimum number of AST nodes per chunk
+     * @param deterministic whether the partition of programs must not depend on the number of threads
+     */
+    public ModulePool(int threads, int minChunkNodes, boolean deterministic) {
+        this.parallelism = Math.max(threads, 1);
+        this.minChunkNodes = Math.max(minChunkNodes, 1);
+        this.deterministic = deterministic;
+        this.pool = threads > 0 ? Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "module-emission");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+    }
+
+    /**
+     * Build a pool as defined by the extractor options: the number of threads (by default, one per
+     * processor; 0 disables parallel emission) and the minimum number of AST nodes per chunk can be
+     * customised via the {@code module.threads} and {@code module.chunk} options.
+     */
+    public static ModulePool fromExtractorOptions() {
+        int threads = intOption("threads", Runtime.getRuntime().availableProcessors());
+        int minChunkNodes = intOption("chunk", DEFAULT_MIN_CHUNK_NODES);
+        return new ModulePool(threads, minChunkNodes, ExtractorOptionsUtil.isDeterministic());
+    }
+
+    private static int intOption(String name, int defaultValue) {
+        String value = readExtractorOption("module", name);
+        if (value == null) return defaultValue;
+        try {
+            int result = Integer.parseInt(value.trim());
+            if (result >= 0) return result;
+        } catch (NumberFormatException e) {
+            throw new UserError("Invalid module " + name + ": " + value, e);
+        }
+        throw new UserError("Invalid module " + name + ": " + value);
+    }
+
+    /**
+     * Partition {@code items} into contiguous chunks for parallel emission; the result is a single
+     * chunk if parallel emission is disabled or the items are too small to be worth splitting up.
+     */
+    public <T> List<List<T>> chunk(List<T> items, ToIntFunction<T> size) {
+        if (deterministic) return chunk(items, size, DETERMINISTIC_MAX_CHUNKS, minChunkNodes);
+        if (pool == null) return List.of(items);
+        return chunk(items, size, parallelism, minChunkNodes);
+    }
+
+    /**
+     * Partition {@code items} into at most {@code maxChunks} contiguous chunks whose total sizes are
+     * as equal as a greedy cut allows, and, if there is more than one chunk, at least {@code
+     * minChunkSize}.
+     */
+    static <T> List<List<T>> chunk(List<T> items, ToIntFunction<T> size, int maxChunks, int minChunkSize) {
+        long total = 0;
+        for (T item : items) total += size.applyAsInt(item);
+        int chunks = (int) Math.max(1, Math.min(Math.min(maxChunks, items.size()), total / minChunkSize));
+        if (chunks == 1) return List.of(items);
+
+        List<List<T>> result = new ArrayList<>(chunks);
+        long target = (total + chunks - 1) / chunks, current = 0;
+        int start = 0;
+        for (int i = 0; i < items.size(); ++i) {
+            current += size.applyAsInt(items.get(i));
+            if (current >= target && result.size() < chunks - 1 && i + 1 < items.size()) {
+                result.add(items.subList(start, i + 1));
+                start = i + 1;
+                current = 0;
+            }
+        }
+        result.add(items.subList(start, items.size()));
+        return result;
+    }
+
+    /**
+     * Run {@code task} on the pool, or right away if there is none.
+     */
+    public <T> CompletableFuture<T> submit(Supplier<T> task) {
+        if (pool != null) return CompletableFuture.supplyAsync(task, pool);
+        try {
+            return CompletableFuture.completedFuture(task.get());
+        } catch (RuntimeException | Error e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Stop the threads once all pending work has been done.
+     */
+    public void shutdown() {
+        if (pool != null) pool.shutdown();
+    }
+}
@@ -0,0 +1,205 @@
+package com.kcl.extractor;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * An output stream that gzip-compresses its data in blocks on a shared thread pool.
+ *
+ * <p>Every block is compressed into a gzip member of its own, and the members are written to the
+ * underlying stream in order. A sequence of gzip members is itself a valid gzip file (RFC 1952),
+ * which decompresses to the concatenation of the blocks; this is what allows TRAP files to be
+ * appended to one another, too.
+ *
+ * <p>Only a bounded number of blocks per stream are compressed at the same time, so a writer that
+ * outpaces the pool waits for the oldest block to be written rather than buffering its whole
+ * output. A stream that never fills a block, as is the case for most TRAP files, is compressed on
+ * the writing thread when it is closed, without involving the pool.
+ *
+ * <p>The buffer for the first block starts small and grows as data is written to it, so that the
+ * many small TRAP files do not each allocate a whole block; only streams that have filled a block
+ * allocate further blocks at their full size.
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+
+    /**
+     * The deflaters of the compressing threads, reset before each use.
+     */
+    private static final ThreadLocal<Deflater> DEFLATERS = new ThreadLocal<>();
+
+    /**
+     * The initial size of the buffer for the first block.
+     */
+    private static final int INITIAL_BUFFER_SIZE = 8192;
+
+    private final OutputStream out;
+    /**
+     * The compression pool, or {@code null} if blocks are compressed on the writing thread.
+     */
+    private final ExecutorService pool;
+    private final int level;
+    private final int blockSize;
+    private final int maxPending;
+
+    /**
+     * The compressed members that have not been written yet, oldest first.
+     */
+    private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+
+    private byte[] block;
+    private int count;
+    private boolean closed;
+
+    /**
+     * @param out        the stream to write the compressed members to
+     * @param pool       the pool to compress blocks on, or {@code null} to compress them on the
+     *                   writing thread
+     * @param level      the compression level, as for {@link Deflater#setLevel(int)}
+     * @param blockSize  the number of uncompressed bytes per member
+     * @param maxPending the maximum number of blocks of this stream being compressed at once
+     */
+    public ParallelGzipOutputStream(OutputStream out, ExecutorService pool, int level, int blockSize, int maxPending) {
+        this.out = out;
+        this.pool = pool;
+        this.level = level;
+        this.blockSize = blockSize;
+        this.maxPending = Math.max(1, maxPending);
+        this.block = new byte[Math.min(blockSize, INITIAL_BUFFER_SIZE)];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (count == block.length) grow(count + 1);
+        block[count++] = (byte) b;
+        if (count == blockSize) submit();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        while (len > 0) {
+            int n = Math.min(len, blockSize - count);
+            if (count + n > block.length) grow(count + n);
+            System.arraycopy(b, off, block, count, n);
+            count += n;
+            off += n;
+            len -= n;
+            if (count == blockSize) submit();
+        }
+    }
+
+    /**
+     * Write the members that have been compressed so far and flush the underlying stream; the
+     * current block is not cut short, since that would only make the output larger.
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        while (!pending.isEmpty() && pending.peek().isDone()) out.write(await(pending.poll()));
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            if (count > 0) {
+                if (pending.isEmpty() || pool == null) {
+                    out.write(compress(block, count, level));
+                } else {
+                    byte[] last = block;
+                    int length = count;
+                    pending.add(pool.submit(() -> compress(last, length, level)));
+                }
+            }
+            while (!pending.isEmpty()) out.write(await(pending.poll()));
+        } finally {
+            pending.forEach(future -> future.cancel(false));
+            pending.clear();
+            block = null;
+            out.close();
+        }
+    }
+
+    /**
+     * Grow the buffer of the current block to hold at least {@code capacity} bytes, at most doubling
+     * its size at a time and never beyond the block size.
+     */
+    private void grow(int capacity) {
+        block = Arrays.copyOf(block, Math.min(blockSize, Math.max(capacity, 2 * block.length)));
+    }
+
+    private void submit() throws IOException {
+        if (pool == null) {
+            out.write(compress(block, count, level));
+            count = 0;
+            return;
+        }
+        byte[] full = block;
+        pending.add(pool.submit(() -> compress(full, blockSize, level)));
+        block = new byte[blockSize];
+        count = 0;
+        while (!pending.isEmpty() && (pending.size() > maxPending || pending.peek().isDone()))
+            out.write(await(pending.poll()));
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) throw new IOException("Stream closed");
+    }
+
+    private static byte[] await(Future<byte[]> member) throws IOException {
+        try {
+            return member.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing TRAP output");
+        } catch (ExecutionException e) {
+            throw new IOException("Could not compress TRAP output", e.getCause());
+        }
+    }
+
+    /**
+     * Compress the first {@code length} bytes of {@code data} into a complete gzip member.
+     */
+    static byte[] compress(byte[] data, int length, int level) {
+        Deflater deflater = DEFLATERS.get();
+        if (deflater == null) DEFLATERS.set(deflater = new Deflater(level, true));
+        deflater.reset();
+        deflater.setLevel(level);
+        deflater.setInput(data, 0, length);
+        deflater.finish();
+
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+
+        byte[] member = new byte[HEADER.length + length / 2 + 64];
+        System.arraycopy(HEADER, 0, member, 0, HEADER.length);
+        int size = HEADER.length;
+        while (!deflater.finished()) {
+            if (size == member.length) member = Arrays.copyOf(member, 2 * member.length);
+            size += deflater.deflate(member, size, member.length - size);
+        }
+        if (member.length < size + 8) member = Arrays.copyOf(member, size + 8);
+        writeIntLE(member, size, (int) crc.getValue());
+        writeIntLE(member, size + 4, length);
+        return Arrays.copyOf(member, size + 8);
+    }
+
+    private static void writeIntLE(byte[] b, int off, int value) {
+        b[off] = (byte) value;
+        b[off + 1] = (byte) (value >>> 8);
+        b[off + 2] = (byte) (value >>> 16);
+        b[off + 3] = (byte) (value >>> 24);
+    }
+}
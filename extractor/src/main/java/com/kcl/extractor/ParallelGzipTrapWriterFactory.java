@@ -0,0 +1,125 @@
+package com.kcl.extractor;
+
+import com.semmle.util.exception.UserError;
+import com.semmle.util.trap.TrapWriter;
+import com.semmle.util.trap.TrapWriterFactory;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+
+import static com.kcl.extractor.ExtractorOptionsUtil.readExtractorOption;
+
+/**
+ * A trap writer factory whose trap writers compress their output on a thread pool shared by all of
+ * them, rather than on the extracting thread, and leave writing it to a {@link WriteBehind} stage.
+ *
+ * <p>Trap files are located by another factory. Those that are gzip-compressed are written as a
+ * sequence of independently compressed gzip members (see {@link ParallelGzipOutputStream}), so
+ * the compression of a single large file is spread over the pool; the others are written as they
+ * would be otherwise.
+ */
+public class ParallelGzipTrapWriterFactory implements TrapWriterFactory {
+    /**
+     * The default number of uncompressed bytes per gzip member.
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+    private final TrapWriterFactory delegate;
+
+    /**
+     * The compression pool, or {@code null} if compression happens on the extracting threads.
+     */
+    private final ExecutorService pool;
+
+    private final int threads;
+    private final int level;
+    private final int blockSize;
+    private final WriteBehind writeBehind;
+
+    /**
+     * Whether gzip-compressed trap files are always written as sequences of members, even if they
+     * are compressed and written by the trap writers themselves, so that their bytes do not depend on
+     * the number of threads.
+     */
+    private final boolean deterministic;
+
+    /**
+     * @param delegate  the factory locating the trap files
+     * @param threads   the number of compression threads; if this is zero, trap files are
+     *                  compressed by the trap writers themselves
+     * @param level     the compression level, as for {@link Deflater#setLevel(int)}
+     * @param blockSize the number of uncompressed bytes per gzip member
+     * @param writeBehind the stage writing the compressed output
+     * @param deterministic whether the compressed output must not depend on the number of threads
+     */
+    public ParallelGzipTrapWriterFactory(TrapWriterFactory delegate, int threads, int level, int blockSize,
+            WriteBehind writeBehind, boolean deterministic) {
+        this.delegate = delegate;
+        this.writeBehind = writeBehind;
+        this.deterministic = deterministic;
+        this.threads = threads;
+        this.level = level;
+        this.blockSize = blockSize;
+        this.pool = threads > 0 ? Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "trap-compression");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+    }
+
+    /**
+     * Build a factory as defined by the extractor options: the number of compression threads
+     * (by default, one per processor), the compression level (0-9) and the block size in
+     * kilobytes can be customised via the {@code trap.compression.threads}, {@code
+     * trap.compression.level} and {@code trap.compression.block} options.
+     */
+    public static ParallelGzipTrapWriterFactory fromExtractorOptions(TrapWriterFactory delegate, WriteBehind writeBehind) {
+        int threads = intOption("threads", Runtime.getRuntime().availableProcessors(), 0, 1024);
+        int level = intOption("level", Deflater.DEFAULT_COMPRESSION, 0, 9);
+        int blockSize = intOption("block", DEFAULT_BLOCK_SIZE / 1024, 64, 64 * 1024) * 1024;
+        return new ParallelGzipTrapWriterFactory(delegate, threads, level, blockSize, writeBehind,
+                ExtractorOptionsUtil.isDeterministic());
+    }
+
+    private static int intOption(String name, int defaultValue, int min, int max) {
+        String value = readExtractorOption("trap", "compression", name);
+        if (value == null) return defaultValue;
+        try {
+            int result = Integer.parseInt(value.trim());
+            if (result >= min && result <= max) return result;
+        } catch (NumberFormatException e) {
+            throw new UserError("Invalid TRAP compression " + name + ": " + value, e);
+        }
+        throw new UserError("Invalid TRAP compression " + name + ": " + value);
+    }
+
+    @Override
+    public File getTrapFileFor(File f) {
+        return delegate.getTrapFileFor(f);
+    }
+
+    @Override
+    public TrapWriter mkTrapWriter(File f) {
+        File trapFile = getTrapFileFor(f);
+        if (pool == null && writeBehind.isSynchronous() && !deterministic || !trapFile.getName().endsWith(".gz"))
+            return new EncodingTrapWriter(trapFile);
+        return new EncodingTrapWriter(trapFile, this::compress, writeBehind);
+    }
+
+    /**
+     * Returns a stream compressing into {@code out} on the pool, if any.
+     */
+    public OutputStream compress(OutputStream out) {
+        return new ParallelGzipOutputStream(out, pool, level, blockSize, 2 * threads);
+    }
+
+    /**
+     * Stop the compression threads once all pending work has been done.
+     */
+    public void shutdown() {
+        if (pool != null) pool.shutdown();
+    }
+}
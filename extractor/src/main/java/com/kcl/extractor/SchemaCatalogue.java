@@ -0,0 +1,77 @@
+package com.kcl.extractor;
+
+import com.kcl.ast.Node;
+import com.kcl.parser.SemanticIndex;
+
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.kcl.parser.KclAstParser.modulePath;
+
+/**
+ * A run-wide catalogue of the schemas that have been resolved so far, shared by all extraction
+ * threads.
+ *
+ * <p>Most files instantiate the same few schemas, so rather than resolving them again for every
+ * package, the definition a fully qualified schema name resolves to is recorded the first time it is
+ * resolved, and looked up afterwards. Lookups of schemas that are already in the catalogue do not
+ * take any locks.
+ *
+ * <p>Schema names are only meaningful relative to the root of the program they occur in, and names
+ * in the main package ({@code __main__}) are moreover relative to the directory of the package being
+ * compiled, so entries are scoped accordingly.
+ */
+public class SchemaCatalogue {
+    private static final String MAIN_PACKAGE_PREFIX = "__main__.";
+
+    private final ConcurrentHashMap<String, Schema> schemas = new ConcurrentHashMap<>();
+
+    /**
+     * The identity of a schema definition.
+     *
+     * @param trapKey the key of the global TRAP label of the schema statement
+     * @param file    the file declaring the schema
+     * @param line    the line of the schema statement
+     * @param column  the column of the schema statement
+     */
+    public record Schema(String trapKey, Path file, long line, long column) {
+        private static Schema of(Node<?> schemaNode) {
+            Path file = modulePath(schemaNode.getFilename());
+            return new Schema(SchemaCatalogue.trapKey(file, schemaNode.getLine(), schemaNode.getColumn()), file,
+                    schemaNode.getLine(), schemaNode.getColumn());
+        }
+    }
+
+    /**
+     * Returns the key of the global TRAP label of the given schema statement.
+     */
+    public static String trapKey(Node<?> schemaNode) {
+        return trapKey(modulePath(schemaNode.getFilename()), schemaNode.getLine(), schemaNode.getColumn());
+    }
+
+    private static String trapKey(Path file, long line, long column) {
+        return "schema;{" + file + "}," + line + "," + column;
+    }
+
+    /**
+     * Look up the schema called {@code fullName} in the program with root {@code root}, resolving it
+     * through {@code index} if it is not in the catalogue yet.
+     *
+     * @param packageDir the directory of the package being compiled
+     * @return the schema, or {@code null} if it cannot be resolved
+     */
+    public Schema lookup(String root, Path packageDir, String fullName, SemanticIndex index) {
+        String key = fullName.startsWith(MAIN_PACKAGE_PREFIX)
+                ? "{" + root + "},{" + packageDir + "}," + fullName
+                : "{" + root + "}," + fullName;
+        Schema schema = schemas.get(key);
+        if (schema != null) return schema;
+
+        // resolve without holding a lock; concurrent resolutions of the same name agree on the result
+        Node<?> schemaNode = index.schemaNamed(fullName);
+        if (schemaNode == null) return null;
+        Schema resolved = Schema.of(schemaNode);
+        schema = schemas.putIfAbsent(key, resolved);
+        return schema != null ? schema : resolved;
+    }
+}
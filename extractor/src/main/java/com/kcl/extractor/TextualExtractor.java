@@ -6,7 +6,6 @@ import com.semmle.util.trap.TrapWriter;
 import com.semmle.util.trap.TrapWriter.Label;
 
 import java.io.File;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
@@ -14,7 +13,6 @@ import java.util.regex.Pattern;
  * terminators.
  */
 public class TextualExtractor {
-    private static final Pattern LINE_TERMINATOR = Pattern.compile("\\n|\\r\\n|\\r|\\u2028|\\u2029");
     private static final Pattern INDENT_CHAR = Pattern.compile("((\\s)\\2*)\\S.*");
     private static final String esc = "\nn\rr\tt";
     private final String source;
@@ -25,6 +23,8 @@ public class TextualExtractor {
     private final ExtractionMetrics metrics;
     private final File extractedFile;
     private SourceMap sourceMap;
+    private LineIndex lineIndex;
+    private final StringBuilder toStringBuffer = new StringBuilder();
 
     public TextualExtractor(
             TrapWriter trapwriter,
@@ -55,20 +55,50 @@ public class TextualExtractor {
     }
 
     public static String sanitiseToString(String str) {
-        if (str.length() > 20) str = str.substring(0, 7) + " ... " + str.substring(str.length() - 7);
+        return sanitiseToString(new StringBuilder(), str, 0, str.length());
+    }
+
+    /**
+     * Sanitise the text between offsets {@code start} and {@code end} of {@code source} into {@code
+     * res}, which is cleared first, without copying the text itself.
+     *
+     * <p>Texts longer than 20 characters are abbreviated to their first and last seven characters,
+     * and non-printable characters are escaped. A surrogate pair is escaped both as its code point
+     * and as its low surrogate, and pairs are not recognised across the abbreviation, since that is
+     * how this has always worked.
+     */
+    public static String sanitiseToString(StringBuilder res, CharSequence source, int start, int end) {
+        res.setLength(0);
+        if (end - start > 20) {
+            appendSanitised(res, source, start, start + 7);
+            res.append(" ... ");
+            appendSanitised(res, source, end - 7, end);
+        } else {
+            appendSanitised(res, source, start, end);
+        }
+        return res.toString();
+    }
 
-        StringBuilder res = new StringBuilder();
-        for (int i = 0, n = str.length(); i < n; ++i) {
-            int c = str.codePointAt(i);
+    private static void appendSanitised(StringBuilder res, CharSequence source, int start, int end) {
+        for (int i = start; i < end; ++i) {
+            char ch = source.charAt(i);
+            int c = ch;
+            if (Character.isHighSurrogate(ch) && i + 1 < end && Character.isLowSurrogate(source.charAt(i + 1)))
+                c = Character.toCodePoint(ch, source.charAt(i + 1));
             if (c < 0x20 || c > 0x7e) {
                 int j = esc.indexOf(c);
-                if (j >= 0) res.append("\\" + esc.charAt(j + 1));
-                else res.append("\\u" + String.format("%04x", Integer.valueOf(c)));
+                if (j >= 0) {
+                    res.append('\\').append(esc.charAt(j + 1));
+                } else {
+                    res.append("\\u");
+                    String hex = Integer.toHexString(c);
+                    for (int k = hex.length(); k < 4; ++k) res.append('0');
+                    res.append(hex);
+                }
             } else {
-                res.append((char) c);
+                res.append(ch);
             }
         }
-        return res.toString();
     }
 
     /**
@@ -85,6 +115,17 @@ public class TextualExtractor {
         return sourceMap;
     }
 
+    /**
+     * Returns a textual extractor for the same source that emits into the trap writer of {@code
+     * locationManager} instead.
+     */
+    public TextualExtractor withLocationManager(LocationManager locationManager) {
+        TextualExtractor copy = new TextualExtractor(locationManager.getTrapWriter(), locationManager, source,
+                extractLines, metrics, extractedFile, sourceMap);
+        copy.lineIndex = lineIndex;
+        return copy;
+    }
+
     /**
      * Returns true if the source map that would be returned by {@link #getSourceMap()} might not be a 1:1 mapping
      * to the original source file.
@@ -123,6 +164,14 @@ public class TextualExtractor {
         return source;
     }
 
+    /**
+     * Returns the index of the lines of {@link #getSource()}, which is built on first use.
+     */
+    public LineIndex getLineIndex() {
+        if (lineIndex == null) lineIndex = new LineIndex(source);
+        return lineIndex;
+    }
+
     public ExtractionMetrics getMetrics() {
         return metrics;
     }
@@ -132,6 +181,15 @@ public class TextualExtractor {
         return sanitiseToString(source);
     }
 
+    /**
+     * Returns the sanitised text of {@code node}, which is the same as {@code
+     * mkToString(getLine(node))}, but only reads the characters that end up in the result.
+     */
+    public String mkToString(Node<?> node) {
+        if (node.getEndLine() < node.getLine()) return "";
+        return sanitiseToString(toStringBuffer, source, nodeStart(node), nodeEnd(node));
+    }
+
     /**
      * Emit a lines/4 tuple, if {@link #extractLines} is {@code true}, and an indentation/4 tuple,
      * where applicable, for a line of source code.
@@ -143,7 +201,7 @@ public class TextualExtractor {
     public void extractLine(String line, String term, int i, Label toplevelKey) {
         if (extractLines) {
             Label key = trapwriter.freshLabel();
-            trapwriter.addTuple("lines", key, toplevelKey, line, term);
+            locationManager.getTupleEncoder().begin("lines").label(key).label(toplevelKey).string(line).string(term).end();
             locationManager.emitSnippetLocation(key, i, 1, i, line.length());
         }
 
@@ -161,71 +219,76 @@ public class TextualExtractor {
      * Extract lexical information about source lines and line numbers.
      */
     public Position extractLines(String src, Label toplevelKey) {
-        int len = src.length(), i = 1, start = 0, llength = 0;
-
-        Matcher matcher = LINE_TERMINATOR.matcher(src);
-        while (matcher.find()) {
-            String line = src.substring(start, matcher.start());
-            llength = line.length();
-            extractLine(line, matcher.group(), i++, toplevelKey);
-            start = matcher.end();
+        LineIndex index = src == source ? getLineIndex() : new LineIndex(src);
+        int len = src.length(), n = index.getNumTerminators(), llength = 0;
+
+        for (int i = 0; i < n; ++i) {
+            int start = index.getLineStart(i), end = index.getContentEnd(i);
+            llength = end - start;
+            // only materialise the line if it is actually going to be emitted
+            if (extractLines) extractLine(src.substring(start, end), index.getTerminator(i), i + 1, toplevelKey);
         }
 
-        if (start < len) {
-            extractLine(src.substring(start), "", i, toplevelKey);
-            llength = len - start;
-        } else {
-            --i;
+        int lines = n;
+        int tail = index.getLineStart(n);
+        if (tail < len) {
+            if (extractLines) extractLine(src.substring(tail), "", n + 1, toplevelKey);
+            llength = len - tail;
+            ++lines;
         }
 
-        return new Position(i, llength, len);
+        return new Position(lines, llength, len);
     }
 
     public int getNumLines() {
-        Matcher matcher = LINE_TERMINATOR.matcher(source);
-        int n = 0, end = 0;
-        while (matcher.find()) {
-            ++n;
-            end = matcher.end();
-        }
-        if (end < source.length()) ++n;
-        return n;
+        return getLineIndex().getNumLines();
     }
 
     public String getLine(int lineNumber) {
-        Matcher matcher = LINE_TERMINATOR.matcher(source);
-        int n = 1, end = 0;
-        while (matcher.find()) {
-            if (n == lineNumber) return source.substring(end, matcher.end());
-            ++n;
-            end = matcher.end();
-        }
-        return source.substring(end);
+        LineIndex index = getLineIndex();
+        int n = index.getNumTerminators();
+        if (lineNumber >= 1 && lineNumber <= n)
+            return source.substring(index.getLineStart(lineNumber - 1), index.getLineStart(lineNumber));
+        return source.substring(index.getLineStart(n));
     }
 
+    /**
+     * Returns the source text of {@code node}.
+     *
+     * <p>For historical reasons, the text of a node that starts and ends on the same line extends to
+     * the end of that line.
+     */
     public String getLine(Node<?> node) {
-        String[] lines = source.split("\n");
-        StringBuilder sb = new StringBuilder();
+        if (node.getEndLine() < node.getLine()) return "";
+        return source.substring(nodeStart(node), nodeEnd(node));
+    }
 
+    /**
+     * Returns the offset at which the text of {@code node} starts.
+     */
+    private int nodeStart(Node<?> node) {
+        LineIndex index = getLineIndex();
         int startLine = (int) node.getLine() - 1;
-        int endLine = (int) node.getEndLine() - 1;
         int startCol = (int) node.getColumn();
-        int endCol = (int) node.getEndColumn();
-
+        if (startCol > index.getNewlineLineLength(startLine))
+            throw new StringIndexOutOfBoundsException("begin " + startCol + ", line length " + index.getNewlineLineLength(startLine));
+        return index.getNewlineLineStart(startLine) + startCol;
+    }
 
-        for (int i = startLine; i <= endLine; i++) {
-            if (i == startLine) {
-                sb.append(lines[i].substring(startCol));
-            } else if (i == endLine) {
-                sb.append(lines[i].substring(0, endCol));
-            } else {
-                sb.append(lines[i]);
-            }
-            if (i != endLine) {
-                sb.append("\n");
-            }
-        }
+    /**
+     * Returns the offset at which the text of {@code node} ends.
+     */
+    private int nodeEnd(Node<?> node) {
+        LineIndex index = getLineIndex();
+        int startLine = (int) node.getLine() - 1;
+        int endLine = (int) node.getEndLine() - 1;
+        int endCol = (int) node.getEndColumn();
+        if (endLine == startLine)
+            return index.getNewlineLineStart(startLine) + index.getNewlineLineLength(startLine);
 
-        return sb.toString();
+        // the lines in between are separated by exactly one newline, so the text is contiguous
+        if (endCol > index.getNewlineLineLength(endLine))
+            throw new StringIndexOutOfBoundsException("end " + endCol + ", line length " + index.getNewlineLineLength(endLine));
+        return index.getNewlineLineStart(endLine) + endCol;
     }
 }
@@ -0,0 +1,182 @@
+package com.kcl.extractor;
+
+import com.semmle.util.exception.ResourceError;
+import com.semmle.util.trap.TrapWriter;
+import com.semmle.util.trap.TrapWriter.Label;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Writes tuples of labels, integers and strings to a trap writer without boxing their columns or
+ * building a string per tuple.
+ *
+ * <p>A tuple is written by calling {@link #begin(String)}, then one of {@link #label(Label)},
+ * {@link #integer(int)} and {@link #string(String)} per column, and finally {@link #end()}:
+ *
+ * <pre>
+ * tuples.begin("stmts").label(lbl).integer(kind).label(parent).integer(idx).string(tostring).end();
+ * </pre>
+ *
+ * <p>If the trap writer is an {@link EncodingTrapWriter}, the tuple is encoded into a buffer that is
+ * reused by all encoders on the same thread, and handed to the writer's output in a single write.
+ * The encoding is the same as that of {@link TrapWriter#addTuple(String, Object...)}, which the
+ * encoder falls back to for other trap writers, as well as for tuples with columns it does not
+ * encode itself: {@code null} values, and strings that are very long or contain surrogates.
+ *
+ * <p>An encoder, like its trap writer, must only be used by one thread.
+ */
+public class TupleEncoder {
+    /**
+     * The length of the longest string that is encoded directly; longer strings are left to the trap
+     * writer, which may truncate them.
+     */
+    private static final int MAX_ENCODED_STRING = 1024;
+
+    private static final int INITIAL_BUFFER = 512;
+
+    private static final ThreadLocal<Buffers> BUFFERS = ThreadLocal.withInitial(Buffers::new);
+
+    /**
+     * The buffers tuples are encoded into, reused by all encoders on a thread.
+     */
+    private static class Buffers {
+        private final StringBuilder text = new StringBuilder(INITIAL_BUFFER);
+        private char[] chars = new char[INITIAL_BUFFER];
+    }
+
+    private static final byte LABEL = 0, INTEGER = 1, STRING = 2;
+
+    private final TrapWriter trapWriter;
+
+    /**
+     * The trap writer, if it is an {@link EncodingTrapWriter}, and {@code null} otherwise.
+     */
+    private final EncodingTrapWriter encoding;
+
+    /**
+     * The output of the trap writer, or {@code null} if it is not an {@link EncodingTrapWriter}.
+     */
+    private final Writer out;
+
+    private final Buffers buffers = BUFFERS.get();
+
+    private String table;
+
+    /**
+     * The columns of the current tuple, kept in case it has to be written by the trap writer after
+     * all.
+     */
+    private byte[] kinds = new byte[8];
+    private int[] ints = new int[8];
+    private Object[] objects = new Object[8];
+    private int arity;
+
+    /**
+     * Whether the current tuple has to be written by the trap writer.
+     */
+    private boolean fallback;
+
+    public TupleEncoder(TrapWriter trapWriter) {
+        this.trapWriter = trapWriter;
+        this.encoding = trapWriter instanceof EncodingTrapWriter e ? e : null;
+        this.out = encoding != null ? encoding.output() : null;
+    }
+
+    public TrapWriter getTrapWriter() {
+        return trapWriter;
+    }
+
+    /**
+     * Start a tuple of the given table.
+     */
+    public TupleEncoder begin(String table) {
+        this.table = table;
+        this.arity = 0;
+        this.fallback = out == null;
+        StringBuilder text = buffers.text;
+        text.setLength(0);
+        text.append(table).append('(');
+        return this;
+    }
+
+    public TupleEncoder label(Label label) {
+        column(LABEL, 0, label);
+        if (label == null) fallback = true;
+        else if (!fallback) separator().append(label.toString());
+        return this;
+    }
+
+    public TupleEncoder integer(int value) {
+        column(INTEGER, value, null);
+        if (!fallback) separator().append(value);
+        return this;
+    }
+
+    public TupleEncoder string(String value) {
+        column(STRING, 0, value);
+        if (!isEncodable(value)) fallback = true;
+        if (fallback) return this;
+        StringBuilder text = separator().append('"');
+        for (int i = 0, n = value.length(); i < n; ++i) {
+            char c = value.charAt(i);
+            if (c == '"') text.append('"');
+            text.append(c);
+        }
+        text.append('"');
+        return this;
+    }
+
+    /**
+     * Finish the current tuple and write it.
+     */
+    public void end() {
+        if (fallback) {
+            Object[] values = new Object[arity];
+            for (int i = 0; i < arity; ++i) values[i] = kinds[i] == INTEGER ? Integer.valueOf(ints[i]) : objects[i];
+            Arrays.fill(objects, 0, arity, null);
+            trapWriter.addTuple(table, values);
+            return;
+        }
+        Arrays.fill(objects, 0, arity, null);
+        StringBuilder text = buffers.text.append(")\n");
+        int length = text.length();
+        if (buffers.chars.length < length) buffers.chars = new char[Math.max(length, 2 * buffers.chars.length)];
+        text.getChars(0, length, buffers.chars, 0);
+        try {
+            out.write(buffers.chars, 0, length);
+            encoding.countChars(length);
+        } catch (IOException e) {
+            throw new ResourceError("Could not write TRAP tuple", e);
+        }
+    }
+
+    private void column(byte kind, int intValue, Object value) {
+        if (arity == kinds.length) {
+            kinds = Arrays.copyOf(kinds, 2 * arity);
+            ints = Arrays.copyOf(ints, 2 * arity);
+            objects = Arrays.copyOf(objects, 2 * arity);
+        }
+        kinds[arity] = kind;
+        ints[arity] = intValue;
+        objects[arity] = value;
+        ++arity;
+    }
+
+    /**
+     * Append the separator preceding the column just added, and return the buffer.
+     */
+    private StringBuilder separator() {
+        StringBuilder text = buffers.text;
+        if (arity > 1) text.append(',');
+        return text;
+    }
+
+    private static boolean isEncodable(String value) {
+        if (value == null || value.length() > MAX_ENCODED_STRING) return false;
+        for (int i = 0, n = value.length(); i < n; ++i)
+            if (Character.isSurrogate(value.charAt(i))) return false;
+        return true;
+    }
+}
@@ -0,0 +1,351 @@
+package com.kcl.extractor;
+
+import com.semmle.util.exception.ResourceError;
+import com.semmle.util.exception.UserError;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+
+import static com.kcl.extractor.ExtractorOptionsUtil.readExtractorOption;
+
+/**
+ * A bounded stage that performs the disk writes of the extraction threads in the background, so
+ * that extracting the next file overlaps with writing out the previous one.
+ *
+ * <p>Writes are submitted as tasks together with a key, usually the file they write to. Tasks with
+ * the same key are performed in the order they were submitted in, on one of a fixed number of I/O
+ * threads. Extraction threads submitting tasks are held up only if the queue of their I/O thread is
+ * full, or if more than a fixed number of bytes are waiting to be written.
+ *
+ * <p>Failures of tasks are reported by {@link #drain()}, which waits for all tasks submitted so far
+ * to be performed, and which must hence be called before the output is used.
+ *
+ * <p>A synchronous stage performs every task right away on the submitting thread instead.
+ */
+public class WriteBehind {
+    /**
+     * The number of bytes written by the I/O threads at a time.
+     */
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * An I/O task.
+     */
+    @FunctionalInterface
+    public interface IoTask {
+        void run() throws Exception;
+    }
+
+    /**
+     * When the files written through {@link #open(File, boolean)} are forced to disk.
+     */
+    public enum Fsync {
+        /**
+         * Never; this is left to the operating system.
+         */
+        NEVER,
+        /**
+         * When they are closed.
+         */
+        CLOSE
+    }
+
+    /**
+     * The I/O threads, or {@code null} if tasks are performed synchronously.
+     */
+    private final IoThread[] threads;
+
+    /**
+     * The number of bytes that may be waiting to be written.
+     */
+    private final Semaphore budget;
+
+    private final int budgetSize;
+
+    private final Fsync fsync;
+
+    /**
+     * Chunks that have been written, and can be reused.
+     */
+    private final ConcurrentLinkedQueue<byte[]> freeChunks = new ConcurrentLinkedQueue<>();
+
+    private Throwable failure;
+
+    /**
+     * @param threads    the number of I/O threads; if this is zero, tasks are performed
+     *                   synchronously
+     * @param queueDepth the number of tasks that may be waiting for each I/O thread
+     * @param budgetSize the number of bytes that may be waiting to be written
+     * @param fsync      when files written through {@link #open(File, boolean)} are forced to disk
+     */
+    public WriteBehind(int threads, int queueDepth, int budgetSize, Fsync fsync) {
+        this.fsync = fsync;
+        this.budgetSize = budgetSize;
+        this.budget = new Semaphore(budgetSize);
+        if (threads <= 0 || queueDepth <= 0) {
+            this.threads = null;
+            return;
+        }
+        this.threads = new IoThread[threads];
+        for (int i = 0; i < threads; ++i) {
+            this.threads[i] = new IoThread(i, queueDepth);
+            this.threads[i].start();
+        }
+    }
+
+    /**
+     * Returns a stage that performs every task synchronously.
+     */
+    public static WriteBehind synchronous() {
+        return new WriteBehind(0, 0, Integer.MAX_VALUE, Fsync.NEVER);
+    }
+
+    /**
+     * Build a stage as defined by the extractor options: the number of tasks that may be waiting for
+     * an I/O thread is given by the {@code io.queue} option (by default 256; 0 makes the stage
+     * synchronous), the number of I/O threads by {@code io.threads} (by default 1), the number of
+     * megabytes that may be waiting to be written by {@code io.buffer} (by default 64), and whether
+     * TRAP files are forced to disk when they are closed by {@code io.fsync} ({@code never} or
+     * {@code close}).
+     */
+    public static WriteBehind fromExtractorOptions() {
+        int queueDepth = intOption("queue", 256, 0, 1 << 16);
+        int threads = intOption("threads", 1, 1, 64);
+        int budget = intOption("buffer", 64, 1, 1024) * 1024 * 1024;
+        String fsync = readExtractorOption("io", "fsync");
+        try {
+            return new WriteBehind(threads, queueDepth, budget,
+                    fsync == null ? Fsync.NEVER : Fsync.valueOf(fsync.trim().toUpperCase(Locale.ROOT)));
+        } catch (IllegalArgumentException e) {
+            throw new UserError("Invalid fsync policy: " + fsync, e);
+        }
+    }
+
+    private static int intOption(String name, int defaultValue, int min, int max) {
+        String value = readExtractorOption("io", name);
+        if (value == null) return defaultValue;
+        try {
+            int result = Integer.parseInt(value.trim());
+            if (result >= min && result <= max) return result;
+        } catch (NumberFormatException e) {
+            throw new UserError("Invalid I/O " + name + ": " + value, e);
+        }
+        throw new UserError("Invalid I/O " + name + ": " + value);
+    }
+
+    public boolean isSynchronous() {
+        return threads == null;
+    }
+
+    /**
+     * Submit a task writing about {@code size} bytes, to be performed after all tasks previously
+     * submitted with the same key.
+     */
+    public void submit(Object key, long size, IoTask task) {
+        if (threads == null || Thread.currentThread() instanceof IoThread) {
+            perform(task);
+            return;
+        }
+        int permits = (int) Math.min(Math.max(size, 0), budgetSize);
+        try {
+            budget.acquire(permits);
+            threads[Math.floorMod(key.hashCode(), threads.length)].queue.put(() -> {
+                try {
+                    perform(task);
+                } finally {
+                    budget.release(permits);
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ResourceError("Interrupted while waiting to write extraction output", e);
+        }
+    }
+
+    /**
+     * Returns a stream writing to {@code file} through this stage; the key of its tasks is the file.
+     */
+    public OutputStream open(File file, boolean append) {
+        return open(file, file, append);
+    }
+
+    /**
+     * Returns a stream writing to {@code file} through this stage, whose tasks have the given key.
+     */
+    public OutputStream open(Object key, File file, boolean append) {
+        return new Sink(key, file, append);
+    }
+
+    /**
+     * Wait for all tasks submitted so far to be performed.
+     *
+     * @throws ResourceError if any of them failed
+     */
+    public void drain() {
+        if (threads != null) {
+            CountDownLatch done = new CountDownLatch(threads.length);
+            try {
+                for (IoThread thread : threads) thread.queue.put(done::countDown);
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ResourceError("Interrupted while waiting for extraction output to be written", e);
+            }
+        }
+        synchronized (this) {
+            if (failure != null) throw new ResourceError("Could not write extraction output", failure);
+        }
+    }
+
+    /**
+     * Stop the I/O threads once they have performed the tasks submitted so far.
+     */
+    public void shutdown() {
+        if (threads == null) return;
+        for (IoThread thread : threads) {
+            try {
+                thread.queue.put(IoThread.STOP);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void perform(IoTask task) {
+        try {
+            task.run();
+        } catch (Throwable t) {
+            synchronized (this) {
+                if (failure == null) failure = t;
+                else failure.addSuppressed(t);
+            }
+            if (threads == null) throw t instanceof RuntimeException r ? r : new ResourceError("Could not write extraction output", t);
+            System.err.println("Could not write extraction output: " + t);
+        }
+    }
+
+    private static final class IoThread extends Thread {
+        private static final Runnable STOP = () -> {
+        };
+
+        private final BlockingQueue<Runnable> queue;
+
+        private IoThread(int index, int queueDepth) {
+            super("write-behind-" + index);
+            setDaemon(true);
+            this.queue = new ArrayBlockingQueue<>(queueDepth);
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (Runnable task = queue.take(); task != STOP; task = queue.take()) task.run();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * A stream that hands its data to the I/O threads in chunks. The underlying file is only ever
+     * touched by the tasks, which are performed in order.
+     */
+    private final class Sink extends OutputStream {
+        private final Object key;
+        private final File file;
+        private final boolean append;
+        private FileOutputStream stream;
+        private boolean failed;
+
+        private byte[] chunk = newChunk();
+        private int count;
+        private boolean closed;
+
+        private Sink(Object key, File file, boolean append) {
+            this.key = key;
+            this.file = file;
+            this.append = append;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            ensureOpen();
+            chunk[count++] = (byte) b;
+            if (count == chunk.length) handOff();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ensureOpen();
+            while (len > 0) {
+                int n = Math.min(len, chunk.length - count);
+                System.arraycopy(b, off, chunk, count, n);
+                count += n;
+                off += n;
+                len -= n;
+                if (count == chunk.length) handOff();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            ensureOpen();
+            if (count > 0) handOff();
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            if (count > 0) handOff();
+            freeChunks.offer(chunk);
+            chunk = null;
+            submit(key, 0, () -> {
+                if (failed) return;
+                if (stream == null) stream = new FileOutputStream(file, append);
+                try {
+                    if (fsync == Fsync.CLOSE) stream.getFD().sync();
+                } finally {
+                    stream.close();
+                }
+            });
+        }
+
+        private void handOff() {
+            byte[] full = chunk;
+            int n = count;
+            chunk = newChunk();
+            count = 0;
+            submit(key, n, () -> {
+                try {
+                    if (failed) return;
+                    if (stream == null) stream = new FileOutputStream(file, append);
+                    stream.write(full, 0, n);
+                } catch (IOException e) {
+                    failed = true;
+                    throw e;
+                } finally {
+                    freeChunks.offer(full);
+                }
+            });
+        }
+
+        private void ensureOpen() throws IOException {
+            if (closed) throw new IOException("Stream closed");
+        }
+    }
+
+    private byte[] newChunk() {
+        byte[] chunk = freeChunks.poll();
+        return chunk != null ? chunk : new byte[CHUNK_SIZE];
+    }
+}
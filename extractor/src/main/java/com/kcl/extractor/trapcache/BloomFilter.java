@@ -0,0 +1,58 @@
+package com.kcl.extractor.trapcache;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Bloom filter over TRAP cache keys, which answers most lookups of keys that are not in the cache
+ * without touching the file system.
+ *
+ * <p>Cache keys are cryptographic digests of at least 16 bytes, so their leading and trailing bytes
+ * are used as hash values directly. Keys can be added concurrently with lookups.
+ */
+class BloomFilter {
+    private static final int HASHES = 7;
+
+    /**
+     * The number of bits per expected key, which gives a false positive rate of about one percent.
+     */
+    private static final int BITS_PER_KEY = 10;
+
+    private final AtomicLongArray words;
+    private final long bits;
+
+    /**
+     * @param expectedKeys the number of keys the filter should be able to hold without exceeding its
+     *                     nominal false positive rate
+     */
+    BloomFilter(long expectedKeys) {
+        long words = Math.max(1024, (expectedKeys * BITS_PER_KEY + 63) / 64);
+        this.words = new AtomicLongArray((int) Math.min(words, Integer.MAX_VALUE - 8));
+        this.bits = (long) this.words.length() * 64;
+    }
+
+    void add(byte[] key) {
+        long h1 = hash(key, 0), h2 = hash(key, key.length - 8) | 1;
+        for (int i = 0; i < HASHES; ++i) {
+            long bit = Math.floorMod(h1 + i * h2, bits);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long old;
+            while (((old = words.get(word)) & mask) == 0 && !words.compareAndSet(word, old, old | mask)) ;
+        }
+    }
+
+    boolean mightContain(byte[] key) {
+        long h1 = hash(key, 0), h2 = hash(key, key.length - 8) | 1;
+        for (int i = 0; i < HASHES; ++i) {
+            long bit = Math.floorMod(h1 + i * h2, bits);
+            if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) return false;
+        }
+        return true;
+    }
+
+    private static long hash(byte[] key, int offset) {
+        long result = 0;
+        for (int i = offset; i < offset + 8 && i < key.length; ++i) result = result << 8 | (key[i] & 0xff);
+        return result;
+    }
+}
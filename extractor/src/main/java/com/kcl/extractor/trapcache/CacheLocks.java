@@ -0,0 +1,184 @@
+package com.kcl.extractor.trapcache;
+
+import com.semmle.util.exception.Exceptions;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Locks on the entries of a TRAP cache that are respected by all processes sharing the cache.
+ *
+ * <p>An entry is locked exclusively while it is being populated or evicted, and shared while it is
+ * being read. Across processes, each key is mapped to a byte of a lock file in the cache directory,
+ * which is locked with a {@link FileLock}; since such locks are held on behalf of the whole JVM, the
+ * threads of this process first coordinate through a table of the locks it holds. Locks held by a
+ * process that dies are released by the operating system, so there are no stale locks to clean up.
+ */
+class CacheLocks {
+    static final String NAME = "locks";
+
+    /**
+     * The initial and maximum intervals at which a lock held by another process is polled, in
+     * milliseconds.
+     */
+    private static final long MIN_POLL = 10, MAX_POLL = 200;
+
+    /**
+     * The lock file, or {@code null} if it cannot be used, in which case only the threads of this
+     * process are coordinated.
+     */
+    private final FileChannel channel;
+
+    /**
+     * The locks this process holds, by key.
+     */
+    private final Map<String, Holders> held = new HashMap<>();
+
+    private static class Holders {
+        /**
+         * The number of threads holding the lock shared, or 0 if it is held exclusively.
+         */
+        int readers;
+
+        FileLock fileLock;
+
+        Holders(boolean shared) {
+            this.readers = shared ? 1 : 0;
+        }
+    }
+
+    CacheLocks(File dir) {
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(new File(dir, NAME).toPath(),
+                    StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        } catch (IOException | UnsupportedOperationException e) {
+            Exceptions.ignore(e, "Without a lock file, only the threads of this process are coordinated.");
+        }
+        this.channel = channel;
+    }
+
+    /**
+     * Lock {@code key}, shared or exclusively, waiting for at most {@code timeoutMillis} milliseconds
+     * for the threads and processes holding it to release it.
+     *
+     * @return the number of milliseconds spent waiting, which is positive if the lock was not
+     * available right away, or -1 if it could not be acquired in time
+     */
+    long acquire(String key, boolean shared, long timeoutMillis) {
+        long start = System.currentTimeMillis(), deadline = start + timeoutMillis, poll = MIN_POLL;
+        boolean waited = false;
+        try {
+            while (true) {
+                synchronized (this) {
+                    Holders holders = held.get(key);
+                    if (holders == null) {
+                        holders = new Holders(shared);
+                        if (lockFile(key, holders)) {
+                            held.put(key, holders);
+                            return waited ? Math.max(1, System.currentTimeMillis() - start) : 0;
+                        }
+                    } else if (shared && holders.readers > 0) {
+                        ++holders.readers;
+                        return waited ? Math.max(1, System.currentTimeMillis() - start) : 0;
+                    } else {
+                        // held by another thread of this process, which notifies us when it is released
+                        long remaining = deadline - System.currentTimeMillis();
+                        if (remaining <= 0) return -1;
+                        wait(remaining);
+                        waited = true;
+                        continue;
+                    }
+                }
+
+                // held by another process
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) return -1;
+                Thread.sleep(Math.min(poll, remaining));
+                poll = Math.min(2 * poll, MAX_POLL);
+                waited = true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        }
+    }
+
+    /**
+     * Lock the whole of {@code file}, waiting for other processes to release it.
+     *
+     * @return the lock, or {@code null} if there is no file or it cannot be locked, in which case the
+     * caller goes ahead without a lock
+     */
+    static FileLock lockWholeFile(FileChannel file, boolean shared) throws IOException {
+        if (file == null) return null;
+        while (true) {
+            try {
+                return file.lock(0, Long.MAX_VALUE, shared);
+            } catch (OverlappingFileLockException e) {
+                // another cache in this JVM uses the same directory
+                try {
+                    Thread.sleep(MIN_POLL);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for a lock on the TRAP cache", ie);
+                }
+            } catch (IOException e) {
+                Exceptions.ignore(e, "Without file locks, other processes may interleave their updates.");
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Try to lock the byte of the lock file {@code key} maps to.
+     */
+    private boolean lockFile(String key, Holders holders) {
+        if (channel == null) return true;
+        try {
+            holders.fileLock = channel.tryLock(position(key), 1, holders.readers > 0);
+            return holders.fileLock != null;
+        } catch (OverlappingFileLockException e) {
+            // another key maps to the same byte, or another cache in this JVM holds it
+            return false;
+        } catch (IOException e) {
+            Exceptions.ignore(e, "Without file locks, only the threads of this process are coordinated.");
+            return true;
+        }
+    }
+
+    private static long position(String key) {
+        try {
+            return Long.parseUnsignedLong(key.substring(0, Math.min(key.length(), 15)), 16);
+        } catch (NumberFormatException e) {
+            return key.hashCode() & 0xffffffffL;
+        }
+    }
+
+    /**
+     * Release a lock on {@code key} acquired by {@link #acquire}.
+     */
+    synchronized void release(String key) {
+        Holders holders = held.get(key);
+        if (holders == null) return;
+        if (holders.readers > 1) {
+            --holders.readers;
+            return;
+        }
+        held.remove(key);
+        if (holders.fileLock != null) {
+            try {
+                holders.fileLock.release();
+            } catch (IOException e) {
+                Exceptions.ignore(e, "The lock is released when the lock file is closed at the latest.");
+            }
+        }
+        notifyAll();
+    }
+}
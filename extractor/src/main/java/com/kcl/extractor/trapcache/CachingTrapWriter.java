@@ -2,12 +2,15 @@ package com.kcl.extractor.trapcache;
 
 import com.semmle.util.exception.Exceptions;
 import com.semmle.util.files.FileUtil;
-import com.semmle.util.trap.TrapWriter;
+import com.kcl.extractor.EncodingTrapWriter;
+import com.kcl.extractor.WriteBehind;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
+import java.util.function.UnaryOperator;
 
 /**
  * A trap writer for use with a trap cache.
@@ -31,24 +34,40 @@ import java.nio.file.StandardCopyOption;
  *       {@code tmpFile};
  *   <li>a cache file that is atomically overwritten with the contents of the temporary file when
  *       this writer is closed, referenced by field {@code trapFile};
- *   <li>a result file to which the contents of the temporary file are appended when this writer is
- *       closed, referenced by field {@code resultFile}.
+ *   <li>a result file to which the tuples are appended as they are written to the temporary file,
+ *       referenced by field {@code resultFile}.
  * </ul>
+ *
+ * <p>The output is compressed once and written to the temporary file and the result file side by
+ * side, rather than copied from one to the other afterwards. If extraction fails, the result file
+ * keeps the tuples written so far, as it would without a cache.
  */
-public class CachingTrapWriter extends TrapWriter {
+public class CachingTrapWriter extends EncodingTrapWriter {
     private final File resultFile;
 
+    // the cache the cache file belongs to
+    private final ITrapCache trapCache;
+
+    private final WriteBehind writeBehind;
+
     // whether extraction was successful
     private boolean successful = true;
 
-    public CachingTrapWriter(File cacheFile, File resultFile) {
-        super(cacheFile, true);
+    /**
+     * @param compressor  wraps a compressing stream around the output, as for the result file's own
+     *                    trap writer
+     * @param writeBehind the stage writing the output; its tasks are keyed by the result file
+     */
+    public CachingTrapWriter(File cacheFile, File resultFile, ITrapCache trapCache,
+            UnaryOperator<OutputStream> compressor, WriteBehind writeBehind) {
+        super(cacheFile, true, compressor, writeBehind, resultFile);
         this.resultFile = resultFile;
+        this.trapCache = trapCache;
+        this.writeBehind = writeBehind;
     }
 
     /**
-     * Tell the writer that extraction was not successful; the cache file and the result file will not
-     * be updated.
+     * Tell the writer that extraction was not successful; the cache file will not be updated.
      */
     public void discard() {
         successful = false;
@@ -57,19 +76,23 @@ public class CachingTrapWriter extends TrapWriter {
     @Override
     public void close() {
         FileUtil.close(out);
+        // the output has been written by the time this task is performed
+        writeBehind.submit(resultFile, 0, this::updateCacheFile);
+    }
 
+    private void updateCacheFile() {
         try {
+            // try to atomically move temporary file over cache file
             if (successful) {
-                // first append tuples from temporary file to result file (in case the move fails)
-                FileUtil.append(tmpFile, resultFile);
-                // then try to atomically move temporary file over cache file
                 Files.move(tmpFile.toPath(), trapFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                trapCache.stored(trapFile);
             }
         } catch (IOException e) {
             Exceptions.ignore(e, "Failed atomic moves are preferable to cache corruption.");
         } finally {
             // make sure to delete the temporary file in case the move failed
             tmpFile.delete();
+            trapCache.release(trapFile);
         }
     }
 }
@@ -13,13 +13,51 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * The default TRAP cache implementation.
+ *
+ * <p>The entries of the cache, together with when they were last stored or hit, are recorded in a
+ * {@link TrapCacheIndex}, so that the cache directory does not have to be listed when the cache is
+ * opened, lookups of files that are not in the cache do not touch the file system, and the cache
+ * can be trimmed by evicting the least recently used files first.
+ *
+ * <p>The cache can be shared by several processes. Entries are locked with {@link CacheLocks} from
+ * the time they are looked up until they are {@linkplain #release released}: exclusively by the
+ * process that populates them, which other processes missing the same entry wait for, and shared by
+ * the processes that read them, so that no process evicts them in the meantime.
  */
 public class DefaultTrapCache implements ITrapCache {
     private final File trapCache;
 
+    /**
+     * The default number of milliseconds to wait for another process to populate or release an entry
+     * before giving up on caching it.
+     */
+    public static final long DEFAULT_LOCK_TIMEOUT = 2 * 60 * 1000;
+
+    private final TrapCacheIndex index;
+
+    private final CacheLocks locks;
+
+    private final long lockTimeout;
+
+    /**
+     * The keys of the entries that have been hit or stored since the cache was opened, which this
+     * process does not evict.
+     */
+    private final Set<String> used = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The trimming of the cache to its size bounds, which runs in the background.
+     */
+    private final CompletableFuture<Void> trimming;
+
     /**
      * A version identifier for the extractor whose TRAP files we are caching.
      *
@@ -35,14 +73,33 @@ public class DefaultTrapCache implements ITrapCache {
     private final boolean writeable;
 
     public DefaultTrapCache(String trapCache, Long sizeBound, String extractorVersion, boolean writeable) {
+        this(trapCache, sizeBound, extractorVersion, writeable, DEFAULT_LOCK_TIMEOUT);
+    }
+
+    public DefaultTrapCache(String trapCache, Long sizeBound, String extractorVersion, boolean writeable, long lockTimeout) {
         this.trapCache = new File(trapCache);
         this.extractorVersion = extractorVersion;
         this.writeable = writeable;
+        this.lockTimeout = lockTimeout;
         try {
-            initCache(sizeBound);
-        } catch (ResourceError | SecurityException e) {
+            FileUtil.mkdirs(this.trapCache);
+            this.locks = new CacheLocks(this.trapCache);
+            this.index = new TrapCacheIndex(this.trapCache, writeable);
+        } catch (IOException | ResourceError | SecurityException e) {
             throw new ResourceError("Could not initialize trap cache at " + trapCache, e);
         }
+        this.trimming = CompletableFuture.runAsync(() -> initCache(sizeBound), runnable -> {
+            Thread thread = new Thread(runnable, "trap-cache-trim");
+            thread.setDaemon(true);
+            thread.start();
+        });
+    }
+
+    /**
+     * Wait for the cache to have been trimmed to its size bounds.
+     */
+    void awaitTrimming() {
+        trimming.join();
     }
 
     public static Long asFileSize(String s) {
@@ -52,60 +109,81 @@ public class DefaultTrapCache implements ITrapCache {
     }
 
     /**
-     * Initialise the TRAP cache.
+     * Trim the TRAP cache to fit within the given size bound or, failing that, the size bounds
+     * specified in its <code>size.bounds</code> file (if specified). This runs in the background, so
+     * that extraction can start right away.
      *
-     * <p>This creates the cache directory (if it does not exist yet), and trims the cache to fit
-     * within the size bounds specified in its <code>size.bounds</code> file (if specified).
+     * <p>To trim the cache size, the files in the index are traversed from the most to the least
+     * recently used one, and their sizes are summed up; if their total size exceeds the high water
+     * mark, the least recently used files are deleted to reduce the cache size to less than the low
+     * water mark. Files that are in use by any process are kept. The index is compacted if it has
+     * accumulated too many superseded records, whether or not the cache is trimmed.
      *
-     * <p>To trim the cache size, the files in the cache are traversed in some unspecified order, and
-     * their sizes are summed up; if their total size exceeds the high water mark specified in <code>
-     * size.bounds</code>, files are deleted to reduce the cache size to less than the low water mark.
+     * <p>A cache that is not writeable is neither trimmed nor compacted.
      *
      * <p>If any of these steps fail, we silently give up. Hence there is no guarantee that the cache
      * will actually be smaller than the low water mark after initialisation.
      */
     private void initCache(Long sizeBound) {
-        FileUtil.mkdirs(this.trapCache);
-
+        if (!writeable) return;
         try {
-            Long lowWaterMark, highWaterMark;
-
-            if (sizeBound != null) {
-                highWaterMark = sizeBound;
-                lowWaterMark = (long) (0.4 * highWaterMark);
-            } else {
-                Pair<Long, Long> watermarks = readCacheSizeBounds();
-                if (watermarks == null) return;
-                lowWaterMark = watermarks.fst();
-                highWaterMark = watermarks.snd();
-            }
-
-            trimCacheToSize(lowWaterMark, highWaterMark);
-        } catch (IOException | SecurityException e) {
+            Pair<Long, Long> watermarks = watermarks(sizeBound, trapCache);
+            if (watermarks != null) trimCacheToSize(watermarks.fst(), watermarks.snd());
+            else index.compactIfSparse();
+        } catch (IOException | RuntimeException e) {
             Exceptions.ignore(e, "Cache size management is optional.");
         }
     }
 
-    private void trimCacheToSize(long lo, long hi) {
-        // all `.trap.gz` files in the cache, in some unspecified order
-        File[] files = this.trapCache.listFiles(FileUtil.extensionFilter(true, ".trap.gz"));
+    /**
+     * Returns the low and high water marks for the cache in {@code trapCache}: 40% of {@code
+     * sizeBound} and {@code sizeBound} itself if it is given, or those in its <code>size.bounds</code>
+     * file otherwise.
+     */
+    static Pair<Long, Long> watermarks(Long sizeBound, File trapCache) throws IOException {
+        if (sizeBound != null) return Pair.make((long) (0.4 * sizeBound), sizeBound);
+        return readCacheSizeBounds(trapCache);
+    }
+
+    /**
+     * Trim the cache as described for {@link #initCache}, and compact the index afterwards, since
+     * every eviction supersedes the records of its entry.
+     */
+    void trimCacheToSize(long lo, long hi) throws IOException {
+        // all entries in the index, most recently used first
+        List<TrapCacheIndex.Entry> files = index.entries().stream()
+                .sorted(Comparator.comparingLong(TrapCacheIndex.Entry::lastUsed).reversed())
+                .toList();
 
         // cumulative size of all files we have seen so far
         long cur = 0;
 
         // index of first file where cumulative size exceeds low water mark;
-        // set to files.length to indicate that the low water mark was not exceeded
-        int firstPastLo = files.length;
+        // set to files.size() to indicate that the low water mark was not exceeded
+        int firstPastLo = files.size();
 
-        for (int i = 0; i < files.length; ++i) {
-            File f = files[i];
-            cur += f.length();
-            if (firstPastLo == files.length && cur > lo) firstPastLo = i;
+        for (int i = 0; i < files.size(); ++i) {
+            cur += files.get(i).size();
+            if (firstPastLo == files.size() && cur > lo) firstPastLo = i;
             if (cur > hi) break;
         }
 
-        // if the high water mark was exceeded, delete files starting at `firstPastLo`
-        if (cur > hi) while (firstPastLo < files.length) files[firstPastLo++].delete();
+        // if the high water mark was exceeded, delete the files starting at `firstPastLo`, unless
+        // they are in use
+        if (cur > hi) while (firstPastLo < files.size()) evict(files.get(firstPastLo++));
+
+        index.compactIfSparse();
+    }
+
+    private void evict(TrapCacheIndex.Entry entry) {
+        // entries that are locked by any process, or have been used by this one, are in use
+        if (used.contains(entry.key()) || locks.acquire(entry.key(), false, 0) < 0) return;
+        try {
+            File file = new File(trapCache, entry.key() + ".trap.gz");
+            if (file.delete() || !file.exists()) index.evicted(entry.key());
+        } finally {
+            locks.release(entry.key());
+        }
     }
 
     /**
@@ -122,8 +200,8 @@ public class DefaultTrapCache implements ITrapCache {
      * @return a pair of file sizes in bytes, or {@code null} if the sizes could not be determined for
      * whatever reason
      */
-    private Pair<Long, Long> readCacheSizeBounds() throws IOException {
-        File cacheSizeFile = new File(this.trapCache, "size.bounds");
+    private static Pair<Long, Long> readCacheSizeBounds(File trapCache) throws IOException {
+        File cacheSizeFile = new File(trapCache, "size.bounds");
         if (!cacheSizeFile.canRead()) return null;
         try (BufferedReader br = new BufferedReader(new FileReader(cacheSizeFile))) {
             String firstLine = br.readLine();
@@ -136,17 +214,74 @@ public class DefaultTrapCache implements ITrapCache {
         }
     }
 
-    @Override
-    public File lookup(String source, ExtractorConfig config, FileType type) {
-        // compute a hash for this file based on its contents and the configuration options
+    /**
+     * Compute the cache key of a file from its contents, the digest of its other dependencies, its
+     * type and configuration options, and the version of the extractor.
+     */
+    static String cacheKey(String extractorVersion, String source, String dependencies, ExtractorConfig config,
+            FileType type) {
         StringDigestor digestor = new StringDigestor();
         digestor.write(extractorVersion);
         digestor.write(type.toString());
         digestor.write(config);
+        digestor.write(dependencies);
         digestor.write(source);
-        File result = new File(trapCache, digestor.getDigest() + ".trap.gz");
-        if (!writeable && !result.exists())
-            return null; // If the cache isn't writable, only return the file if it exists
+        return digestor.getDigest();
+    }
+
+    @Override
+    public File lookup(String source, String dependencies, ExtractorConfig config, FileType type) {
+        String key = cacheKey(extractorVersion, source, dependencies, config, type);
+        File result = new File(trapCache, key + ".trap.gz");
+        // only files that may be in the index have to be looked for on disk
+        if (index.mightContain(key) && result.exists() && pin(key, result)) return result;
+        if (!writeable) return null; // If the cache isn't writable, only return the file if it exists
+
+        // make sure that only one process populates the file, waiting for any other that already does;
+        // since it may also have finished doing so after we read the index, look for the file again
+        if (locks.acquire(key, false, lockTimeout) < 0) return null;
+        if (result.exists()) {
+            if (used.add(key)) index.hit(key);
+        } else {
+            used.remove(key);
+        }
         return result;
     }
+
+    /**
+     * Lock the existing cache file {@code result} against eviction until it is released.
+     *
+     * @return {@code false} if the file was evicted before it could be locked, or could not be locked
+     * in time
+     */
+    private boolean pin(String key, File result) {
+        if (locks.acquire(key, true, lockTimeout) < 0) return false;
+        // another process may have evicted the file after we saw it, even without us having to wait
+        if (!result.exists()) {
+            locks.release(key);
+            return false;
+        }
+        if (used.add(key) && writeable) index.hit(key);
+        return true;
+    }
+
+    @Override
+    public boolean isPopulated(File cacheFile) {
+        String key = TrapCacheIndex.keyOf(cacheFile);
+        return key != null && used.contains(key);
+    }
+
+    @Override
+    public void stored(File cacheFile) {
+        String key = TrapCacheIndex.keyOf(cacheFile);
+        if (key == null) return;
+        used.add(key);
+        index.stored(key, cacheFile.length());
+    }
+
+    @Override
+    public void release(File cacheFile) {
+        String key = TrapCacheIndex.keyOf(cacheFile);
+        if (key != null) locks.release(key);
+    }
 }
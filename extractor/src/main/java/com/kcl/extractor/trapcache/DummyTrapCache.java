@@ -11,7 +11,7 @@ import java.io.File;
  */
 public class DummyTrapCache implements ITrapCache {
     @Override
-    public File lookup(String source, ExtractorConfig config, FileType type) {
+    public File lookup(String source, String dependencies, ExtractorConfig config, FileType type) {
         return null;
     }
 }
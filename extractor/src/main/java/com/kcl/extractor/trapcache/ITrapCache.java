@@ -2,9 +2,13 @@ package com.kcl.extractor.trapcache;
 
 import com.kcl.extractor.ExtractorConfig;
 import com.kcl.extractor.FileExtractor.FileType;
+import com.semmle.util.exception.Exceptions;
 import com.semmle.util.exception.UserError;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 
 import static com.kcl.extractor.ExtractorOptionsUtil.readExtractorOption;
 
@@ -33,21 +37,113 @@ public interface ITrapCache {
             boolean writeable = true;
             String trapCacheWrite = readExtractorOption("trap", "cache", "write");
             if (trapCacheWrite != null) writeable = trapCacheWrite.equalsIgnoreCase("TRUE");
-            return new DefaultTrapCache(trapCachePath, sizeBound, "1.0.0", writeable);
+            long lockTimeout = DefaultTrapCache.DEFAULT_LOCK_TIMEOUT;
+            String trapCacheLockTimeout = readExtractorOption("trap", "cache", "lock", "timeout");
+            if (trapCacheLockTimeout != null) {
+                try {
+                    lockTimeout = Long.parseLong(trapCacheLockTimeout.trim()) * 1000;
+                } catch (NumberFormatException e) {
+                    throw new UserError("Invalid TRAP cache lock timeout: " + trapCacheLockTimeout, e);
+                }
+                if (lockTimeout < 0) throw new UserError("Invalid TRAP cache lock timeout: " + trapCacheLockTimeout);
+            }
+            String format = readExtractorOption("trap", "cache", "format");
+            if (format != null && !format.equalsIgnoreCase("files") && !format.equalsIgnoreCase("segments"))
+                throw new UserError("Invalid TRAP cache format: " + format);
+            String version = extractorVersion();
+            if (version == null) return new DummyTrapCache();
+            if (format != null && format.equalsIgnoreCase("segments"))
+                return new SegmentTrapCache(trapCachePath, sizeBound, version, writeable, lockTimeout);
+            return new DefaultTrapCache(trapCachePath, sizeBound, version, writeable, lockTimeout);
         }
         return new DummyTrapCache();
     }
 
+    /**
+     * Identify the extractor by its implementation version or, failing that, by the location and
+     * timestamp of the archive it was loaded from, so that cached TRAP files are not reused by a
+     * different extractor.
+     */
+    private static String extractorVersion() {
+        Package pkg = ITrapCache.class.getPackage();
+        if (pkg != null && pkg.getImplementationVersion() != null)
+            return pkg.getImplementationVersion();
+        try {
+            File origin = new File(ITrapCache.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+            return origin + "@" + origin.lastModified();
+        } catch (Exception e) {
+            Exceptions.ignore(e, "Without a version, the TRAP cache is disabled.");
+            return null;
+        }
+    }
+
+    /**
+     * Look up a file whose TRAP output only depends on its contents in the TRAP cache.
+     *
+     * @see #lookup(String, String, ExtractorConfig, FileType)
+     */
+    public default File lookup(String source, ExtractorConfig config, FileType type) {
+        return lookup(source, "", config, type);
+    }
+
     /**
      * Look up a file in the TRAP cache.
      *
-     * @param source the content of the file
-     * @param config the configuration options this file will be extracted with if it is not found in
-     *               the cache
-     * @param type   the type of the file
+     * @param source       the content of the file
+     * @param dependencies a digest of everything else the TRAP output of the file depends on (cf.
+     *                     {@link com.kcl.extractor.IExtractor#dependencyDigest})
+     * @param config       the configuration options this file will be extracted with if it is not
+     *                     found in the cache
+     * @param type         the type of the file
      * @return {@literal null} if this TRAP cache does not support caching the given file; otherwise,
      * a file in the TRAP cache which may either already exist (and then is guaranteed to hold
      * cached information), or does not yet exist (and should be populated by the extractor)
      */
-    public File lookup(String source, ExtractorConfig config, FileType type);
+    public File lookup(String source, String dependencies, ExtractorConfig config, FileType type);
+
+    /**
+     * Check whether a file returned by {@link #lookup} already holds cached information.
+     */
+    public default boolean isPopulated(File cacheFile) {
+        return cacheFile.exists();
+    }
+
+    /**
+     * Returns the number of bytes {@link #appendTo} appends for a populated file returned by {@link
+     * #lookup}.
+     */
+    public default long sizeOf(File cacheFile) {
+        return cacheFile.length();
+    }
+
+    /**
+     * Append the cached information in a populated file returned by {@link #lookup} to {@code
+     * resultFile}.
+     */
+    public default void appendTo(File cacheFile, File resultFile) throws IOException {
+        try (FileChannel in = FileChannel.open(cacheFile.toPath(), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(resultFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+            // the target is not opened for appending, which would rule out copying in the kernel
+            long size = in.size(), position = 0;
+            out.position(out.size());
+            while (position < size) {
+                long transferred = in.transferTo(position, size - position, out);
+                if (transferred <= 0) throw new IOException("Could not append " + cacheFile + " to " + resultFile);
+                position += transferred;
+            }
+        }
+    }
+
+    /**
+     * Record that a file returned by {@link #lookup} has been populated by the extractor.
+     */
+    public default void stored(File cacheFile) {
+    }
+
+    /**
+     * Release a file returned by {@link #lookup} once it has been read or populated; until then, no
+     * other extractor sharing the cache evicts it or populates it.
+     */
+    public default void release(File cacheFile) {
+    }
 }
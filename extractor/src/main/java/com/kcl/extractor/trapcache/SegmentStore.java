@@ -0,0 +1,502 @@
+package com.kcl.extractor.trapcache;
+
+import com.semmle.util.exception.Exceptions;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The storage of a {@link SegmentTrapCache}: rather than in a file each, cache entries are stored
+ * back to back in a few large, append-only segment files, and located through an offset log.
+ *
+ * <p>The log consists of a header followed by fixed-size records, each of which holds a cache key,
+ * a location and a timestamp: a record with a non-negative length says that the entry was stored at
+ * that offset of that segment, a {@link #HIT} record that the entry was hit, and an {@link #EVICTED}
+ * record that it was dropped. Later records for a key supersede earlier ones. The log is read into a
+ * hash table of locations when the store is opened, and records appended by other processes are
+ * read whenever a key is not found in it. Segments are read through memory mappings.
+ *
+ * <p>New entries are appended to the segment with the highest number until it exceeds {@link
+ * #segmentSize}, which seals it. Evicted and superseded entries are left in place, and the space they
+ * take up is reclaimed by {@linkplain #clean cleaning}: the live entries of a sealed segment that
+ * consists mostly of garbage are copied to the active segment, and the sealed segment is deleted.
+ * Readers that still have it mapped keep reading the old copies. Once most records of the log have
+ * been superseded, it is compacted to a single record per entry.
+ *
+ * <p>The store is shared by all processes using the cache: the log is only read under a shared lock,
+ * and the log and segments are only written under an exclusive lock on the whole log. Since the log
+ * is compacted in place, its header holds a generation number, from which other processes can tell
+ * that they have to read it again from the start.
+ *
+ * <p>Segment numbers are never reused: the header of the log also holds the highest segment number
+ * in use when it was last written, so a number survives compaction even if its segment has been
+ * cleaned. In addition, every entry in a segment is preceded by its key and length, which are checked
+ * whenever it is read, so that a process reading through a table that is out of date can never
+ * mistake one entry for another.
+ */
+class SegmentStore {
+    static final String LOG = "segments.log";
+
+    /**
+     * The length of a record that says an entry was hit rather than stored.
+     */
+    static final long HIT = -1;
+
+    /**
+     * The length of a record that says an entry was evicted.
+     */
+    static final long EVICTED = -2;
+
+    private static final int MAGIC = 0x4b434c53;
+    private static final int FORMAT_VERSION = 2;
+    private static final int HEADER_SIZE = 20;
+
+    /**
+     * Cache keys are hex-encoded SHA-1 digests; the log stores them in binary.
+     */
+    private static final int KEY_SIZE = 20;
+
+    private static final int RECORD_SIZE = KEY_SIZE + 28;
+
+    /**
+     * The size of the key and length that precede every entry in a segment.
+     */
+    private static final int ENTRY_HEADER_SIZE = KEY_SIZE + 8;
+
+    /**
+     * The number of superseded records below which the log is never compacted.
+     */
+    private static final int MIN_GARBAGE = 4096;
+
+    private static final HexFormat HEX = HexFormat.of();
+
+    private static final String PREFIX = "segment-", EXTENSION = ".pack";
+
+    /**
+     * Where an entry is stored, and when it was last stored or hit.
+     */
+    record Location(int segment, long offset, long length, long lastUsed) {
+    }
+
+    /**
+     * An entry of the cache, with its location.
+     */
+    record Entry(String key, Location location) {
+    }
+
+    private final File dir;
+
+    /**
+     * The size beyond which a segment is sealed.
+     */
+    private final long segmentSize;
+
+    /**
+     * The log file, or {@code null} if the cache is not writeable and there is no log.
+     */
+    private final FileChannel log;
+
+    private final boolean writeable;
+
+    /**
+     * The location of each entry, as of the part of the log that has been read.
+     */
+    private final Map<String, Location> table = new ConcurrentHashMap<>();
+
+    /**
+     * The read-only mappings of the segments that have been read from, which are replaced by larger
+     * ones as the segments grow.
+     */
+    private final Map<Integer, MappedByteBuffer> mappings = new HashMap<>();
+
+    /**
+     * The generation of the log that has been read, and the offset up to which it has been read.
+     */
+    private long generation = -1, position = HEADER_SIZE;
+
+    /**
+     * The highest segment number in the part of the log that has been read, or in the header of the
+     * log.
+     */
+    private int activeSegment = 1;
+
+    /**
+     * Open the store in {@code dir}, creating it if necessary; if the cache is not {@code writeable},
+     * the store is neither created nor written to.
+     */
+    SegmentStore(File dir, long segmentSize, boolean writeable) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.writeable = writeable;
+        File file = new File(dir, LOG);
+        if (writeable)
+            log = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        else if (file.isFile())
+            log = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        else
+            log = null;
+
+        synchronized (this) {
+            try (FileLock lock = lock(!writeable)) {
+                if (readGeneration() < 0 && writeable) {
+                    // no usable log, so the segments cannot be read either; the new log starts at a
+                    // generation other processes are unlikely to have read, and after the segments
+                    // they might still have mapped
+                    for (File segment : segments()) {
+                        activeSegment = Math.max(activeSegment, segmentNumber(segment) + 1);
+                        segment.delete();
+                    }
+                    writeLog(List.of(), System.currentTimeMillis());
+                }
+                refresh();
+            }
+        }
+    }
+
+    /**
+     * Lock the whole log file; callers must hold the monitor of this store, so that its threads do
+     * not lock the file twice.
+     */
+    private FileLock lock(boolean shared) throws IOException {
+        return CacheLocks.lockWholeFile(log, shared);
+    }
+
+    /**
+     * Returns the generation of the log file, or -1 if it does not exist or is not a log in the
+     * current format. The highest segment number recorded in its header is taken into account for
+     * {@link #activeSegment}.
+     */
+    private long readGeneration() throws IOException {
+        if (log == null || log.size() < HEADER_SIZE) return -1;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining() && log.read(header, header.position()) >= 0) ;
+        header.flip();
+        if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC || header.getInt() != FORMAT_VERSION)
+            return -1;
+        long generation = header.getLong();
+        activeSegment = Math.max(activeSegment, header.getInt());
+        return generation;
+    }
+
+    /**
+     * Read the records other processes have appended to the log since it was last read, or the whole
+     * log if another process has compacted it in the meantime. Callers must hold a lock on the log.
+     */
+    private void refresh() throws IOException {
+        long generation = readGeneration();
+        if (generation < 0) {
+            table.clear();
+            return;
+        }
+        if (generation != this.generation) {
+            table.clear();
+            synchronized (mappings) {
+                mappings.clear();
+            }
+            this.generation = generation;
+            position = HEADER_SIZE;
+        }
+        long end = HEADER_SIZE + (log.size() - HEADER_SIZE) / RECORD_SIZE * RECORD_SIZE;
+        if (end <= position) return;
+        MappedByteBuffer buffer = log.map(FileChannel.MapMode.READ_ONLY, position, end - position);
+        byte[] key = new byte[KEY_SIZE];
+        while (buffer.hasRemaining()) {
+            buffer.get(key);
+            apply(HEX.formatHex(key), buffer.getInt(), buffer.getLong(), buffer.getLong(), buffer.getLong());
+        }
+        position = end;
+    }
+
+    private void apply(String key, int segment, long offset, long length, long time) {
+        if (length >= 0) {
+            table.put(key, new Location(segment, offset, length, time));
+            activeSegment = Math.max(activeSegment, segment);
+        } else if (length == HIT) {
+            table.computeIfPresent(key, (k, location) ->
+                    new Location(location.segment(), location.offset(), location.length(), time));
+        } else {
+            table.remove(key);
+        }
+    }
+
+    /**
+     * Append a record to the log, and apply it to the table. Callers must hold an exclusive lock on
+     * the log, and have {@linkplain #refresh refreshed} the table under it.
+     */
+    private void append(String key, int segment, long offset, long length, long time) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE)
+                .put(HEX.parseHex(key)).putInt(segment).putLong(offset).putLong(length).putLong(time).flip();
+        // overwrite a record that a process which died was in the middle of writing
+        write(log, record, position);
+        position += RECORD_SIZE;
+        apply(key, segment, offset, length, time);
+    }
+
+    /**
+     * Returns the contents of the entry for {@code key}, or {@code null} if there is none.
+     *
+     * <p>Entries in the table are read without taking any locks; only if {@code key} is not in the
+     * table, or its segment has been cleaned in the meantime, are the records that other processes
+     * appended to the log read.
+     */
+    ByteBuffer find(String key) {
+        try {
+            Location location = table.get(key);
+            if (location != null) {
+                ByteBuffer data = read(key, location);
+                if (data != null) return data;
+            }
+            synchronized (this) {
+                try (FileLock lock = lock(true)) {
+                    refresh();
+                }
+                location = table.get(key);
+                return location == null ? null : read(key, location);
+            }
+        } catch (IOException e) {
+            Exceptions.ignore(e, "An entry that cannot be read is extracted again.");
+            return null;
+        }
+    }
+
+    /**
+     * Returns a slice of the mapping of the segment holding the entry for {@code key} at {@code
+     * location}, or {@code null} if the segment has been deleted or no longer holds that entry there.
+     */
+    private ByteBuffer read(String key, Location location) throws IOException {
+        if (location.offset() < ENTRY_HEADER_SIZE) return null;
+        long end = location.offset() + location.length();
+        MappedByteBuffer mapping;
+        synchronized (mappings) {
+            mapping = mappings.get(location.segment());
+            if (mapping == null || mapping.capacity() < end) {
+                try (FileChannel segment = FileChannel.open(segmentFile(location.segment()).toPath(), StandardOpenOption.READ)) {
+                    long size = segment.size();
+                    if (size < end || size > Integer.MAX_VALUE) return null;
+                    mapping = segment.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                } catch (NoSuchFileException | FileNotFoundException e) {
+                    return null;
+                }
+                mappings.put(location.segment(), mapping);
+            }
+        }
+        int header = (int) location.offset() - ENTRY_HEADER_SIZE;
+        byte[] expected = HEX.parseHex(key);
+        for (int i = 0; i < KEY_SIZE; ++i)
+            if (mapping.get(header + i) != expected[i]) return null;
+        if (mapping.getLong(header + KEY_SIZE) != location.length()) return null;
+        return mapping.slice((int) location.offset(), (int) location.length());
+    }
+
+    /**
+     * Returns the key and length that precede an entry in its segment.
+     */
+    private static ByteBuffer entryHeader(String key, long length) {
+        return ByteBuffer.allocate(ENTRY_HEADER_SIZE).put(HEX.parseHex(key)).putLong(length).flip();
+    }
+
+    /**
+     * Append the contents of {@code file} to the active segment as the entry for {@code key}.
+     */
+    synchronized void store(String key, File file) throws IOException {
+        if (!writeable) return;
+        try (FileLock lock = lock(false);
+             FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            refresh();
+            if (readGeneration() < 0) return;
+            long length = in.size();
+            try (FileChannel out = openActiveSegment()) {
+                long offset = out.size() + ENTRY_HEADER_SIZE, copied = 0;
+                write(out, entryHeader(key, length), offset - ENTRY_HEADER_SIZE);
+                while (copied < length) {
+                    long transferred = in.transferTo(copied, length - copied, out.position(offset + copied));
+                    if (transferred <= 0) throw new IOException("Could not store " + file + " in the TRAP cache");
+                    copied += transferred;
+                }
+                append(key, activeSegment, offset, length, System.currentTimeMillis());
+            }
+        }
+    }
+
+    /**
+     * Open the active segment for appending, sealing it first if it has grown too large. Callers
+     * must hold an exclusive lock on the log.
+     */
+    private FileChannel openActiveSegment() throws IOException {
+        if (segmentFile(activeSegment).length() >= segmentSize) ++activeSegment;
+        return FileChannel.open(segmentFile(activeSegment).toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+    }
+
+    /**
+     * Record that the entry for {@code key} has been hit.
+     */
+    synchronized void hit(String key) {
+        update(key, HIT);
+    }
+
+    /**
+     * Record that the entry for {@code key} has been evicted; the space it takes up is reclaimed when
+     * its segment is cleaned.
+     */
+    synchronized void evict(String key) {
+        update(key, EVICTED);
+    }
+
+    private void update(String key, long length) {
+        if (!writeable) return;
+        try (FileLock lock = lock(false)) {
+            refresh();
+            if (readGeneration() >= 0 && table.containsKey(key)) append(key, 0, 0, length, System.currentTimeMillis());
+        } catch (IOException e) {
+            Exceptions.ignore(e, "The log is only used for trimming once an entry has been stored.");
+        }
+    }
+
+    /**
+     * Returns the entries of the cache, as recorded in the log.
+     */
+    synchronized Collection<Entry> entries() throws IOException {
+        try (FileLock lock = lock(true)) {
+            refresh();
+        }
+        List<Entry> entries = new ArrayList<>();
+        table.forEach((key, location) -> entries.add(new Entry(key, location)));
+        return entries;
+    }
+
+    /**
+     * Reclaim the space taken up by evicted and superseded entries, by moving the live entries out of
+     * each sealed segment of which they make up less than half, and deleting it; then compact the log
+     * if most of its records have been superseded.
+     *
+     * <p>Each segment is cleaned under a lock of its own, so that other processes are only held up
+     * for as long as it takes to copy a single segment.
+     */
+    void clean() throws IOException {
+        if (!writeable) return;
+        for (File file : segments()) {
+            int segment = segmentNumber(file);
+            synchronized (this) {
+                try (FileLock lock = lock(false)) {
+                    refresh();
+                    if (readGeneration() < 0 || segment >= activeSegment) continue;
+                    List<Entry> live = new ArrayList<>();
+                    long liveBytes = 0;
+                    for (Map.Entry<String, Location> entry : table.entrySet()) {
+                        if (entry.getValue().segment() != segment) continue;
+                        live.add(new Entry(entry.getKey(), entry.getValue()));
+                        liveBytes += entry.getValue().length();
+                    }
+                    if (!live.isEmpty() && 2 * liveBytes >= file.length()) continue;
+                    for (Entry entry : live) move(entry);
+                    synchronized (mappings) {
+                        mappings.remove(segment);
+                    }
+                    // readers that have the segment mapped keep reading it; where it cannot be deleted
+                    // while it is mapped, it is deleted by a later cleaning, since it is empty now
+                    file.delete();
+                }
+            }
+        }
+        compactLogIfSparse();
+    }
+
+    /**
+     * Copy a live entry to the active segment. Callers must hold an exclusive lock on the log.
+     */
+    private void move(Entry entry) throws IOException {
+        ByteBuffer data = read(entry.key(), entry.location());
+        if (data == null) {
+            append(entry.key(), 0, 0, EVICTED, System.currentTimeMillis());
+            return;
+        }
+        try (FileChannel out = openActiveSegment()) {
+            long offset = out.size() + ENTRY_HEADER_SIZE;
+            write(out, entryHeader(entry.key(), entry.location().length()), offset - ENTRY_HEADER_SIZE);
+            write(out, data, offset);
+            // moving an entry is not a use of it
+            append(entry.key(), activeSegment, offset, entry.location().length(), entry.location().lastUsed());
+        }
+    }
+
+    private synchronized void compactLogIfSparse() throws IOException {
+        try (FileLock lock = lock(false)) {
+            refresh();
+            long generation = readGeneration();
+            if (generation < 0) return;
+            long records = (position - HEADER_SIZE) / RECORD_SIZE;
+            if (records <= 2L * table.size() + MIN_GARBAGE) return;
+            List<Entry> entries = new ArrayList<>();
+            table.forEach((key, location) -> entries.add(new Entry(key, location)));
+            writeLog(entries, generation + 1);
+            this.generation = generation + 1;
+        }
+    }
+
+    /**
+     * Replace the contents of the log by a single record for each of {@code entries}, recording the
+     * highest segment number in use in its header.
+     *
+     * <p>The log is rewritten in place rather than replaced, since other processes may have it open.
+     * Its header is only written once all records are, so that a log a process failed to finish
+     * rewriting is discarded along with the segments.
+     */
+    private void writeLog(Collection<Entry> entries, long generation) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        write(log, header, 0);
+        log.truncate(HEADER_SIZE);
+        ByteBuffer buffer = ByteBuffer.allocate(1024 * RECORD_SIZE);
+        position = HEADER_SIZE;
+        for (Entry entry : entries) {
+            if (!buffer.hasRemaining()) position += write(log, buffer.flip(), position);
+            Location location = entry.location();
+            buffer.put(HEX.parseHex(entry.key())).putInt(location.segment()).putLong(location.offset())
+                    .putLong(location.length()).putLong(location.lastUsed());
+        }
+        position += write(log, buffer.flip(), position);
+        log.force(false);
+        write(log, header.clear().putInt(MAGIC).putInt(FORMAT_VERSION).putLong(generation).putInt(activeSegment).flip(), 0);
+    }
+
+    private static long write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long written = 0;
+        while (buffer.hasRemaining()) written += channel.write(buffer, position + written);
+        buffer.clear();
+        return written;
+    }
+
+    private File segmentFile(int segment) {
+        return new File(dir, String.format("%s%06d%s", PREFIX, segment, EXTENSION));
+    }
+
+    private List<File> segments() {
+        List<File> segments = new ArrayList<>();
+        File[] files = dir.listFiles((d, name) -> name.startsWith(PREFIX) && name.endsWith(EXTENSION));
+        if (files == null) return segments;
+        for (File file : files) if (segmentNumber(file) > 0) segments.add(file);
+        return segments;
+    }
+
+    private static int segmentNumber(File segment) {
+        String name = segment.getName();
+        try {
+            return Integer.parseInt(name.substring(PREFIX.length(), name.length() - EXTENSION.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
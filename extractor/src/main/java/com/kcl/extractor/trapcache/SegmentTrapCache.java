@@ -0,0 +1,253 @@
+package com.kcl.extractor.trapcache;
+
+import com.kcl.extractor.ExtractorConfig;
+import com.kcl.extractor.FileExtractor.FileType;
+import com.semmle.util.data.Pair;
+import com.semmle.util.exception.Exceptions;
+import com.semmle.util.exception.ResourceError;
+import com.semmle.util.files.FileUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A TRAP cache that packs its entries into a few large segment files kept by a {@link
+ * SegmentStore}, rather than storing each of them in a file of its own like {@link
+ * DefaultTrapCache}, which on large caches exhausts inodes and costs an open, stat and close per hit.
+ * A hit is a probe of the store's hash table followed by a write of a slice of a memory-mapped
+ * segment to the result file.
+ *
+ * <p>The files returned by {@link #lookup} do not exist in the cache directory, but are handles for
+ * the entries they were looked up for. Entries are populated as in the default cache: they are
+ * written to a staging file of their own, which is appended to the active segment and deleted once
+ * it is complete.
+ *
+ * <p>The cache can be shared by several processes. Like the default cache, an entry is locked
+ * exclusively with {@link CacheLocks} while it is being populated, and other processes missing the
+ * same entry wait for it. Entries being read need no lock, since evicted entries are only dropped
+ * from segments when they are cleaned, and readers that have a segment mapped can keep reading it
+ * after it has been deleted.
+ */
+public class SegmentTrapCache implements ITrapCache {
+    /**
+     * The default size beyond which a segment is sealed.
+     */
+    public static final long DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * The extension of the staging files entries are populated in, which are named after their keys.
+     * It differs from that of the entries of {@link DefaultTrapCache}, so that pointing this cache at
+     * the directory of a default cache does not delete the entries there as stale staging files.
+     */
+    static final String STAGING_EXTENSION = ".staging";
+
+    private final File trapCache;
+
+    private final SegmentStore store;
+
+    private final CacheLocks locks;
+
+    private final long lockTimeout;
+
+    /**
+     * The handles returned by {@link #lookup} that have not been released yet.
+     */
+    private final Map<File, Handle> handles = new ConcurrentHashMap<>();
+
+    private final AtomicLong handleCount = new AtomicLong();
+
+    /**
+     * An entry that has been looked up, with its contents if it is populated.
+     */
+    private record Handle(String key, ByteBuffer data) {
+    }
+
+    /**
+     * The keys of the entries that have been hit or stored since the cache was opened, which this
+     * process does not evict.
+     */
+    private final Set<String> used = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The trimming and cleaning of the cache, which runs in the background.
+     */
+    private final CompletableFuture<Void> trimming;
+
+    private final String extractorVersion;
+
+    private final boolean writeable;
+
+    public SegmentTrapCache(String trapCache, Long sizeBound, String extractorVersion, boolean writeable, long lockTimeout) {
+        this(trapCache, sizeBound, extractorVersion, writeable, lockTimeout, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public SegmentTrapCache(String trapCache, Long sizeBound, String extractorVersion, boolean writeable, long lockTimeout, long segmentSize) {
+        this.trapCache = new File(trapCache);
+        this.extractorVersion = extractorVersion;
+        this.writeable = writeable;
+        this.lockTimeout = lockTimeout;
+        try {
+            FileUtil.mkdirs(this.trapCache);
+            this.locks = new CacheLocks(this.trapCache);
+            this.store = new SegmentStore(this.trapCache, segmentSize, writeable);
+        } catch (IOException | ResourceError | SecurityException e) {
+            throw new ResourceError("Could not initialize trap cache at " + trapCache, e);
+        }
+        this.trimming = CompletableFuture.runAsync(() -> initCache(sizeBound), runnable -> {
+            Thread thread = new Thread(runnable, "trap-cache-trim");
+            thread.setDaemon(true);
+            thread.start();
+        });
+    }
+
+    /**
+     * Wait for the cache to have been trimmed and cleaned.
+     */
+    void awaitTrimming() {
+        trimming.join();
+    }
+
+    /**
+     * Trim the cache to its size bounds as {@link DefaultTrapCache} does, except that evicted entries
+     * are only dropped from the log; then clean the segments to reclaim their space, and delete stale
+     * staging files. This runs in the background, so that extraction can start right away.
+     */
+    private void initCache(Long sizeBound) {
+        if (!writeable) return;
+        try {
+            Pair<Long, Long> watermarks = DefaultTrapCache.watermarks(sizeBound, trapCache);
+            if (watermarks != null) trimCacheToSize(watermarks.fst(), watermarks.snd());
+            store.clean();
+            deleteStaleStagingFiles();
+        } catch (IOException | RuntimeException e) {
+            Exceptions.ignore(e, "Cache size management is optional.");
+        }
+    }
+
+    /**
+     * Delete the staging files left behind by processes that died while populating an entry. The
+     * staging file of an entry that is locked, or that this process is populating, is left alone.
+     */
+    void deleteStaleStagingFiles() {
+        File[] files = trapCache.listFiles((dir, name) -> name.endsWith(STAGING_EXTENSION));
+        if (files == null) return;
+        for (File file : files) {
+            String key = file.getName().substring(0, file.getName().length() - STAGING_EXTENSION.length());
+            if (handles.containsKey(file) || locks.acquire(key, false, 0) < 0) continue;
+            try {
+                if (!handles.containsKey(file)) file.delete();
+            } finally {
+                locks.release(key);
+            }
+        }
+    }
+
+    void trimCacheToSize(long lo, long hi) throws IOException {
+        // all entries in the log, most recently used first
+        List<SegmentStore.Entry> entries = store.entries().stream()
+                .sorted(Comparator.comparingLong((SegmentStore.Entry entry) -> entry.location().lastUsed()).reversed())
+                .toList();
+
+        long cur = 0;
+        int firstPastLo = entries.size();
+        for (int i = 0; i < entries.size(); ++i) {
+            cur += entries.get(i).location().length();
+            if (firstPastLo == entries.size() && cur > lo) firstPastLo = i;
+            if (cur > hi) break;
+        }
+
+        if (cur > hi) {
+            while (firstPastLo < entries.size()) {
+                String key = entries.get(firstPastLo++).key();
+                if (!used.contains(key)) store.evict(key);
+            }
+        }
+    }
+
+    @Override
+    public File lookup(String source, String dependencies, ExtractorConfig config, FileType type) {
+        String key = DefaultTrapCache.cacheKey(extractorVersion, source, dependencies, config, type);
+        ByteBuffer data = store.find(key);
+        if (data == null) {
+            if (!writeable) return null;
+            // make sure that only one process populates the entry, waiting for any other that already
+            // does; since it may also have finished doing so in the meantime, look for it again
+            if (locks.acquire(key, false, lockTimeout) < 0) return null;
+            data = store.find(key);
+            if (data == null) {
+                File staging = new File(trapCache, key + STAGING_EXTENSION);
+                handles.put(staging, new Handle(key, null));
+                return staging;
+            }
+            locks.release(key);
+        }
+        if (used.add(key)) store.hit(key);
+        File handle = new File(trapCache, key + "-" + handleCount.incrementAndGet() + ".hit");
+        handles.put(handle, new Handle(key, data));
+        return handle;
+    }
+
+    @Override
+    public boolean isPopulated(File cacheFile) {
+        Handle handle = handles.get(cacheFile);
+        return handle != null && handle.data() != null;
+    }
+
+    /**
+     * Returns the size of the entry, since the handle does not exist on disk.
+     */
+    @Override
+    public long sizeOf(File cacheFile) {
+        Handle handle = handles.get(cacheFile);
+        return handle == null || handle.data() == null ? 0 : handle.data().remaining();
+    }
+
+    /**
+     * Append the slice of the segment holding the entry to {@code resultFile}.
+     */
+    @Override
+    public void appendTo(File cacheFile, File resultFile) throws IOException {
+        Handle handle = handles.get(cacheFile);
+        if (handle == null || handle.data() == null) throw new IOException(cacheFile + " is not a TRAP cache hit");
+        ByteBuffer data = handle.data().duplicate();
+        try (FileChannel out = FileChannel.open(resultFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+            long position = out.size();
+            while (data.hasRemaining()) position += out.write(data, position);
+        }
+    }
+
+    /**
+     * Append the staging file the entry was populated in to the active segment, and delete it.
+     */
+    @Override
+    public void stored(File cacheFile) {
+        Handle handle = handles.get(cacheFile);
+        if (handle == null || handle.data() != null) return;
+        try {
+            store.store(handle.key(), cacheFile);
+            used.add(handle.key());
+        } catch (IOException e) {
+            Exceptions.ignore(e, "The entry is extracted again next time.");
+        } finally {
+            cacheFile.delete();
+        }
+    }
+
+    @Override
+    public void release(File cacheFile) {
+        Handle handle = handles.remove(cacheFile);
+        if (handle == null || handle.data() != null) return;
+        cacheFile.delete();
+        locks.release(handle.key());
+    }
+}
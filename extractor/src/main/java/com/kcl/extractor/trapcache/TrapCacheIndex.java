@@ -0,0 +1,318 @@
+package com.kcl.extractor.trapcache;
+
+import com.semmle.util.data.StringDigestor;
+import com.semmle.util.exception.Exceptions;
+import com.semmle.util.files.FileUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An append-only index of the entries of a TRAP cache, so that neither opening the cache nor
+ * looking up entries has to list or stat the cache directory.
+ *
+ * <p>The index file consists of a header followed by fixed-size records, each of which holds a cache
+ * key, a size and a timestamp: a record with a non-negative size says that an entry of that size was
+ * stored at that time, a {@link #HIT} record that the entry was hit, and an {@link #EVICTED} record
+ * that it was deleted. Later records for a key supersede earlier ones. Once most records have been
+ * superseded, the index is compacted to a single record per entry.
+ *
+ * <p>When the cache is opened, the index is memory-mapped and its keys are added to a {@link
+ * BloomFilter}, so lookups of keys that are not in the cache can mostly be answered in memory. If
+ * there is no index yet, or it cannot be read, it is rebuilt from a listing of the cache directory.
+ *
+ * <p>The index is shared by all processes using the cache: it is only read under a shared lock and
+ * written under an exclusive lock on the whole file, and it is compacted in place, so that records
+ * appended by other processes are never lost.
+ */
+class TrapCacheIndex {
+    static final String NAME = "index";
+
+    /**
+     * The size of a record that says an entry was hit rather than stored.
+     */
+    static final long HIT = -1;
+
+    /**
+     * The size of a record that says an entry was evicted.
+     */
+    static final long EVICTED = -2;
+
+    private static final int MAGIC = 0x4b434c54;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+
+    /**
+     * Cache keys are hex-encoded digests computed by a {@link StringDigestor} (cf. {@link
+     * DefaultTrapCache#cacheKey}); the index stores them in binary.
+     */
+    private static final int KEY_SIZE = 20;
+
+    static {
+        // keys of any other length would be left out of the index without a trace
+        int keyLength = new StringDigestor().getDigest().length();
+        if (keyLength != 2 * KEY_SIZE)
+            throw new IllegalStateException("TRAP cache keys have " + keyLength + " hex digits, but the index holds keys of "
+                    + KEY_SIZE + " bytes");
+    }
+
+    private static final int RECORD_SIZE = KEY_SIZE + 16;
+
+    /**
+     * The number of entries the Bloom filter has room for on top of those already in the index.
+     */
+    private static final int NEW_ENTRIES = 1 << 16;
+
+    /**
+     * The number of superseded records below which the index is never compacted.
+     */
+    private static final int MIN_GARBAGE = 4096;
+
+    private static final HexFormat HEX = HexFormat.of();
+
+    private static final String EXTENSION = ".trap.gz";
+
+    /**
+     * An entry of the cache, with its size and the time it was last stored or hit.
+     */
+    record Entry(String key, long size, long lastUsed) {
+    }
+
+    private final File dir;
+
+    private final BloomFilter filter;
+
+    /**
+     * The index file, or {@code null} if the cache is not writeable and there is no index.
+     */
+    private final FileChannel channel;
+
+    private final boolean writeable;
+
+    /**
+     * Open the index of the cache in {@code dir}, rebuilding it if necessary; if the cache is not
+     * {@code writeable}, the index is neither rebuilt on disk nor written to.
+     */
+    TrapCacheIndex(File dir, boolean writeable) throws IOException {
+        this.dir = dir;
+        this.writeable = writeable;
+        File file = new File(dir, NAME);
+        if (writeable)
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        else if (file.isFile())
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        else
+            channel = null;
+
+        try (FileLock lock = lock(!writeable)) {
+            long count = readHeader();
+            if (count < 0) {
+                // no usable index, so fall back to a one-off listing of the cache directory
+                List<Entry> entries = listEntries();
+                filter = new BloomFilter(entries.size() + NEW_ENTRIES);
+                for (Entry entry : entries) filter.add(HEX.parseHex(entry.key()));
+                if (writeable) rewrite(entries);
+            } else {
+                filter = new BloomFilter(count + NEW_ENTRIES);
+                scan(count, (key, size, lastUsed) -> {
+                    if (size >= 0) filter.add(key);
+                });
+            }
+        }
+    }
+
+    /**
+     * Lock the whole index file; callers must hold the monitor of this index, so that its threads do
+     * not lock the file twice.
+     */
+    private FileLock lock(boolean shared) throws IOException {
+        return CacheLocks.lockWholeFile(channel, shared);
+    }
+
+    /**
+     * Returns the number of complete records in the index file, or -1 if it does not exist or is not
+     * an index in the current format.
+     */
+    private long readHeader() throws IOException {
+        if (channel == null) return -1;
+        long length = channel.size();
+        if (length < HEADER_SIZE || length > Integer.MAX_VALUE) return -1;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining() && channel.read(header, header.position()) >= 0) ;
+        header.flip();
+        if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC || header.getInt() != FORMAT_VERSION)
+            return -1;
+        return (length - HEADER_SIZE) / RECORD_SIZE;
+    }
+
+    private List<Entry> listEntries() {
+        List<Entry> entries = new ArrayList<>();
+        File[] files = dir.listFiles(FileUtil.extensionFilter(true, EXTENSION));
+        if (files == null) return entries;
+        for (File f : files) {
+            String key = keyOf(f);
+            if (key != null) entries.add(new Entry(key, f.length(), f.lastModified()));
+        }
+        return entries;
+    }
+
+    private interface RecordVisitor {
+        /**
+         * Visit a record; {@code key} is only valid for the duration of the call.
+         */
+        void visit(byte[] key, long size, long lastUsed);
+    }
+
+    private void scan(long count, RecordVisitor visitor) throws IOException {
+        if (count == 0) return;
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, count * RECORD_SIZE);
+        byte[] key = new byte[KEY_SIZE];
+        for (long i = 0; i < count; ++i) {
+            buffer.get(key);
+            long size = buffer.getLong(), lastUsed = buffer.getLong();
+            visitor.visit(key, size, lastUsed);
+        }
+    }
+
+    /**
+     * Returns the key of the cache entry stored in {@code file}, or {@code null} if it is not a cache
+     * entry.
+     */
+    static String keyOf(File file) {
+        String name = file.getName();
+        if (!name.endsWith(EXTENSION)) return null;
+        String key = name.substring(0, name.length() - EXTENSION.length());
+        return toBytes(key) == null ? null : key;
+    }
+
+    private static byte[] toBytes(String key) {
+        if (key.length() != 2 * KEY_SIZE) return null;
+        try {
+            return HEX.parseHex(key);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Whether the cache may hold an entry for {@code key}; if this returns {@code false}, it
+     * certainly does not, or at least did not when the index was read.
+     */
+    boolean mightContain(String key) {
+        byte[] bytes = toBytes(key);
+        return bytes == null || filter.mightContain(bytes);
+    }
+
+    /**
+     * Record that an entry of the given size has been stored for {@code key}.
+     */
+    void stored(String key, long size) {
+        byte[] bytes = toBytes(key);
+        if (bytes == null) return;
+        filter.add(bytes);
+        append(bytes, size);
+    }
+
+    /**
+     * Record that the entry for {@code key} has been hit.
+     */
+    void hit(String key) {
+        byte[] bytes = toBytes(key);
+        if (bytes != null) append(bytes, HIT);
+    }
+
+    /**
+     * Record that the entry for {@code key} has been deleted.
+     */
+    void evicted(String key) {
+        byte[] bytes = toBytes(key);
+        if (bytes != null) append(bytes, EVICTED);
+    }
+
+    private synchronized void append(byte[] key, long size) {
+        if (!writeable) return;
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE).put(key).putLong(size).putLong(System.currentTimeMillis()).flip();
+        try (FileLock lock = lock(false)) {
+            // overwrite a record that a process which died was in the middle of writing
+            long length = channel.size();
+            if (length < HEADER_SIZE) return;
+            long position = HEADER_SIZE + (length - HEADER_SIZE) / RECORD_SIZE * RECORD_SIZE;
+            while (record.hasRemaining()) position += channel.write(record, position);
+        } catch (IOException e) {
+            Exceptions.ignore(e, "The index is rebuilt if it is unusable, and only used for trimming otherwise.");
+        }
+    }
+
+    /**
+     * Returns the entries of the cache, as recorded in the index.
+     */
+    synchronized Collection<Entry> entries() throws IOException {
+        try (FileLock lock = lock(true)) {
+            return readEntries();
+        }
+    }
+
+    private Collection<Entry> readEntries() throws IOException {
+        Map<String, Entry> entries = new HashMap<>();
+        scan(Math.max(readHeader(), 0), (bytes, size, lastUsed) -> {
+            String key = HEX.formatHex(bytes);
+            if (size >= 0) entries.put(key, new Entry(key, size, lastUsed));
+            else if (size == HIT) entries.computeIfPresent(key, (k, entry) -> new Entry(k, entry.size(), lastUsed));
+            else entries.remove(key);
+        });
+        return entries.values();
+    }
+
+    /**
+     * Compact the index to a single record per entry if most of its records have been superseded.
+     */
+    synchronized void compactIfSparse() throws IOException {
+        if (!writeable) return;
+        try (FileLock lock = lock(false)) {
+            long count = readHeader();
+            if (count < 0) return;
+            Collection<Entry> entries = readEntries();
+            if (count > 2L * entries.size() + MIN_GARBAGE) rewrite(entries);
+        }
+    }
+
+    /**
+     * Replace the contents of the index by a single record for each of {@code entries}.
+     *
+     * <p>The index is rewritten in place rather than replaced, since other processes may have it open.
+     * Its header is only written once all records are, so that an index a process failed to finish
+     * rewriting is rebuilt.
+     */
+    private void rewrite(Collection<Entry> entries) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        write(header, 0);
+        channel.truncate(HEADER_SIZE);
+        ByteBuffer buffer = ByteBuffer.allocate(1024 * RECORD_SIZE);
+        long position = HEADER_SIZE;
+        for (Entry entry : entries) {
+            if (!buffer.hasRemaining()) position += write(buffer.flip(), position);
+            buffer.put(HEX.parseHex(entry.key())).putLong(entry.size()).putLong(entry.lastUsed());
+        }
+        write(buffer.flip(), position);
+        channel.force(false);
+        write(header.clear().putInt(MAGIC).putInt(FORMAT_VERSION).flip(), 0);
+    }
+
+    private long write(ByteBuffer buffer, long position) throws IOException {
+        long written = 0;
+        while (buffer.hasRemaining()) written += channel.write(buffer, position + written);
+        buffer.clear();
+        return written;
+    }
+}
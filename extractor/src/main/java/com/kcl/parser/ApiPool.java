@@ -0,0 +1,107 @@
+package com.kcl.parser;
+
+import com.kcl.api.API;
+import com.kcl.api.Spec;
+import com.semmle.util.exception.ResourceError;
+import com.semmle.util.exception.UserError;
+
+import static com.kcl.extractor.ExtractorOptionsUtil.readExtractorOption;
+
+/**
+ * A pool of kcl-lib {@link API} handles.
+ *
+ * <p>Constructing an {@link API} sets up the bridge to the native KCL library, which is far too
+ * expensive to repeat for every file we parse. Instead, each extraction thread leases its own handle
+ * from this pool and keeps using it for subsequent parses; handles are never shared between threads,
+ * so the pool holds exactly one handle per extraction thread.
+ *
+ * <p>A handle is recycled after it has served {@link #maxUses} calls, and immediately after a call
+ * on it has failed, since a failed native call may leave the handle in an unusable state. Every
+ * freshly created handle is health-checked with a ping before it is handed out.
+ */
+public class ApiPool {
+    /**
+     * The default number of calls after which a handle is recycled.
+     */
+    public static final int DEFAULT_MAX_USES = 1000;
+
+    private final int maxUses;
+
+    private final ThreadLocal<Handle> handles = ThreadLocal.withInitial(Handle::new);
+
+    public ApiPool(int maxUses) {
+        this.maxUses = maxUses;
+    }
+
+    /**
+     * Build a pool as defined by the extractor options; the recycling threshold can be customised
+     * via the {@code api.recycle} option.
+     */
+    public static ApiPool fromExtractorOptions() {
+        String recycle = readExtractorOption("api", "recycle");
+        if (recycle == null) return new ApiPool(DEFAULT_MAX_USES);
+        try {
+            int maxUses = Integer.parseInt(recycle.trim());
+            if (maxUses > 0) return new ApiPool(maxUses);
+        } catch (NumberFormatException e) {
+            throw new UserError("Invalid API recycling threshold: " + recycle, e);
+        }
+        throw new UserError("Invalid API recycling threshold: " + recycle);
+    }
+
+    /**
+     * Perform a call on the handle owned by the current thread, creating or recycling the handle
+     * first if necessary.
+     */
+    public <T> T call(ApiCall<T> call) throws Exception {
+        Handle handle = handles.get();
+        API api = handle.lease(maxUses);
+        try {
+            return call.call(api);
+        } catch (Exception e) {
+            handle.discard();
+            throw e;
+        }
+    }
+
+    /**
+     * A call to perform on an {@link API} handle.
+     */
+    @FunctionalInterface
+    public interface ApiCall<T> {
+        T call(API api) throws Exception;
+    }
+
+    /**
+     * The handle owned by a single thread, together with its usage count.
+     */
+    private static class Handle {
+        private API api;
+        private int uses;
+
+        private API lease(int maxUses) {
+            if (api == null || uses >= maxUses) {
+                // drop the old handle before creating its replacement, so it is not reused if that fails
+                api = null;
+                uses = 0;
+                api = healthy(new API());
+            }
+            ++uses;
+            return api;
+        }
+
+        private void discard() {
+            api = null;
+        }
+
+        private static API healthy(API api) {
+            try {
+                Spec.Ping_Result pong = api.ping(Spec.Ping_Args.newBuilder().setValue("ping").build());
+                if (pong != null && "ping".equals(pong.getValue())) return api;
+            } catch (Exception e) {
+                throw new ResourceError("Could not initialise the KCL native library.", e);
+            }
+            throw new ResourceError("The KCL native library failed its health check.");
+        }
+    }
+}
@@ -3,9 +3,33 @@ package com.kcl.parser;
 import com.kcl.ast.Module;
 import com.kcl.ast.*;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.List;
 
+/**
+ * A visitor that traverses the whole AST without doing anything else.
+ *
+ * <p>The traversal does not recurse on the Java stack, so arbitrarily deeply nested ASTs can be
+ * visited with a bounded stack: while a node is being visited, the calls to {@link #visit(Node,
+ * String)} on its children merely collect them, and they are visited once their parent is done, in
+ * the same order as a recursive traversal would visit them. Subclasses overriding {@link #visit(Node,
+ * String)} hence see each node once, when it is collected, and should call the super method to have
+ * it traversed.
+ */
 public class DefaultVisitor implements ContextVisitor<Void, String> {
+    /**
+     * The nodes that remain to be visited in the current traversal, with the next one on top.
+     */
+    private final ArrayDeque<Node<?>> worklist = new ArrayDeque<>();
+
+    /**
+     * The children collected while visiting the current node.
+     */
+    private final List<Node<?>> children = new ArrayList<>();
+
+    private boolean traversing;
+
     @Override
     public Void visit(Program node, String Id) {
         node.getPkgs().forEach((pkg, modules) -> modules.forEach(module -> this.visit(module, "pkg")));
@@ -30,7 +54,29 @@ public class DefaultVisitor implements ContextVisitor<Void, String> {
             return null;
         }
 
-        Id = node.getId();
+        if (traversing) {
+            children.add(node);
+            return null;
+        }
+
+        traversing = true;
+        try {
+            worklist.push(node);
+            while (!worklist.isEmpty()) {
+                dispatch(worklist.pop());
+                for (int i = children.size() - 1; i >= 0; --i) worklist.push(children.get(i));
+                children.clear();
+            }
+        } finally {
+            traversing = false;
+            worklist.clear();
+            children.clear();
+        }
+        return null;
+    }
+
+    private void dispatch(Node<?> node) {
+        String Id = node.getId();
 
         switch (node.getNode()) {
             case Stmt stmt -> {
@@ -60,7 +106,6 @@ public class DefaultVisitor implements ContextVisitor<Void, String> {
             }
             default -> throw new RuntimeException(node.toString());
         }
-        return null;
     }
 
 
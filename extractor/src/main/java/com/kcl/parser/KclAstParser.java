@@ -1,48 +1,150 @@
 package com.kcl.parser;
 
-import com.kcl.api.API;
 import com.kcl.api.Spec;
+import com.kcl.ast.Module;
 import com.kcl.ast.Node;
 import com.kcl.ast.Program;
 import com.kcl.ast.SchemaStmt;
+import com.kcl.extractor.ExtractionMetrics;
 import com.kcl.util.JsonUtil;
+import com.semmle.util.files.FileUtil;
 
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 
-public class KclAstParser {
-    public static ParseResult parse(Path input) throws Exception {
-        API api = new API();
-        Map<String, Node<?>> nodeMap = new HashMap<>();
-        Map<String, String> schemaMap = new HashMap<>();
+import static com.kcl.extractor.ExtractorOptionsUtil.readExtractorOption;
 
-        Spec.LoadPackage_Result specResult = api.loadPackage(
-                Spec.LoadPackage_Args.newBuilder().setResolveAst(true).setWithAstIndex(true).setParseArgs(
-                                Spec.ParseProgram_Args.newBuilder().addPaths(input.toString()).build())
-                        .build());
+public class KclAstParser {
+    /**
+     * Whether to dump the JSON AST of every parsed program to {@code data/report/extend}; this is a
+     * debugging aid that costs a full copy of the AST per package, so it is off by default.
+     */
+    private static final boolean DUMP_AST = "true".equalsIgnoreCase(readExtractorOption("ast", "dump"));
+
+    /**
+     * Load and resolve the given files, which should all belong to the same KCL package, with a single
+     * call to the KCL resolver, unless the result of doing so is found in {@code parseCache}.
+     *
+     * <p>kcl-lib hands the program back as a JSON string, which is then deserialized into {@code
+     * com.kcl.ast} objects; the time spent on the latter is recorded separately in {@code metrics}.
+     * The JSON string is dropped as soon as it has been deserialized.
+     */
+    public static ParseResult parse(List<Path> inputs, ApiPool apiPool, ParseCache parseCache, ExtractionMetrics metrics) throws Exception {
+        Map<String, Node<?>> schemaMap = new HashMap<>();
+
+        Spec.LoadPackage_Result specResult = parseCache.lookup(inputs);
+        boolean cached = specResult != null;
+        if (!cached) {
+            Spec.ParseProgram_Args.Builder parseArgs = Spec.ParseProgram_Args.newBuilder();
+            for (Path input : inputs) parseArgs.addPaths(input.toString());
+            specResult = apiPool.call(api -> api.loadPackage(
+                    Spec.LoadPackage_Args.newBuilder().setResolveAst(true).setWithAstIndex(true).setParseArgs(
+                                    parseArgs.build())
+                            .build()));
+        }
 
+        metrics.startPhase(ExtractionMetrics.ExtractionPhase.KclAstParser_deserialize);
         Program program = JsonUtil.deserializeProgram(specResult.getProgram());
-        NodeVisitor nodeVisitor = new NodeVisitor(nodeMap, schemaMap);
+        if (!cached) parseCache.store(inputs, specResult, program.getRoot(), packageFiles(program));
+        if (DUMP_AST) {
+            Path jsonPath = Path.of(System.getProperty("user.dir")).resolve("data/report/extend/kcl.json");
+            FileUtil.write(jsonPath.toFile(), specResult.getProgram());
+        }
+        specResult = specResult.toBuilder().clearProgram().build();
+        Map<Module, Integer> nodeCounts = new IdentityHashMap<>();
+        NodeVisitor nodeVisitor = new NodeVisitor(schemaMap, nodeCounts);
         nodeVisitor.visit(program, "");
-        return new ParseResult(specResult, nodeMap, program, schemaMap);
+        metrics.stopPhase(ExtractionMetrics.ExtractionPhase.KclAstParser_deserialize);
+        return new ParseResult(specResult, program, schemaMap, nodeCounts, inputs);
+    }
+
+    /**
+     * Returns the files the modules of each package of {@code program} stem from.
+     */
+    private static SortedMap<String, List<Path>> packageFiles(Program program) {
+        SortedMap<String, List<Path>> packages = new TreeMap<>();
+        program.getPkgs().forEach((pkg, modules) -> {
+            List<Path> files = new ArrayList<>(modules.size());
+            for (Module module : modules) files.add(modulePath(module.getFilename()));
+            packages.put(pkg, files);
+        });
+        return packages;
+    }
+
+    /**
+     * Returns the normalised absolute path of a file name reported by kcl-lib.
+     */
+    public static Path modulePath(String filename) {
+        return Path.of(filename).toAbsolutePath().normalize();
     }
 
+    /**
+     * A module stemming from one of the files a program was parsed from, together with the package
+     * it belongs to, its index in that package and the number of its AST nodes.
+     */
+    public record InputModule(String pkg, int index, Module module, int nodeCount) {
+    }
+
+    /**
+     * The result of loading and resolving a package.
+     *
+     * <p>The modules stemming from the input files are detached from the program when the result is
+     * created, and are handed out to the extraction of their file by {@link #takeModules(Path)}. That
+     * way, a module can be garbage collected as soon as its file has been extracted, rather than
+     * only once all files of the package have been extracted. Their slots in the program are left
+     * as {@code null}, and their node counts are only kept by the {@link InputModule}.
+     */
     public static class ParseResult {
         private final Spec.LoadPackage_Result spec;
-        private final Map<String, Node<?>> nodeMap;
-        private final Map<String, String> schemaMap;
+        private final Map<String, Node<?>> schemaMap;
+        private final Map<Module, Integer> nodeCounts;
         private final Program program;
-
-        public ParseResult(Spec.LoadPackage_Result spec, Map<String, Node<?>> nodeMap, Program program, Map<String, String> schemaMap) {
+        private final SemanticIndex semanticIndex;
+        private final Path packageDirectory;
+        private final List<Path> inputs;
+        private final Map<Path, List<InputModule>> inputModules = new ConcurrentHashMap<>();
+        private String dependencyDigest;
+
+        public ParseResult(Spec.LoadPackage_Result spec, Program program, Map<String, Node<?>> schemaMap,
+                Map<Module, Integer> nodeCounts, List<Path> inputs) {
             this.spec = spec;
-            this.nodeMap = nodeMap;
             this.program = program;
             this.schemaMap = schemaMap;
+            this.nodeCounts = nodeCounts;
+            this.semanticIndex = new SemanticIndex(spec, schemaMap);
+            this.packageDirectory = inputs.get(0).getParent();
+            this.inputs = List.copyOf(inputs);
+            Set<Path> inputSet = new LinkedHashSet<>(inputs);
+            program.getPkgs().forEach((pkg, modules) -> {
+                for (int idx = 0; idx < modules.size(); idx++) {
+                    Path file = modulePath(modules.get(idx).getFilename());
+                    if (inputSet.contains(file)) {
+                        Integer nodeCount = nodeCounts.remove(modules.get(idx));
+                        inputModules.computeIfAbsent(file, k -> new ArrayList<>()).add(new InputModule(pkg, idx,
+                                modules.get(idx), nodeCount == null ? 0 : nodeCount));
+                        modules.set(idx, null);
+                    }
+                }
+            });
         }
 
-        public Map<String, Node<?>> getNodeMap() {
-            return nodeMap;
+        /**
+         * Detach and return the modules stemming from {@code file}; subsequent calls for the same file
+         * return an empty list.
+         */
+        public List<InputModule> takeModules(Path file) {
+            List<InputModule> modules = inputModules.remove(file);
+            return modules == null ? List.of() : modules;
         }
 
         public Spec.LoadPackage_Result getSpec() {
@@ -53,35 +155,97 @@ public class KclAstParser {
             return program;
         }
 
-        public Map<String, String> getSchemaMap() {
+        /**
+         * Returns the directory of the package that was parsed.
+         */
+        public Path getPackageDirectory() {
+            return packageDirectory;
+        }
+
+        /**
+         * Returns the files the program was loaded from.
+         */
+        public List<Path> getInputs() {
+            return inputs;
+        }
+
+        public SemanticIndex getSemanticIndex() {
+            return semanticIndex;
+        }
+
+        /**
+         * Returns a map from the IDs of schema name nodes to the schema statement nodes declaring
+         * them.
+         */
+        public Map<String, Node<?>> getSchemaMap() {
             return schemaMap;
         }
+
+        /**
+         * Returns the number of AST nodes of {@code module}, which must not stem from one of the files
+         * the program was parsed from; those of the latter come with their {@link InputModule}.
+         */
+        public int getNodeCount(Module module) {
+            return nodeCounts.getOrDefault(module, 0);
+        }
+
+        /**
+         * Returns a digest of the root of the program, of the contents of every file it was loaded
+         * from, including those of imported packages, and of the {@code kcl.mod} and {@code
+         * kcl.mod.lock} files of the root, or {@code null} if one of them cannot be read.
+         * The digest is computed the first time it is asked for, and shared by all files of the
+         * package; it agrees with that of the {@linkplain ParseCache#summarize parse cache entry} of
+         * the program.
+         */
+        public synchronized String getDependencyDigest() {
+            if (dependencyDigest == null) {
+                SortedMap<Path, String> digests = new TreeMap<>();
+                for (String path : spec.getPathsList()) {
+                    Path file = modulePath(path);
+                    String digest = ParseCache.digestOf(file);
+                    if (digest == null) return null;
+                    digests.put(file, digest);
+                }
+                for (Path file : ParseCache.moduleFiles(program.getRoot())) {
+                    if (!Files.exists(file)) continue;
+                    String digest = ParseCache.digestOf(file);
+                    if (digest == null) return null;
+                    digests.put(file, digest);
+                }
+                dependencyDigest = ParseCache.dependencyDigest(program.getRoot(), digests);
+            }
+            return dependencyDigest;
+        }
     }
 
 
     public static class NodeVisitor extends DefaultVisitor {
-        private final Map<String, Node<?>> nodeMap;
-        private final Map<String, String> schemaMap;
+        private final Map<String, Node<?>> schemaMap;
+        private final Map<Module, Integer> nodeCounts;
+        private int nodeCount;
 
-        public NodeVisitor(Map<String, Node<?>> nodeMap, Map<String, String> schemaMap) {
-            this.nodeMap = nodeMap;
+        public NodeVisitor(Map<String, Node<?>> schemaMap, Map<Module, Integer> nodeCounts) {
             this.schemaMap = schemaMap;
+            this.nodeCounts = nodeCounts;
+        }
+
+        @Override
+        public Void visit(Module node, String Id) {
+            int start = nodeCount;
+            super.visit(node, Id);
+            nodeCounts.put(node, nodeCount - start);
+            return null;
         }
 
         @Override
         public Void visit(Node<?> node, String Id) {
             if (node == null)
                 return null;
-            this.nodeMap.put(node.getId(), node);
+            ++nodeCount;
+            if (node.getNode() instanceof SchemaStmt schemaStmt)
+                this.schemaMap.put(schemaStmt.getName().getId(), node);
             return super.visit(node, node.getId());
         }
-
-        @Override
-        public Void visit(SchemaStmt node, String Id) {
-            this.schemaMap.put(node.getName().getId(), Id);
-            super.visit(node, Id);
-            return null;
-        }
     }
 
 }
@@ -0,0 +1,470 @@
+package com.kcl.parser;
+
+import com.kcl.api.API;
+import com.kcl.api.Spec;
+import com.kcl.extractor.trapcache.DefaultTrapCache;
+import com.semmle.util.data.StringDigestor;
+import com.semmle.util.exception.Exceptions;
+import com.semmle.util.exception.ResourceError;
+import com.semmle.util.exception.UserError;
+import com.semmle.util.files.FileUtil;
+import com.semmle.util.io.WholeIO;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static com.kcl.extractor.ExtractorOptionsUtil.readExtractorOption;
+
+/**
+ * An on-disk cache of the results of loading and resolving KCL packages.
+ *
+ * <p>Unlike the TRAP cache, this cache is not keyed on the extractor version or configuration, but
+ * only on the version of kcl-lib and the contents of the files that were loaded, so re-extracting
+ * unchanged sources after a change to the extractor itself only costs TRAP emission, not another
+ * round trip through the KCL resolver.
+ *
+ * <p>An entry is looked up by a digest of the input files of a package. Since the result of
+ * resolving a package also depends on the packages it imports, each entry records a digest of every
+ * file that went into it, and is only used if none of them has changed since. Each file is recorded
+ * with its size and modification time as well, and is only read and digested again if either of them
+ * differs. Files that would change the result without having gone into it are accounted for as
+ * well: each entry records the KCL files in the directory of every package that was loaded, so
+ * that a file added to an imported package is noticed, and the {@code kcl.mod} and {@code
+ * kcl.mod.lock} files of the root, or their absence, so that a different resolution of the
+ * dependencies of the program is noticed.
+ *
+ * <p>Each entry also records the root of the program and the files of each of its packages, so that
+ * the digest the TRAP cache is keyed on, and the packages a file imports, can be determined from the
+ * entry alone (cf. {@link #summarize(List)}), without deserializing the cached result.
+ *
+ * <p>The cache is trimmed to its size bound when it is opened, evicting the least recently used
+ * entries first; using an entry bumps its modification time.
+ */
+public class ParseCache {
+    /**
+     * The version of the cache entry format; bump this whenever the format or the arguments passed to
+     * the resolver change.
+     */
+    private static final int FORMAT_VERSION = 4;
+
+    private static final String EXTENSION = ".kclparse";
+
+    private static final String KCL_EXTENSION = ".k";
+
+    /**
+     * The time in milliseconds after its last modification within which a file could be modified
+     * again without changing its modification time, on file systems with coarse timestamps.
+     */
+    private static final long RACY_INTERVAL = 2000;
+
+    private final File cacheDir;
+
+    /**
+     * A version identifier for the kcl-lib we are caching the results of, or {@code null} if the
+     * version could not be determined, in which case the cache is disabled.
+     */
+    private final String kclLibVersion;
+
+    /**
+     * @param cacheDir      the directory holding the cache, or {@code null} to disable the cache
+     * @param sizeBound     the size the cache is trimmed to when it is opened, if any
+     * @param kclLibVersion the version of kcl-lib the cached results stem from
+     */
+    public ParseCache(File cacheDir, Long sizeBound, String kclLibVersion) {
+        this.cacheDir = cacheDir;
+        this.kclLibVersion = kclLibVersion;
+        if (cacheDir == null) return;
+        try {
+            FileUtil.mkdirs(cacheDir);
+        } catch (ResourceError | SecurityException e) {
+            throw new ResourceError("Could not initialize parse cache at " + cacheDir, e);
+        }
+        if (sizeBound != null) trimCacheToSize((long) (0.4 * sizeBound), sizeBound);
+    }
+
+    /**
+     * Returns a cache that never holds any entries.
+     */
+    public static ParseCache disabled() {
+        return new ParseCache(null, null, null);
+    }
+
+    /**
+     * Build a parse cache as defined by the extractor options: the cache is enabled by setting the
+     * {@code parse.cache.dir} option, and its size can be bounded by the {@code parse.cache.bound}
+     * option, which uses the same units as the TRAP cache bound.
+     */
+    public static ParseCache fromExtractorOptions() {
+        String cachePath = readExtractorOption("parse", "cache", "dir");
+        if (cachePath == null) return disabled();
+        Long sizeBound = null;
+        String cacheBound = readExtractorOption("parse", "cache", "bound");
+        if (cacheBound != null) {
+            sizeBound = DefaultTrapCache.asFileSize(cacheBound);
+            if (sizeBound == null) throw new UserError("Invalid parse cache size bound: " + cacheBound);
+        }
+        String version = kclLibVersion();
+        if (version == null) return disabled();
+        return new ParseCache(new File(cachePath), sizeBound, version);
+    }
+
+    /**
+     * Identify the kcl-lib on the class path by its implementation version or, failing that, by the
+     * location and timestamp of the archive it was loaded from.
+     */
+    private static String kclLibVersion() {
+        Package pkg = API.class.getPackage();
+        if (pkg != null && pkg.getImplementationVersion() != null)
+            return pkg.getImplementationVersion();
+        try {
+            File origin = new File(API.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+            return origin + "@" + origin.lastModified();
+        } catch (Exception e) {
+            Exceptions.ignore(e, "Without a version, the parse cache is disabled.");
+            return null;
+        }
+    }
+
+    public boolean isEnabled() {
+        return cacheDir != null;
+    }
+
+    /**
+     * Look up the result of loading {@code inputs}.
+     *
+     * @return the cached result, or {@code null} if there is none or it is out of date
+     */
+    public Spec.LoadPackage_Result lookup(List<Path> inputs) {
+        if (!isEnabled()) return null;
+        File entry = entryFor(inputs);
+        if (entry == null || !entry.exists()) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(entry)))) {
+            if (in.readInt() != FORMAT_VERSION || !isCurrent(in, new TreeMap<>())) return null;
+            // the root and the packages are only needed to summarize the entry
+            in.readUTF();
+            readPackages(in);
+            byte[] result = new byte[in.readInt()];
+            in.readFully(result);
+            Spec.LoadPackage_Result cached = Spec.LoadPackage_Result.parseFrom(result);
+            entry.setLastModified(System.currentTimeMillis());
+            return cached;
+        } catch (IOException | RuntimeException e) {
+            Exceptions.ignore(e, "A corrupt or concurrently trimmed entry is just a cache miss.");
+            entry.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Summarize the cached result of loading {@code inputs} without deserializing it.
+     *
+     * @return the summary, or {@code null} if there is no entry or it is out of date
+     */
+    public Summary summarize(List<Path> inputs) {
+        if (!isEnabled()) return null;
+        File entry = entryFor(inputs);
+        if (entry == null || !entry.exists()) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(entry)))) {
+            SortedMap<Path, String> digests = new TreeMap<>();
+            if (in.readInt() != FORMAT_VERSION || !isCurrent(in, digests)) return null;
+            String root = in.readUTF();
+            SortedMap<String, List<Path>> packages = readPackages(in);
+            entry.setLastModified(System.currentTimeMillis());
+            return new Summary(root, packages, dependencyDigest(root, digests));
+        } catch (IOException | RuntimeException e) {
+            Exceptions.ignore(e, "A corrupt or concurrently trimmed entry is just a cache miss.");
+            return null;
+        }
+    }
+
+    /**
+     * Read the dependencies and package listings of an entry, as written by {@link #store}, adding
+     * the digests of the existing files among the former to {@code digests}.
+     *
+     * @return whether none of them has changed since the entry was stored
+     */
+    private static boolean isCurrent(DataInputStream in, SortedMap<Path, String> digests) throws IOException {
+        for (int i = in.readInt(); i > 0; --i) {
+            Dependency dependency = Dependency.read(in);
+            if (!dependency.isCurrent()) return false;
+            if (dependency.exists()) digests.put(dependency.path(), dependency.digest());
+        }
+        for (int i = in.readInt(); i > 0; --i) {
+            Path directory = Path.of(in.readUTF());
+            if (!in.readUTF().equals(listingOf(directory))) return false;
+        }
+        return true;
+    }
+
+    /**
+     * What a cache entry records about the program it holds.
+     *
+     * @param root             the root of the program
+     * @param packages         the files the modules of each package of the program stem from
+     * @param dependencyDigest the digest of the root, of every file the program was loaded from and of
+     *                         the {@linkplain #moduleFiles module files} of the root, as computed by
+     *                         {@link KclAstParser.ParseResult#getDependencyDigest()}
+     */
+    public record Summary(String root, SortedMap<String, List<Path>> packages, String dependencyDigest) {
+    }
+
+    /**
+     * Returns a digest of the root of a program and of the given digests of the files it was loaded
+     * from and of its module files.
+     */
+    public static String dependencyDigest(String root, SortedMap<Path, String> digests) {
+        StringDigestor digestor = new StringDigestor();
+        digestor.write(root);
+        digests.forEach((path, digest) -> {
+            digestor.write(path.toString());
+            digestor.write(digest);
+        });
+        return digestor.getDigest();
+    }
+
+    /**
+     * Reads the files of the packages of a program, as written by {@link #store}.
+     */
+    private static SortedMap<String, List<Path>> readPackages(DataInputStream in) throws IOException {
+        SortedMap<String, List<Path>> packages = new TreeMap<>();
+        for (int i = in.readInt(); i > 0; --i) {
+            String pkg = in.readUTF();
+            List<Path> files = new ArrayList<>();
+            for (int j = in.readInt(); j > 0; --j) files.add(Path.of(in.readUTF()));
+            packages.put(pkg, files);
+        }
+        return packages;
+    }
+
+    /**
+     * Store the result of loading {@code inputs}.
+     *
+     * <p>The entry is written to a temporary file first and then moved into place, so concurrent
+     * lookups never see a partially written entry.
+     *
+     * @param root     the root of the program in {@code result}
+     * @param packages the files the modules of each package of that program stem from
+     */
+    public void store(List<Path> inputs, Spec.LoadPackage_Result result, String root, SortedMap<String, List<Path>> packages) {
+        if (!isEnabled()) return;
+        File entry = entryFor(inputs);
+        if (entry == null) return;
+        File tmp = null;
+        try {
+            // record every file that went into the result, which includes those of imported packages,
+            // and the KCL files in their directories
+            Map<Path, Dependency> dependencies = new LinkedHashMap<>();
+            SortedMap<Path, String> listings = new TreeMap<>();
+            for (String path : result.getPathsList()) {
+                Dependency dependency = Dependency.of(KclAstParser.modulePath(path));
+                if (dependency == null) return;
+                dependencies.put(dependency.path(), dependency);
+                Path directory = dependency.path().getParent();
+                if (directory != null && !listings.containsKey(directory)) {
+                    String listing = listingOf(directory);
+                    if (listing == null) return;
+                    listings.put(directory, listing);
+                }
+            }
+            for (Path file : moduleFiles(root)) {
+                Dependency dependency = attributesOf(file) == null ? Dependency.absent(file) : Dependency.of(file);
+                if (dependency == null) return;
+                dependencies.put(file, dependency);
+            }
+
+            tmp = File.createTempFile(entry.getName(), ".tmp", cacheDir);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(dependencies.size());
+                for (Dependency dependency : dependencies.values()) dependency.write(out);
+                out.writeInt(listings.size());
+                for (Map.Entry<Path, String> listing : listings.entrySet()) {
+                    out.writeUTF(listing.getKey().toString());
+                    out.writeUTF(listing.getValue());
+                }
+                out.writeUTF(root);
+                out.writeInt(packages.size());
+                for (Map.Entry<String, List<Path>> pkg : packages.entrySet()) {
+                    out.writeUTF(pkg.getKey());
+                    out.writeInt(pkg.getValue().size());
+                    for (Path file : pkg.getValue()) out.writeUTF(file.toString());
+                }
+                byte[] bytes = result.toByteArray();
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+            Files.move(tmp.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            Exceptions.ignore(e, "Caching parse results is optional.");
+            if (tmp != null) tmp.delete();
+        }
+    }
+
+    /**
+     * Returns the files of the root of a program that determine how the packages it imports are
+     * resolved, whether or not they exist.
+     */
+    public static List<Path> moduleFiles(String root) {
+        if (root == null || root.isEmpty()) return List.of();
+        Path dir = KclAstParser.modulePath(root);
+        return List.of(dir.resolve("kcl.mod"), dir.resolve("kcl.mod.lock"));
+    }
+
+    /**
+     * Returns a digest of the names of the KCL files in {@code directory}, or {@code null} if it
+     * cannot be listed.
+     */
+    private static String listingOf(Path directory) {
+        String[] names = directory.toFile().list((dir, name) -> name.endsWith(KCL_EXTENSION));
+        if (names == null) return null;
+        Arrays.sort(names);
+        StringDigestor digestor = new StringDigestor();
+        for (String name : names) digestor.write(name);
+        return digestor.getDigest();
+    }
+
+    /**
+     * Returns the cache entry for the given inputs, or {@code null} if one of them cannot be read.
+     */
+    public File entryFor(List<Path> inputs) {
+        List<Path> sorted = new ArrayList<>(inputs);
+        sorted.sort(Comparator.naturalOrder());
+        StringDigestor digestor = new StringDigestor();
+        digestor.write(kclLibVersion);
+        digestor.write(FORMAT_VERSION);
+        for (Path input : sorted) {
+            String digest = digestOf(input);
+            if (digest == null) return null;
+            digestor.write(input.toString());
+            digestor.write(digest);
+        }
+        return new File(cacheDir, digestor.getDigest() + EXTENSION);
+    }
+
+    /**
+     * A file that went into a cache entry, as it was when the entry was stored.
+     *
+     * @param size         the size of the file, or -1 if it did not exist
+     * @param lastModified the modification time of the file, or -1 if it was modified so recently
+     *                     that it has to be digested to tell whether it has changed
+     */
+    private record Dependency(Path path, long size, long lastModified, String digest) {
+        /**
+         * Returns a record of {@code file} not existing.
+         */
+        static Dependency absent(Path file) {
+            return new Dependency(file, -1, -1, "");
+        }
+
+        /**
+         * Returns the current state of {@code file}, or {@code null} if it cannot be read.
+         */
+        static Dependency of(Path file) {
+            // stat the file before reading it, so a concurrent change is noticed next time
+            BasicFileAttributes attributes = attributesOf(file);
+            String digest = digestOf(file);
+            if (attributes == null || digest == null) return null;
+            long lastModified = attributes.lastModifiedTime().toMillis();
+            if (System.currentTimeMillis() - lastModified < RACY_INTERVAL) lastModified = -1;
+            return new Dependency(file, attributes.size(), lastModified, digest);
+        }
+
+        static Dependency read(DataInputStream in) throws IOException {
+            return new Dependency(Path.of(in.readUTF()), in.readLong(), in.readLong(), in.readUTF());
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeUTF(path.toString());
+            out.writeLong(size);
+            out.writeLong(lastModified);
+            out.writeUTF(digest);
+        }
+
+        boolean exists() {
+            return size >= 0;
+        }
+
+        /**
+         * Returns true if the file still has the contents it had when it was recorded, which is only
+         * read and digested if its size or modification time has changed, or still does not exist.
+         */
+        boolean isCurrent() {
+            BasicFileAttributes attributes = attributesOf(path);
+            if (!exists() || attributes == null) return !exists() && attributes == null;
+            if (lastModified >= 0 && attributes.size() == size && attributes.lastModifiedTime().toMillis() == lastModified)
+                return true;
+            return digest.equals(digestOf(path));
+        }
+    }
+
+    /**
+     * Returns the attributes of {@code file}, or {@code null} if it does not exist.
+     */
+    private static BasicFileAttributes attributesOf(Path file) {
+        try {
+            return Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (IOException e) {
+            Exceptions.ignore(e, "A missing file cannot be part of a cache entry.");
+            return null;
+        }
+    }
+
+    /**
+     * Returns a digest of the contents of {@code file}, or {@code null} if it cannot be read.
+     */
+    public static String digestOf(Path file) {
+        try {
+            StringDigestor digestor = new StringDigestor();
+            digestor.write(new WholeIO("UTF-8").strictread(file));
+            return digestor.getDigest();
+        } catch (ResourceError e) {
+            Exceptions.ignore(e, "An unreadable file cannot be part of a cache entry.");
+            return null;
+        }
+    }
+
+    /**
+     * Delete the least recently used entries until the cache is smaller than {@code lo}, provided it
+     * is currently larger than {@code hi}.
+     */
+    private void trimCacheToSize(long lo, long hi) {
+        File[] files = cacheDir.listFiles(FileUtil.extensionFilter(true, EXTENSION));
+        if (files == null) return;
+        // stat every entry once, rather than on every comparison
+        List<CachedFile> entries = new ArrayList<>(files.length);
+        long total = 0;
+        for (File f : files) {
+            CachedFile entry = new CachedFile(f, f.length(), f.lastModified());
+            entries.add(entry);
+            total += entry.size();
+        }
+        if (total <= hi) return;
+
+        // most recently used first, so we delete from the end
+        entries.sort(Comparator.comparingLong(CachedFile::lastModified).reversed());
+        for (int i = entries.size() - 1; i >= 0 && total > lo; --i) {
+            if (entries.get(i).file().delete()) total -= entries.get(i).size();
+        }
+    }
+
+    private record CachedFile(File file, long size, long lastModified) {
+    }
+}
@@ -0,0 +1,106 @@
+package com.kcl.parser;
+
+import com.kcl.api.Spec;
+import com.kcl.ast.Node;
+import com.kcl.util.SematicUtil;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An index over the symbol information of a resolved package, answering the questions the extractor
+ * asks about identifiers with a hash lookup each.
+ *
+ * <p>{@link SematicUtil} answers each of these questions by searching the whole symbol table, which
+ * dominates extraction time on files with many identifiers. Here, the symbol table is indexed by
+ * definition, and the symbols of all nodes and the schema declarations of all fully qualified names
+ * are looked up once, when the index is built.
+ *
+ * <p>The index is never modified after it has been built, so the files of a package may be extracted
+ * in parallel.
+ */
+public class SemanticIndex {
+    /**
+     * The symbols of the nodes of the package, keyed by node ID.
+     */
+    private final Map<String, Spec.Symbol> symbolsByAstId = new HashMap<>();
+
+    /**
+     * The symbols of the package, keyed by their definition.
+     */
+    private final Map<Spec.SymbolIndex, Spec.Symbol> symbolsByDef = new HashMap<>();
+
+    /**
+     * The schema statements of the package, keyed by their fully qualified name.
+     */
+    private final Map<String, Node<?>> schemasByName = new HashMap<>();
+
+    /**
+     * @param spec      the result of resolving the package
+     * @param schemaMap a map from the IDs of schema name nodes to the schema statements declaring them
+     */
+    public SemanticIndex(Spec.LoadPackage_Result spec, Map<String, Node<?>> schemaMap) {
+        // like SematicUtil, resolve a definition to the first symbol defined by it
+        for (Spec.Symbol symbol : spec.getSymbolsMap().values()) symbolsByDef.putIfAbsent(symbol.getDef(), symbol);
+
+        Map<String, Spec.SymbolIndex> nodeSymbols = spec.getNodeSymbolMapMap();
+        nodeSymbols.forEach((astId, index) -> {
+            Spec.Symbol symbol = symbolsByDef.get(index);
+            if (symbol != null) symbolsByAstId.put(astId, symbol);
+        });
+
+        Map<Spec.SymbolIndex, Node<?>> schemasByDef = new HashMap<>();
+        schemaMap.forEach((nameId, schemaNode) -> {
+            Spec.SymbolIndex index = nodeSymbols.get(nameId);
+            if (index != null) schemasByDef.putIfAbsent(index, schemaNode);
+        });
+        spec.getFullyQualifiedNameMapMap().forEach((fullName, index) -> {
+            Spec.Symbol symbol = symbolsByDef.get(index);
+            Node<?> schemaNode = symbol == null ? null : schemasByDef.get(symbol.getDef());
+            if (schemaNode != null) schemasByName.put(fullName, schemaNode);
+        });
+    }
+
+    /**
+     * Returns the symbol the node with the given ID resolves to, or {@code null} if there is none.
+     */
+    public Spec.Symbol symbolOf(String astId) {
+        if (astId == null) return null;
+        return symbolsByAstId.get(astId);
+    }
+
+    /**
+     * Returns the symbol with the given index, or {@code null} if there is none.
+     */
+    public Spec.Symbol symbol(Spec.SymbolIndex index) {
+        if (index == null) return null;
+        return symbolsByDef.get(index);
+    }
+
+    /**
+     * Returns the schema statement declaring the schema with the given fully qualified name, or
+     * {@code null} if it is not declared in the resolved program.
+     */
+    public Node<?> schemaNamed(String fullName) {
+        return schemasByName.get(fullName);
+    }
+
+    /**
+     * Returns the fully qualified name of the schema type of the node with the given ID, or {@code
+     * null} if the node does not have a schema type.
+     */
+    public String typeSchemaNameOf(String astId) {
+        Spec.Symbol symbol = symbolOf(astId);
+        if (symbol == null || !symbol.hasTy()) return null;
+        return symbol.getTy().getPkgPath() + "." + symbol.getTy().getSchemaName();
+    }
+
+    /**
+     * Returns the schema statement declaring the type of the node with the given ID, or {@code null}
+     * if the node does not have a schema type.
+     */
+    public Node<?> typeSchemaOf(String astId) {
+        String fullName = typeSchemaNameOf(astId);
+        return fullName == null ? null : schemaNamed(fullName);
+    }
+}
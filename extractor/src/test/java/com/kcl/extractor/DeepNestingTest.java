@@ -0,0 +1,233 @@
+package com.kcl.extractor;
+
+import com.kcl.ast.ConfigEntry;
+import com.kcl.parser.ApiPool;
+import com.kcl.parser.DefaultVisitor;
+import com.kcl.parser.KclAstParser;
+import com.kcl.parser.KclAstParser.InputModule;
+import com.kcl.parser.ParseCache;
+import com.semmle.util.trap.TrapWriter;
+import com.semmle.util.trap.TrapWriter.Label;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicReference;
+import lombok.SneakyThrows;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Checks that deeply nested configurations can be traversed and extracted on a small stack.
+ */
+public class DeepNestingTest {
+    /**
+     * The stack size of the threads doing the traversal, which is far too small for a recursive
+     * traversal of the deeper samples.
+     */
+    private static final long SMALL_STACK = 512 * 1024;
+
+    /**
+     * The stack size of the thread parsing the samples, since kcl-lib itself parses recursively.
+     */
+    private static final long LARGE_STACK = 1024L * 1024 * 1024;
+
+    @TempDir
+    Path tempDir;
+
+    /**
+     * A TRAP writer that records the tuples written to it while {@link #recording} is set. Labels
+     * are numbered in the order they first appear in, and the given root directory is replaced by
+     * {@code $ROOT}, so the recorded tuples only depend on the extractor.
+     */
+    private static class RecordingTrapWriter extends TrapWriter {
+        private final StringBuilder tuples = new StringBuilder();
+        private final Map<String, Integer> labels = new HashMap<>();
+        private String root;
+        private boolean recording;
+
+        RecordingTrapWriter(File trapFile) {
+            super(trapFile);
+        }
+
+        @Override
+        public void addTuple(String tableName, Object... values) {
+            if (recording) {
+                tuples.append(tableName).append('(');
+                for (int i = 0; i < values.length; ++i) {
+                    if (i > 0) tuples.append(',');
+                    if (values[i] instanceof Label label)
+                        tuples.append('#').append(labels.computeIfAbsent(label.toString(), k -> labels.size() + 1));
+                    else if (values[i] instanceof String string)
+                        tuples.append('"').append(string.replace(root, "$ROOT").replace("\"", "\"\"")).append('"');
+                    else
+                        tuples.append(values[i]);
+                }
+                tuples.append(")\n");
+            }
+            super.addTuple(tableName, values);
+        }
+    }
+
+    /**
+     * Generate a file consisting of a single assignment of a configuration nested {@code depth}
+     * levels deep.
+     */
+    @SneakyThrows
+    private Path sample(int depth) {
+        StringBuilder source = new StringBuilder("a = ");
+        for (int i = 0; i < depth; ++i) source.append("{k").append(i).append(" = ");
+        source.append("1");
+        source.append("}".repeat(depth));
+        source.append("\n");
+        Path file = tempDir.resolve("main.k");
+        Files.writeString(file, source);
+        return file;
+    }
+
+    @SneakyThrows
+    private static <T> T runWithStack(long stackSize, Callable<T> callable) {
+        AtomicReference<T> result = new AtomicReference<>();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread thread = new Thread(null, () -> {
+            try {
+                result.set(callable.call());
+            } catch (Throwable t) {
+                failure.set(t);
+            }
+        }, "deep-nesting", stackSize);
+        thread.start();
+        thread.join();
+        if (failure.get() != null) throw failure.get();
+        return result.get();
+    }
+
+    /**
+     * Parse {@code file} on a thread with a large stack, skipping the test if kcl-lib cannot handle
+     * its nesting depth.
+     */
+    private static KclAstParser.ParseResult parse(Path file) {
+        KclAstParser.ParseResult result = runWithStack(LARGE_STACK, () -> {
+            try {
+                return KclAstParser.parse(List.of(file), new ApiPool(ApiPool.DEFAULT_MAX_USES), ParseCache.disabled(),
+                        new ExtractionMetrics());
+            } catch (Exception e) {
+                return null;
+            }
+        });
+        assumeTrue(result != null, "kcl-lib cannot parse " + file);
+        return result;
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {10, 100, 1_000, 5_000})
+    public void visitor(int depth) {
+        Path file = sample(depth);
+        List<InputModule> modules = parse(file).takeModules(file);
+
+        int entries = runWithStack(SMALL_STACK, () -> {
+            int[] count = {0};
+            DefaultVisitor visitor = new DefaultVisitor() {
+                @Override
+                public Void visit(ConfigEntry node, String Id) {
+                    ++count[0];
+                    return super.visit(node, Id);
+                }
+            };
+            for (InputModule module : modules) visitor.visit(module.module(), "");
+            return count[0];
+        });
+        assertEquals(depth, entries);
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {10, 100, 1_000, 5_000})
+    public void extractor(int depth) {
+        Path file = sample(depth);
+        assertNotNull(extract(file, new RecordingTrapWriter(tempDir.resolve("main.trap").toFile())));
+    }
+
+    /**
+     * Extract a configuration shallow enough for the recursive traversal the extractor used to do, and
+     * check that the tuples are the ones that traversal emitted, in the same order.
+     */
+    @Test
+    @SneakyThrows
+    public void extractorOutput() {
+        Path file = sample(3);
+        RecordingTrapWriter trapWriter = new RecordingTrapWriter(tempDir.resolve("main.trap").toFile());
+        assertNotNull(extract(file, trapWriter));
+        Path expected = Path.of(getClass().getClassLoader().getResource("samples/deep-nesting.trap").toURI());
+        assertEquals(Files.readString(expected), trapWriter.tuples.toString());
+    }
+
+    /**
+     * Extract configurations deeper than that of {@link #extractorOutput()}, and check that every
+     * further level of nesting adds the same tuples to each table as the levels of the expected
+     * output do, so the deeper outputs only differ from the shallow one by repeating its levels.
+     */
+    @Test
+    public void extractorOutputGrowsPerLevel() {
+        int[] depths = {3, 10, 100};
+        List<Map<String, Integer>> counts = new ArrayList<>();
+        for (int depth : depths) {
+            RecordingTrapWriter trapWriter = new RecordingTrapWriter(tempDir.resolve("main.trap").toFile());
+            assertNotNull(extract(sample(depth), trapWriter));
+            Map<String, Integer> tables = new TreeMap<>();
+            trapWriter.tuples.toString().lines().forEach(tuple -> tables.merge(tuple.substring(0, tuple.indexOf('(')), 1, Integer::sum));
+            counts.add(tables);
+        }
+        for (Map<String, Integer> tables : counts) assertEquals(counts.get(0).keySet(), tables.keySet());
+        for (String table : counts.get(0).keySet()) {
+            int perLevel = (counts.get(1).get(table) - counts.get(0).get(table)) / (depths[1] - depths[0]);
+            for (int i = 1; i < depths.length; ++i)
+                assertEquals(counts.get(0).get(table) + perLevel * (depths[i] - depths[0]), counts.get(i).get(table),
+                        table + " at depth " + depths[i]);
+        }
+    }
+
+    /**
+     * Extract {@code file} into {@code trapWriter} on a thread with a small stack, recording the
+     * tuples of the extraction itself, skipping the test if kcl-lib cannot parse the file.
+     */
+    @SneakyThrows
+    private static ParseResultInfo extract(Path file, RecordingTrapWriter trapWriter) {
+        ExtractorState state = new ExtractorState();
+        state.getPackages().register(List.of(file));
+        // resolve the package up front, so that only the extraction itself runs on the small stack
+        KclAstParser.ParseResult result = runWithStack(LARGE_STACK, () -> {
+            try {
+                return state.getPackages().acquire(file, state.getApiPool(), state.getParseCache(), new ExtractionMetrics());
+            } catch (Exception e) {
+                return null;
+            }
+        });
+        assumeTrue(result != null, "kcl-lib cannot parse " + file);
+
+        return runWithStack(SMALL_STACK, () -> {
+            try {
+                Label fileLabel = trapWriter.populateFile(file.toFile());
+                LocationManager locationManager = new LocationManager(file.toFile(), trapWriter, fileLabel);
+                TextualExtractor textualExtractor = new TextualExtractor(trapWriter, locationManager,
+                        Files.readString(file), false, new ExtractionMetrics(), file.toFile());
+                trapWriter.root = result.getProgram().getRoot();
+                trapWriter.recording = true;
+                return new KclExtractor(new ExtractorConfig(false), state).extract(textualExtractor);
+            } finally {
+                trapWriter.close();
+            }
+        });
+    }
+}
@@ -0,0 +1,134 @@
+package com.kcl.extractor;
+
+import com.semmle.util.trap.TrapWriter;
+import com.semmle.util.trap.TrapWriter.Label;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import lombok.SneakyThrows;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class LocationManagerTest {
+    @TempDir
+    Path tempDir;
+
+    /**
+     * A TRAP writer that counts the tuples written to each table.
+     */
+    private static class CountingTrapWriter extends TrapWriter {
+        private final Map<String, Integer> tuples = new HashMap<>();
+
+        CountingTrapWriter(File trapFile) {
+            super(trapFile);
+        }
+
+        @Override
+        public void addTuple(String tableName, Object... values) {
+            tuples.merge(tableName, 1, Integer::sum);
+            super.addTuple(tableName, values);
+        }
+
+        int count(String tableName) {
+            return tuples.getOrDefault(tableName, 0);
+        }
+    }
+
+    @SneakyThrows
+    private CountingTrapWriter trapWriter() {
+        return new CountingTrapWriter(Files.createTempFile(tempDir, "locations", ".trap").toFile());
+    }
+
+    @Test
+    public void deduplicatesLocations() {
+        CountingTrapWriter trapWriter = trapWriter();
+        try {
+            File file = new File("main.k");
+            LocationManager locationManager = new LocationManager(file, trapWriter, trapWriter.populateFile(file));
+            Random random = new Random(0);
+            Map<String, Label> expected = new HashMap<>();
+            for (int i = 0; i < 10_000; ++i) {
+                // include coordinates that do not fit in 16 bits, and the empty file location
+                int sl = random.nextInt(3) == 0 ? 0 : random.nextInt(100_000), sc = random.nextInt(70_000),
+                        el = sl + random.nextInt(3), ec = random.nextInt(70_000);
+                Label label = locationManager.emitLocationsDefault(sl, sc, el, ec);
+                Label previous = expected.putIfAbsent(sl + "," + sc + "," + el + "," + ec, label);
+                if (previous != null) assertSame(previous, label);
+            }
+            assertEquals(expected.size(), trapWriter.count("locations_default"));
+        } finally {
+            trapWriter.close();
+        }
+    }
+
+    @Test
+    public void translatesSnippetLocations() {
+        CountingTrapWriter trapWriter = trapWriter();
+        try {
+            File file = new File("main.k");
+            LocationManager locationManager = new LocationManager(file, trapWriter, trapWriter.populateFile(file));
+            locationManager.setStart(3, 5);
+            Position start = locationManager.translatePosition(new Position(1, 2, -1));
+            Position end = locationManager.translatePosition(new Position(2, 4, -1));
+            assertEquals(new Position(3, 6, -1), start);
+            assertEquals(new Position(4, 4, -1), end);
+            Label node = trapWriter.freshLabel();
+            locationManager.emitSnippetLocation(node, 1, 2, 2, 4);
+            assertSame(locationManager.emitLocationsDefault(3, 6, 4, 4),
+                    locationManager.emitLocationsDefault(start.getLine(), start.getColumn(), end.getLine(), end.getColumn()));
+            assertEquals(1, trapWriter.count("locations_default"));
+            assertEquals(1, trapWriter.count("hasLocation"));
+        } finally {
+            trapWriter.close();
+        }
+    }
+
+    @Test
+    public void emitsIntoAnotherTrapWriter() {
+        CountingTrapWriter trapWriter = trapWriter(), shard = trapWriter();
+        try {
+            File file = new File("main.k");
+            LocationManager locationManager = new LocationManager(file, trapWriter, trapWriter.populateFile(file));
+            locationManager.setStart(3, 5);
+            locationManager.emitSnippetLocation(trapWriter.freshLabel(), 1, 2, 2, 4);
+
+            LocationManager shardLocations = locationManager.forTrapWriter(shard);
+            assertSame(shard, shardLocations.getTrapWriter());
+            // the location has to be emitted again, and translated the same way
+            shardLocations.emitSnippetLocation(shard.freshLabel(), 1, 2, 2, 4);
+            assertSame(shardLocations.emitLocationsDefault(3, 6, 4, 4), shardLocations.emitLocationsDefault(3, 6, 4, 4));
+            assertEquals(1, shard.count("locations_default"));
+            assertEquals(1, trapWriter.count("locations_default"));
+        } finally {
+            trapWriter.close();
+            shard.close();
+        }
+    }
+
+    /**
+     * Emit the locations of a large file with about a million nodes, most of whose locations have
+     * been emitted before.
+     */
+    @Test
+    public void deduplicatesLocationsOfLargeFile() {
+        CountingTrapWriter trapWriter = trapWriter();
+        try {
+            File file = new File("main.k");
+            LocationManager locationManager = new LocationManager(file, trapWriter, trapWriter.populateFile(file));
+            int lines = 100_000, nodesPerLine = 10;
+            for (int line = 1; line <= lines; ++line)
+                for (int node = 0; node < nodesPerLine; ++node)
+                    locationManager.emitLocationsDefault(line, 1 + node % 4, line, 10 + node % 4);
+            assertEquals(4 * lines, trapWriter.count("locations_default"));
+        } finally {
+            trapWriter.close();
+        }
+    }
+}
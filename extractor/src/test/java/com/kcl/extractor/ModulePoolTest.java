@@ -0,0 +1,72 @@
+package com.kcl.extractor;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ModulePoolTest {
+    private static List<Integer> sizes(int n, long seed) {
+        Random random = new Random(seed);
+        List<Integer> sizes = new ArrayList<>();
+        // mostly small modules, with the occasional very large generated one
+        for (int i = 0; i < n; ++i) sizes.add(random.nextInt(10) == 0 ? 50_000 + random.nextInt(50_000) : random.nextInt(2_000));
+        return sizes;
+    }
+
+    private static long total(List<Integer> sizes) {
+        return sizes.stream().mapToLong(Integer::longValue).sum();
+    }
+
+    @Test
+    public void partitionsIntoContiguousChunks() {
+        for (int n : new int[]{1, 2, 10, 100, 1000}) {
+            List<Integer> sizes = sizes(n, n);
+            for (int maxChunks : new int[]{1, 2, 3, 8, 64}) {
+                List<List<Integer>> chunks = ModulePool.chunk(sizes, Integer::intValue, maxChunks, 10_000);
+                assertTrue(chunks.size() <= maxChunks);
+                List<Integer> concatenated = new ArrayList<>();
+                chunks.forEach(chunk -> {
+                    assertTrue(!chunk.isEmpty());
+                    concatenated.addAll(chunk);
+                });
+                assertEquals(sizes, concatenated);
+                assertEquals(chunks, ModulePool.chunk(sizes, Integer::intValue, maxChunks, 10_000));
+            }
+        }
+    }
+
+    @Test
+    public void keepsSmallProgramsTogether() {
+        List<Integer> sizes = List.of(100, 200, 300, 400);
+        assertEquals(List.of(sizes), ModulePool.chunk(sizes, Integer::intValue, 8, 10_000));
+        assertEquals(List.of(sizes), new ModulePool(0, 1, false).chunk(sizes, Integer::intValue));
+    }
+
+    @Test
+    public void partitionsDeterministicallyWhateverTheThreads() {
+        List<Integer> sizes = sizes(1000, 0);
+        ModulePool sequential = new ModulePool(0, 10_000, true), parallel = new ModulePool(8, 10_000, true);
+        try {
+            List<List<Integer>> chunks = sequential.chunk(sizes, Integer::intValue);
+            assertTrue(chunks.size() > 8);
+            assertEquals(chunks, parallel.chunk(sizes, Integer::intValue));
+            assertEquals(42, (int) sequential.submit(() -> 42).join());
+        } finally {
+            parallel.shutdown();
+        }
+    }
+
+    @Test
+    public void balancesChunks() {
+        List<Integer> sizes = new ArrayList<>();
+        for (int i = 0; i < 400; ++i) sizes.add(1000);
+        List<List<Integer>> chunks = ModulePool.chunk(sizes, Integer::intValue, 4, 10_000);
+        assertEquals(4, chunks.size());
+        for (List<Integer> chunk : chunks) assertEquals(100_000, total(chunk));
+    }
+}
@@ -0,0 +1,141 @@
+package com.kcl.extractor;
+
+import com.kcl.parser.KclAstParser;
+import com.semmle.util.trap.TrapWriter;
+import com.semmle.util.trap.TrapWriter.Label;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import lombok.SneakyThrows;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+public class NodeLabelTest {
+    private static final Pattern GLOBAL_KEY = Pattern.compile("=@\"([^\"]*)\"");
+    private static final Pattern LABEL_DEFINITION = Pattern.compile("(#\\w+)=@\"([^\"]*)\"");
+    private static final Pattern SCHEMA_STMT = Pattern.compile("stmts\\((#\\w+),9,");
+    private static final Pattern PACKAGE = Pattern.compile("packages\\((#\\w+),");
+
+    @TempDir
+    Path tempDir;
+
+    /**
+     * Extract {@code file} into {@code trapFile} and return the IDs kcl-lib assigned to its nodes.
+     */
+    private static Set<String> extract(Path file, File trapFile) {
+        ExtractorState state = new ExtractorState();
+        state.getPackages().register(List.of(file));
+        return extract(state, file, trapFile);
+    }
+
+    /**
+     * Extract {@code file}, which must have been registered with {@code state}, into {@code
+     * trapFile} and return the IDs kcl-lib assigned to its nodes.
+     */
+    @SneakyThrows
+    private static Set<String> extract(ExtractorState state, Path file, File trapFile) {
+        KclAstParser.ParseResult parseResult = state.getPackages().acquire(file, state.getApiPool(),
+                state.getParseCache(), new ExtractionMetrics());
+        Set<String> ids = parseResult.getSpec().getNodeSymbolMapMap().keySet();
+
+        TrapWriter trapWriter = new TrapWriter(trapFile);
+        try {
+            Label fileLabel = trapWriter.populateFile(file.toFile());
+            LocationManager locationManager = new LocationManager(file.toFile(), trapWriter, fileLabel);
+            TextualExtractor textualExtractor = new TextualExtractor(trapWriter, locationManager,
+                    Files.readString(file), false, new ExtractionMetrics(), file.toFile());
+            assertNotNull(new KclExtractor(new ExtractorConfig(false), state).extract(textualExtractor));
+        } finally {
+            trapWriter.close();
+        }
+        return ids;
+    }
+
+    /**
+     * Extract a file with about 100k nodes and check that none of kcl-lib's node IDs are used as TRAP
+     * keys.
+     */
+    @Test
+    @SneakyThrows
+    public void doesNotUseNodeIdsAsKeys() {
+        File trapFile = tempDir.resolve("main.k.trap").toFile();
+        Set<String> ids = extract(Samples.schemaInstances(tempDir), trapFile);
+
+        Matcher keys = GLOBAL_KEY.matcher(Files.readString(trapFile.toPath()));
+        while (keys.find()) assertFalse(ids.contains(keys.group(1)), keys.group());
+    }
+
+    /**
+     * Write two files in different directories under the same root that both import the package
+     * {@code lib} and instantiate its schema, and return them.
+     */
+    @SneakyThrows
+    private List<Path> importingFiles() {
+        Files.writeString(tempDir.resolve("kcl.mod"), "[package]\nname = \"app\"\n");
+        Files.createDirectories(tempDir.resolve("lib"));
+        Files.writeString(tempDir.resolve("lib").resolve("lib.k"), "schema S:\n    a: int\n");
+        List<Path> files = new ArrayList<>();
+        for (String dir : List.of("a", "b")) {
+            Files.createDirectories(tempDir.resolve(dir));
+            files.add(Files.writeString(tempDir.resolve(dir).resolve("main.k"), "import lib\n\nx = lib.S {a = 1}\n"));
+        }
+        return files;
+    }
+
+    /**
+     * Extract {@code files} without sharing imported packages, and return how many tuples of the
+     * given kind are emitted for each global key; {@code tuple} must capture the label of the tuples.
+     */
+    @SneakyThrows
+    private Map<String, Integer> countByKey(List<Path> files, Pattern tuple) {
+        ExtractorState state = new ExtractorState();
+        state.getPackages().register(files);
+        Map<String, Integer> counts = new HashMap<>();
+        for (Path file : files) {
+            File trapFile = tempDir.resolve(file.getParent().getFileName() + ".trap").toFile();
+            extract(state, file, trapFile);
+            String trap = Files.readString(trapFile.toPath());
+            Map<String, String> keys = new HashMap<>();
+            Matcher definitions = LABEL_DEFINITION.matcher(trap);
+            while (definitions.find()) keys.put(definitions.group(1), definitions.group(2));
+            Matcher tuples = tuple.matcher(trap);
+            while (tuples.find()) counts.merge(keys.get(tuples.group(1)), 1, Integer::sum);
+        }
+        return counts;
+    }
+
+    /**
+     * Extract two files importing the same package without sharing imported packages, so that both
+     * of them emit a copy of it, and check that no schema statement is emitted twice under the same
+     * key.
+     */
+    @Test
+    public void copiedSchemasHaveLabelsOfTheirOwn() {
+        Map<String, Integer> schemaStmts = countByKey(importingFiles(), SCHEMA_STMT);
+        assertEquals(2, schemaStmts.size(), schemaStmts.toString());
+        schemaStmts.forEach((key, count) -> assertEquals(1, count, key));
+    }
+
+    /**
+     * Check that the main packages of two directories under the same root are distinct, while the
+     * package they both import is the same.
+     */
+    @Test
+    public void mainPackagesAreScopedByDirectory() {
+        Map<String, Integer> packages = countByKey(importingFiles(), PACKAGE);
+        assertEquals(3, packages.size(), packages.toString());
+        assertEquals(2, packages.keySet().stream().filter(key -> key.endsWith(",__main__")).count(), packages.toString());
+    }
+}
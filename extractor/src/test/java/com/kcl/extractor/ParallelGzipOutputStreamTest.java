@@ -0,0 +1,87 @@
+package com.kcl.extractor;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import lombok.SneakyThrows;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+public class ParallelGzipOutputStreamTest {
+    private static final ExecutorService POOL = Executors.newFixedThreadPool(4);
+
+    @AfterAll
+    public static void shutdown() {
+        POOL.shutdown();
+    }
+
+    /**
+     * Generate {@code size} bytes of text resembling a TRAP file.
+     */
+    private static byte[] trapText(int size, long seed) {
+        Random random = new Random(seed);
+        StringBuilder sb = new StringBuilder(size + 64);
+        for (int i = 0; sb.length() < size; ++i)
+            sb.append("exprs(#").append(random.nextInt(1_000_000)).append(',').append(random.nextInt(23))
+                    .append(",#").append(i).append(',').append(random.nextInt(7)).append(",\"x = ").append(i % 100)
+                    .append("\")\n");
+        return sb.substring(0, size).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @SneakyThrows
+    private static byte[] gunzip(byte[] compressed) {
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static byte[] compress(byte[] data, int blockSize, int chunk) {
+        return compress(data, POOL, blockSize, chunk);
+    }
+
+    @SneakyThrows
+    private static byte[] compress(byte[] data, ExecutorService pool, int blockSize, int chunk) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        // start with an empty member, as written by the trap writer before its output is replaced
+        new GZIPOutputStream(compressed).close();
+        try (OutputStream out = new ParallelGzipOutputStream(compressed, pool, Deflater.DEFAULT_COMPRESSION, blockSize, 2)) {
+            for (int off = 0; off < data.length; off += chunk) {
+                int len = Math.min(chunk, data.length - off);
+                if (len == 1) out.write(data[off]);
+                else out.write(data, off, len);
+                if (off % (7 * chunk) == 0) out.flush();
+            }
+        }
+        return compressed.toByteArray();
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 1, 1000, 65_536, 65_537, 1_000_000})
+    public void roundTrips(int size) {
+        byte[] data = trapText(size, size);
+        for (int chunk : new int[]{1, 100, 8192, 100_000})
+            assertArrayEquals(data, gunzip(compress(data, 65_536, chunk)));
+    }
+
+    @Test
+    public void doesNotDependOnThreads() {
+        byte[] data = trapText(300_000, 1);
+        byte[] expected = compress(data, null, 65_536, 100_000);
+        for (int chunk : new int[]{1, 8192, 100_000}) {
+            assertArrayEquals(expected, compress(data, null, 65_536, chunk));
+            assertArrayEquals(expected, compress(data, POOL, 65_536, chunk));
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.kcl.extractor;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import lombok.SneakyThrows;
+
+/**
+ * Generated KCL sources shared between tests.
+ */
+public class Samples {
+    private static final int SCHEMAS = 100;
+    private static final int INSTANCES = 10_000;
+
+    /**
+     * Write a file {@code main.k} to {@code dir} that declares 100 schemas and assigns 10,000
+     * instances of them, which amounts to about 100k AST nodes and 50k identifiers.
+     */
+    @SneakyThrows
+    public static Path schemaInstances(Path dir) {
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < SCHEMAS; ++i)
+            source.append("schema S").append(i).append(":\n    name: str\n    replicas: int\n\n");
+        for (int i = 0; i < INSTANCES; ++i) {
+            int schema = i % SCHEMAS;
+            source.append("i").append(i).append(" = S").append(schema)
+                    .append(" {\n    name = \"i").append(i).append("\"\n    replicas = ").append(schema).append("\n}\n");
+        }
+        Path file = dir.resolve("main.k");
+        Files.writeString(file, source);
+        return file;
+    }
+}
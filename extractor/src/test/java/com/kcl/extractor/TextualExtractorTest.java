@@ -0,0 +1,73 @@
+package com.kcl.extractor;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class TextualExtractorTest {
+    private static final String esc = "\nn\rr\tt";
+
+    /**
+     * The original, copying implementation of {@link TextualExtractor#sanitiseToString(String)}, which
+     * the offset-based one must agree with.
+     */
+    private static String legacySanitiseToString(String str) {
+        if (str.length() > 20) str = str.substring(0, 7) + " ... " + str.substring(str.length() - 7);
+
+        StringBuilder res = new StringBuilder();
+        for (int i = 0, n = str.length(); i < n; ++i) {
+            int c = str.codePointAt(i);
+            if (c < 0x20 || c > 0x7e) {
+                int j = esc.indexOf(c);
+                if (j >= 0) res.append("\\" + esc.charAt(j + 1));
+                else res.append("\\u" + String.format("%04x", Integer.valueOf(c)));
+            } else {
+                res.append((char) c);
+            }
+        }
+        return res.toString();
+    }
+
+    /**
+     * Generate a random string that is rich in characters that need escaping, including surrogate
+     * pairs and lone surrogates.
+     */
+    private static String randomSource(Random random, int length) {
+        char[] alphabet = {'a', 'Z', ' ', '~', '\n', '\r', '\t', '\0', '\u007f', '\u00e9', '\u2028', '\uffff',
+                '\ud83d', '\ude00', '\ud800', '\udfff'};
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < length) {
+            if (random.nextInt(4) == 0) sb.appendCodePoint(0x1f600 + random.nextInt(64));
+            else sb.append(alphabet[random.nextInt(alphabet.length)]);
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void examples() {
+        assertEquals("", TextualExtractor.sanitiseToString(""));
+        assertEquals("x = 1", TextualExtractor.sanitiseToString("x = 1"));
+        assertEquals("a\\nb\\tc\\u0000", TextualExtractor.sanitiseToString("a\nb\tc\0"));
+        assertEquals("schema  ... e: str\\n", TextualExtractor.sanitiseToString("schema App:\n    name: str\n"));
+        assertEquals("\\u1f600\\ude00", TextualExtractor.sanitiseToString("\ud83d\ude00"));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 1, 2, 3, 4})
+    public void agreesWithLegacyImplementation(int seed) {
+        Random random = new Random(seed);
+        StringBuilder buffer = new StringBuilder();
+        for (int k = 0; k < 2000; ++k) {
+            String source = randomSource(random, 1 + random.nextInt(60));
+            int start = random.nextInt(source.length() + 1);
+            int end = start + random.nextInt(source.length() - start + 1);
+            String expected = legacySanitiseToString(source.substring(start, end));
+            assertEquals(expected, TextualExtractor.sanitiseToString(buffer, source, start, end));
+            assertEquals(legacySanitiseToString(source), TextualExtractor.sanitiseToString(source));
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.kcl.extractor;
+
+import com.semmle.util.trap.TrapWriter;
+import com.semmle.util.trap.TrapWriter.Label;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import lombok.SneakyThrows;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TupleEncoderTest {
+    @TempDir
+    Path tempDir;
+
+    /**
+     * Generate a random string that is rich in characters that might need escaping, occasionally
+     * one too long to be encoded directly.
+     */
+    private static String randomString(Random random) {
+        char[] alphabet = {'a', 'Z', ' ', '"', '"', ',', '(', ')', '#', '\\', '\n', '\r', '\t', '\0', '\u00e9',
+                '\u2028', '\ud83d', '\ude00'};
+        int length = random.nextInt(100) == 0 ? 2000 + random.nextInt(100) : random.nextInt(20);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < length; ++i) sb.append(alphabet[random.nextInt(alphabet.length)]);
+        return sb.toString();
+    }
+
+    @SneakyThrows
+    private File trapFile() {
+        return Files.createTempFile(tempDir, "tuples", ".trap").toFile();
+    }
+
+    /**
+     * Write the same random tuples through the encoder and through {@link TrapWriter#addTuple(String,
+     * Object...)}, and check that the resulting TRAP files are identical.
+     */
+    @Test
+    @SneakyThrows
+    public void agreesWithAddTuple() {
+        File encodedFile = trapFile(), expectedFile = trapFile();
+        EncodingTrapWriter encoded = new EncodingTrapWriter(encodedFile);
+        TrapWriter expected = new TrapWriter(expectedFile);
+        try {
+            TupleEncoder tuples = new TupleEncoder(encoded);
+            Random random = new Random(0);
+            for (int i = 0; i < 10_000; ++i) {
+                int arity = 1 + random.nextInt(7);
+                Object[] values = new Object[arity];
+                tuples.begin("table" + i % 3);
+                for (int j = 0; j < arity; ++j) {
+                    switch (random.nextInt(3)) {
+                        case 0 -> {
+                            Label label = encoded.freshLabel();
+                            values[j] = expected.freshLabel();
+                            tuples.label(label);
+                        }
+                        case 1 -> {
+                            int value = random.nextInt(3) == 0 ? random.nextInt() : random.nextInt(10);
+                            values[j] = value;
+                            tuples.integer(value);
+                        }
+                        default -> {
+                            String value = randomString(random);
+                            values[j] = value;
+                            tuples.string(value);
+                        }
+                    }
+                }
+                tuples.end();
+                expected.addTuple("table" + i % 3, values);
+            }
+        } finally {
+            encoded.close();
+            expected.close();
+        }
+        assertArrayEquals(Files.readAllBytes(expectedFile.toPath()), Files.readAllBytes(encodedFile.toPath()));
+    }
+
+    /**
+     * Check that the tuples the encoder hands to the trap writer count towards the size of the
+     * output, like those it encodes itself.
+     */
+    @Test
+    public void countsCharsOfAllTuples() {
+        EncodingTrapWriter trapWriter = new EncodingTrapWriter(trapFile());
+        try {
+            TupleEncoder tuples = new TupleEncoder(trapWriter);
+            tuples.begin("encoded").string("a").integer(1).end();
+            long chars = trapWriter.getCharsWritten();
+            assertEquals("encoded(\"a\",1)\n".length(), chars);
+            tuples.begin("long").string("a".repeat(2000)).end();
+            assertTrue(trapWriter.getCharsWritten() >= chars + 2000);
+            chars = trapWriter.getCharsWritten();
+            tuples.begin("surrogates").string("\ud83d\ude00").end();
+            assertTrue(trapWriter.getCharsWritten() > chars);
+        } finally {
+            trapWriter.close();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.kcl.extractor;
+
+import com.semmle.util.exception.ResourceError;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import lombok.SneakyThrows;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class WriteBehindTest {
+    @TempDir
+    Path dir;
+
+    private static byte[] content(int file, int size) {
+        StringBuilder sb = new StringBuilder(size + 32);
+        for (int i = 0; sb.length() < size; ++i) sb.append("lines(#").append(file).append(',').append(i).append(")\n");
+        return sb.substring(0, size).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    @SneakyThrows
+    public void writesFilesInOrder() {
+        WriteBehind writeBehind = new WriteBehind(3, 4, 256 * 1024, WriteBehind.Fsync.CLOSE);
+        try {
+            List<byte[]> expected = new ArrayList<>();
+            for (int i = 0; i < 20; ++i) {
+                byte[] data = content(i, i * 37_000);
+                expected.add(data);
+                File file = dir.resolve(i + ".trap").toFile();
+                try (OutputStream out = writeBehind.open(file, false)) {
+                    for (int off = 0; off < data.length; off += 1000) out.write(data, off, Math.min(1000, data.length - off));
+                }
+                // a task with the same key sees the file complete
+                writeBehind.submit(file, 0, () -> Files.write(file.toPath(), "done\n".getBytes(), StandardOpenOption.APPEND));
+            }
+            writeBehind.drain();
+            for (int i = 0; i < 20; ++i) {
+                byte[] data = expected.get(i);
+                byte[] done = "done\n".getBytes();
+                byte[] all = new byte[data.length + done.length];
+                System.arraycopy(data, 0, all, 0, data.length);
+                System.arraycopy(done, 0, all, data.length, done.length);
+                assertArrayEquals(all, Files.readAllBytes(dir.resolve(i + ".trap")));
+            }
+        } finally {
+            writeBehind.shutdown();
+        }
+    }
+
+    @Test
+    public void performsTasksWithTheSameKeyInOrder() {
+        WriteBehind writeBehind = new WriteBehind(4, 2, 1024, WriteBehind.Fsync.NEVER);
+        try {
+            List<Integer> seen = Collections.synchronizedList(new ArrayList<>());
+            for (int i = 0; i < 1000; ++i) {
+                int n = i;
+                writeBehind.submit("key", 100, () -> seen.add(n));
+            }
+            writeBehind.drain();
+            assertEquals(1000, seen.size());
+            for (int i = 0; i < 1000; ++i) assertEquals(i, seen.get(i));
+        } finally {
+            writeBehind.shutdown();
+        }
+    }
+
+    @Test
+    public void reportsFailures() {
+        WriteBehind writeBehind = new WriteBehind(1, 8, 1024, WriteBehind.Fsync.NEVER);
+        try {
+            writeBehind.submit("a", 0, () -> {
+                throw new IOException("disk full");
+            });
+            writeBehind.submit("b", 0, () -> {
+            });
+            assertThrows(ResourceError.class, writeBehind::drain);
+        } finally {
+            writeBehind.shutdown();
+        }
+    }
+
+    @Test
+    public void performsTasksSynchronously() {
+        WriteBehind writeBehind = WriteBehind.synchronous();
+        List<String> seen = new ArrayList<>();
+        writeBehind.submit("a", 0, () -> seen.add(Thread.currentThread().getName()));
+        assertEquals(List.of(Thread.currentThread().getName()), seen);
+        assertThrows(ResourceError.class, () -> writeBehind.submit("a", 0, () -> {
+            throw new IOException("disk full");
+        }));
+    }
+}
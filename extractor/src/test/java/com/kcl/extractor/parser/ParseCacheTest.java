@@ -0,0 +1,188 @@
+package com.kcl.extractor.parser;
+
+import com.kcl.api.Spec;
+import com.kcl.parser.ParseCache;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import lombok.SneakyThrows;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class ParseCacheTest {
+    /**
+     * A root without module files, so that only the files of the entries go into their digests.
+     */
+    private static final String ROOT = "/nonexistent-kcl-root";
+    private static final SortedMap<String, List<Path>> PACKAGES = Collections.emptySortedMap();
+
+    @TempDir
+    Path sources;
+
+    @TempDir
+    Path cacheDir;
+
+    /**
+     * Write {@code contents} to the file {@code name} in the source directory, with a modification
+     * time far enough in the past for the parse cache to rely on it.
+     */
+    @SneakyThrows
+    private Path write(String name, String contents, long age) {
+        Path file = sources.resolve(name);
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, contents);
+        file.toFile().setLastModified(System.currentTimeMillis() - age);
+        return file;
+    }
+
+    private static Spec.LoadPackage_Result result(String program, Path... paths) {
+        Spec.LoadPackage_Result.Builder builder = Spec.LoadPackage_Result.newBuilder().setProgram(program);
+        for (Path path : paths) builder.addPaths(path.toString());
+        return builder.build();
+    }
+
+    private ParseCache open(String kclLibVersion, Long sizeBound) {
+        return new ParseCache(cacheDir.toFile(), sizeBound, kclLibVersion);
+    }
+
+    @Test
+    public void hitsUnchangedInputs() {
+        Path main = write("main.k", "import lib\na = lib.b\n", 60_000);
+        Path lib = write("lib/lib.k", "b = 1\n", 60_000);
+        open("1", null).store(List.of(main), result("program", main, lib), ROOT, PACKAGES);
+
+        Spec.LoadPackage_Result cached = open("1", null).lookup(List.of(main));
+        assertNotNull(cached);
+        assertEquals("program", cached.getProgram());
+        assertEquals(List.of(main.toString(), lib.toString()), cached.getPathsList());
+    }
+
+    @Test
+    public void missesAfterDependencyChange() {
+        Path main = write("main.k", "import lib\na = lib.b\n", 60_000);
+        Path lib = write("lib/lib.k", "b = 1\n", 60_000);
+        ParseCache cache = open("1", null);
+        cache.store(List.of(main), result("program", main, lib), ROOT, PACKAGES);
+
+        // a change to an imported file invalidates the entry, even though the input is unchanged
+        write("lib/lib.k", "b = 22\n", 60_000);
+        assertNull(cache.lookup(List.of(main)));
+
+        // so does a change of the same size to a file modified too recently to rely on its timestamp
+        cache.store(List.of(main), result("program", main, write("lib/lib.k", "b = 2\n", 0)), ROOT, PACKAGES);
+        write("lib/lib.k", "b = 3\n", 0);
+        assertNull(cache.lookup(List.of(main)));
+    }
+
+    @Test
+    public void missesAfterFileAddedToImportedPackage() {
+        Path main = write("main.k", "import lib\na = lib.b\n", 60_000);
+        Path lib = write("lib/lib.k", "b = 1\n", 60_000);
+        ParseCache cache = open("1", null);
+        cache.store(List.of(main), result("program", main, lib), ROOT, PACKAGES);
+        assertNotNull(cache.summarize(List.of(main)));
+
+        // the new file would be a module of the imported package, although no file of the entry changed
+        write("lib/other.k", "c = 1\n", 60_000);
+        assertNull(cache.lookup(List.of(main)));
+        assertNull(cache.summarize(List.of(main)));
+    }
+
+    @Test
+    public void missesAfterModuleFileChange() {
+        String root = sources.toString();
+        write("kcl.mod", "[dependencies]\nk8s = \"1.28\"\n", 60_000);
+        Path main = write("main.k", "a = 1\n", 60_000);
+        ParseCache cache = open("1", null);
+        cache.store(List.of(main), result("program", main), root, PACKAGES);
+        assertNotNull(cache.lookup(List.of(main)));
+
+        // a different version of a dependency may resolve without any file of the entry changing
+        write("kcl.mod", "[dependencies]\nk8s = \"1.29\"\n", 60_000);
+        assertNull(cache.lookup(List.of(main)));
+
+        // and so may a lock file that did not exist when the entry was stored
+        cache.store(List.of(main), result("program", main), root, PACKAGES);
+        assertNotNull(cache.lookup(List.of(main)));
+        write("kcl.mod.lock", "[dependencies]\n", 60_000);
+        assertNull(cache.lookup(List.of(main)));
+    }
+
+    @Test
+    public void keepsEntryOfTouchedDependency() {
+        Path main = write("main.k", "import lib\na = lib.b\n", 60_000);
+        Path lib = write("lib/lib.k", "b = 1\n", 60_000);
+        ParseCache cache = open("1", null);
+        cache.store(List.of(main), result("program", main, lib), ROOT, PACKAGES);
+
+        // a file whose modification time changed is digested again, and found to be unchanged
+        lib.toFile().setLastModified(System.currentTimeMillis() - 30_000);
+        assertNotNull(cache.lookup(List.of(main)));
+    }
+
+    @Test
+    public void missesAfterVersionChange() {
+        Path main = write("main.k", "a = 1\n", 60_000);
+        open("1", null).store(List.of(main), result("program", main), ROOT, PACKAGES);
+
+        assertNull(open("2", null).lookup(List.of(main)));
+        assertNotNull(open("1", null).lookup(List.of(main)));
+    }
+
+    @Test
+    public void trimsLeastRecentlyUsedEntries() {
+        ParseCache cache = open("1", null);
+        Path[] inputs = new Path[10];
+        for (int i = 0; i < inputs.length; ++i) {
+            inputs[i] = write("pkg" + i + "/main.k", "a = " + i + "\n", 60_000);
+            cache.store(List.of(inputs[i]), result("x".repeat(1000), inputs[i]), ROOT, PACKAGES);
+        }
+        File[] entries = cacheDir.toFile().listFiles();
+        assertEquals(10, entries.length);
+        long entrySize = entries[0].length();
+        // entries were used in the order they were stored, except for the first one, which was used last
+        for (int i = 0; i < inputs.length; ++i) {
+            cache.entryFor(List.of(inputs[i])).setLastModified(System.currentTimeMillis() - (i == 0 ? 0 : 100_000 - i * 1000L));
+        }
+
+        // opening a cache that is larger than its bound trims it to 40% of that bound
+        cache = open("1", 10 * entrySize - 1);
+        assertEquals(3, cacheDir.toFile().listFiles().length);
+        for (int i = 0; i < inputs.length; ++i)
+            assertEquals(i == 0 || i >= 8, cache.lookup(List.of(inputs[i])) != null, "pkg" + i);
+    }
+
+    @Test
+    public void summarizesEntry() {
+        Path main = write("main.k", "import lib\na = lib.b\n", 60_000);
+        Path lib = write("lib/lib.k", "b = 1\n", 60_000);
+        SortedMap<String, List<Path>> packages = new TreeMap<>();
+        packages.put("__main__", List.of(main));
+        packages.put("lib", List.of(lib));
+        ParseCache cache = open("1", null);
+        cache.store(List.of(main), result("program", main, lib), ROOT, packages);
+
+        ParseCache.Summary summary = cache.summarize(List.of(main));
+        assertNotNull(summary);
+        assertEquals(ROOT, summary.root());
+        assertEquals(packages, summary.packages());
+        SortedMap<Path, String> digests = new TreeMap<>();
+        digests.put(main, ParseCache.digestOf(main));
+        digests.put(lib, ParseCache.digestOf(lib));
+        assertEquals(ParseCache.dependencyDigest(ROOT, digests), summary.dependencyDigest());
+        // the entry can still be looked up after it was summarized
+        assertEquals("program", cache.lookup(List.of(main)).getProgram());
+
+        write("lib/lib.k", "b = 22\n", 60_000);
+        assertNull(cache.summarize(List.of(main)));
+    }
+}
@@ -0,0 +1,60 @@
+package com.kcl.extractor.parser;
+
+import com.kcl.api.Spec;
+import com.kcl.ast.Node;
+import com.kcl.extractor.ExtractionMetrics;
+import com.kcl.extractor.Samples;
+import com.kcl.parser.ApiPool;
+import com.kcl.parser.KclAstParser;
+import com.kcl.parser.ParseCache;
+import com.kcl.util.SematicUtil;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Objects;
+import lombok.SneakyThrows;
+
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class SemanticIndexTest {
+    @TempDir
+    Path tempDir;
+
+    /**
+     * Resolve the schema of the type of node {@code id} the way the extractor did before the semantic
+     * index existed.
+     */
+    private static Node<?> sematicUtilSchemaOf(KclAstParser.ParseResult result, String id) {
+        Spec.LoadPackage_Result spec = result.getSpec();
+        try {
+            Spec.Symbol symbol = SematicUtil.findSymbolByAstId(spec, id);
+            if (symbol == null || !symbol.hasTy()) return null;
+            String fullName = symbol.getTy().getPkgPath() + "." + symbol.getTy().getSchemaName();
+            Spec.Symbol schemaSymbol = SematicUtil.findSymbol(spec, spec.getFullyQualifiedNameMapOrDefault(fullName, null));
+            return result.getSchemaMap().get(SematicUtil.findNodeBySymbol(spec, schemaSymbol.getDef()));
+        } catch (Exception e) {
+            // the extractor used to ignore these, too
+            return null;
+        }
+    }
+
+    private KclAstParser.ParseResult parseSample() {
+        Path file = Samples.schemaInstances(tempDir);
+        return KclAstParser.parse(List.of(file), new ApiPool(ApiPool.DEFAULT_MAX_USES), ParseCache.disabled(),
+                new ExtractionMetrics());
+    }
+
+    /**
+     * Resolve every node of a file with about 50k identifiers both through {@link SematicUtil} and
+     * through the semantic index, and check that they agree.
+     */
+    @Test
+    @SneakyThrows
+    public void agreesWithSematicUtil() {
+        KclAstParser.ParseResult result = parseSample();
+        for (String id : List.copyOf(result.getSpec().getNodeSymbolMapMap().keySet()))
+            assertSame(sematicUtilSchemaOf(result, id), result.getSemanticIndex().typeSchemaOf(id), Objects.toString(id));
+    }
+}
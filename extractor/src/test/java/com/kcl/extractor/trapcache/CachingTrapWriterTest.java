@@ -0,0 +1,76 @@
+package com.kcl.extractor.trapcache;
+
+import com.kcl.extractor.ParallelGzipOutputStream;
+import com.kcl.extractor.WriteBehind;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.UnaryOperator;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import lombok.SneakyThrows;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CachingTrapWriterTest {
+    @TempDir
+    Path dir;
+
+    private static final UnaryOperator<OutputStream> GZIP =
+            out -> new ParallelGzipOutputStream(out, null, Deflater.DEFAULT_COMPRESSION, 4096, 1);
+
+    @SneakyThrows
+    private static String gunzip(File file) {
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(Files.readAllBytes(file.toPath())))) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static void write(CachingTrapWriter trapWriter, int tuples) {
+        for (int i = 0; i < tuples; ++i) trapWriter.addTuple("numlines", trapWriter.freshLabel(), i, 0, 0);
+        trapWriter.close();
+    }
+
+    @Test
+    @SneakyThrows
+    public void writesResultAndCacheFileInOnePass() {
+        WriteBehind writeBehind = new WriteBehind(2, 4, 64 * 1024, WriteBehind.Fsync.NEVER);
+        try {
+            File resultFile = dir.resolve("main.k.trap.gz").toFile();
+            try (OutputStream out = GZIP.apply(Files.newOutputStream(resultFile.toPath()))) {
+                out.write("#1=@\"main.k;sourcefile\"\n".getBytes(StandardCharsets.UTF_8));
+            }
+            File cacheFile = dir.resolve("cache.trap.gz").toFile();
+            write(new CachingTrapWriter(cacheFile, resultFile, new DummyTrapCache(), GZIP, writeBehind), 10_000);
+            writeBehind.drain();
+
+            String cached = gunzip(cacheFile);
+            assertTrue(cached.contains("numlines(#10000,9999,0,0)"));
+            assertEquals("#1=@\"main.k;sourcefile\"\n" + cached, gunzip(resultFile));
+            // the temporary file has been moved into place
+            assertEquals(2, dir.toFile().list().length);
+        } finally {
+            writeBehind.shutdown();
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    public void doesNotCacheFailedExtractions() {
+        File resultFile = dir.resolve("main.k.trap.gz").toFile(), cacheFile = dir.resolve("cache.trap.gz").toFile();
+        CachingTrapWriter trapWriter = new CachingTrapWriter(cacheFile, resultFile, new DummyTrapCache(), GZIP, WriteBehind.synchronous());
+        trapWriter.discard();
+        write(trapWriter, 10);
+        assertFalse(cacheFile.exists());
+        assertEquals(1, dir.toFile().list().length);
+        assertTrue(gunzip(resultFile).contains("numlines("));
+    }
+}
@@ -0,0 +1,219 @@
+package com.kcl.extractor.trapcache;
+
+import com.kcl.extractor.ExtractorConfig;
+import com.kcl.extractor.FileExtractor.FileType;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import lombok.SneakyThrows;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class DefaultTrapCacheTest {
+    private static final long HOUR = 60 * 60 * 1000;
+
+    @TempDir
+    Path dir;
+
+    /**
+     * Create {@code n} cache files of 1000 bytes each, the {@code i}th of which was last used
+     * {@code n - i} hours ago, as if by an extractor that did not maintain an index.
+     */
+    @SneakyThrows
+    private File[] populate(int n) {
+        File[] files = new File[n];
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < n; ++i) {
+            files[i] = dir.resolve(String.format("%040x", i) + ".trap.gz").toFile();
+            Files.write(files[i].toPath(), new byte[1000]);
+            assertTrue(files[i].setLastModified(now - (n - i) * HOUR));
+        }
+        return files;
+    }
+
+    @Test
+    @SneakyThrows
+    public void evictsLeastRecentlyUsedFiles() {
+        File[] files = populate(10);
+        // the high water mark of 5000 bytes is exceeded, so the cache is trimmed to 2000 bytes
+        DefaultTrapCache cache = new DefaultTrapCache(dir.toString(), 5000L, "1", true);
+        cache.awaitTrimming();
+        for (int i = 0; i < 10; ++i) assertEquals(i >= 8, files[i].exists(), files[i].toString());
+    }
+
+    @Test
+    @SneakyThrows
+    public void keepsFilesThatHaveBeenHit() {
+        File[] files = populate(10);
+        ExtractorConfig config = new ExtractorConfig(true);
+
+        DefaultTrapCache cache = new DefaultTrapCache(dir.toString(), null, "1", true);
+        cache.awaitTrimming();
+        File entry = cache.lookup("a = 1", config, FileType.KCL);
+        assertFalse(cache.isPopulated(entry));
+        Files.write(entry.toPath(), new byte[1000]);
+        cache.stored(entry);
+        cache.release(entry);
+        assertTrue(cache.isPopulated(entry));
+        // the index, rather than the modification time, records when a file was last used
+        assertTrue(entry.setLastModified(System.currentTimeMillis() - 20 * HOUR));
+
+        // hitting the entry in a later run makes it the most recently used one
+        cache = new DefaultTrapCache(dir.toString(), null, "1", true);
+        cache.awaitTrimming();
+        assertEquals(entry, cache.lookup("a = 1", config, FileType.KCL));
+        assertTrue(cache.isPopulated(entry));
+        cache.release(entry);
+        cache = new DefaultTrapCache(dir.toString(), null, "1", true);
+        cache.awaitTrimming();
+        cache.trimCacheToSize(2000, 5000);
+        assertTrue(entry.exists());
+        assertTrue(files[9].exists());
+        assertFalse(files[8].exists());
+
+        // evicted files are no longer in the index
+        cache = new DefaultTrapCache(dir.toString(), 5000L, "1", true);
+        cache.awaitTrimming();
+        assertTrue(cache.isPopulated(cache.lookup("a = 1", config, FileType.KCL)));
+        cache.release(entry);
+        assertFalse(cache.isPopulated(files[8]));
+    }
+
+    @Test
+    @SneakyThrows
+    public void findsFilesStoredByOtherProcesses() {
+        ExtractorConfig config = new ExtractorConfig(true);
+        DefaultTrapCache cache = new DefaultTrapCache(dir.toString(), null, "1", true),
+                other = new DefaultTrapCache(dir.toString(), null, "1", true),
+                readOnly = new DefaultTrapCache(dir.toString(), null, "1", false);
+        File entry = other.lookup("a = 1", config, FileType.KCL);
+        Files.write(entry.toPath(), new byte[1000]);
+        other.stored(entry);
+        other.release(entry);
+
+        // a read-only cache only knows the files that were in the index when it was opened
+        assertEquals(null, readOnly.lookup("a = 1", config, FileType.KCL));
+        readOnly = new DefaultTrapCache(dir.toString(), null, "1", false);
+        assertTrue(readOnly.isPopulated(readOnly.lookup("a = 1", config, FileType.KCL)));
+        readOnly.release(entry);
+
+        // a writeable cache looks for the file before populating it
+        assertTrue(cache.isPopulated(cache.lookup("a = 1", config, FileType.KCL)));
+        cache.release(entry);
+
+        // a lost index is rebuilt
+        assertTrue(new File(dir.toFile(), TrapCacheIndex.NAME).delete());
+        readOnly = new DefaultTrapCache(dir.toString(), null, "1", false);
+        assertTrue(readOnly.isPopulated(readOnly.lookup("a = 1", config, FileType.KCL)));
+        readOnly.release(entry);
+    }
+
+    @Test
+    @SneakyThrows
+    public void populatesEachFileOnce() {
+        ExtractorConfig config = new ExtractorConfig(true);
+        DefaultTrapCache first = new DefaultTrapCache(dir.toString(), null, "1", true),
+                second = new DefaultTrapCache(dir.toString(), null, "1", true);
+        File entry = first.lookup("a = 1", config, FileType.KCL);
+        assertFalse(first.isPopulated(entry));
+
+        // another process missing the same file waits for the first one to populate it
+        CompletableFuture<File> waiting = CompletableFuture.supplyAsync(() -> second.lookup("a = 1", config, FileType.KCL));
+        Thread.sleep(200);
+        assertFalse(waiting.isDone());
+        assertEquals(null, new DefaultTrapCache(dir.toString(), null, "1", true, 100).lookup("a = 1", config, FileType.KCL));
+        Files.write(entry.toPath(), new byte[1000]);
+        first.stored(entry);
+        first.release(entry);
+        assertEquals(entry, waiting.get(10, TimeUnit.SECONDS));
+        assertTrue(second.isPopulated(entry));
+
+        // the file is not evicted while it is being read
+        DefaultTrapCache trimmer = new DefaultTrapCache(dir.toString(), null, "1", true);
+        trimmer.awaitTrimming();
+        trimmer.trimCacheToSize(0, 0);
+        assertTrue(entry.exists());
+        second.release(entry);
+        trimmer.trimCacheToSize(0, 0);
+        assertFalse(entry.exists());
+    }
+
+    /**
+     * Populates an entry in a process of its own, which reports once it has missed the entry and
+     * populates it once its standard input is closed.
+     */
+    public static class Populator {
+        public static void main(String[] args) throws IOException {
+            DefaultTrapCache cache = new DefaultTrapCache(args[0], null, "1", true);
+            File entry = cache.lookup("a = 1", new ExtractorConfig(true), FileType.KCL);
+            System.out.println(cache.isPopulated(entry) ? "hit" : "missed");
+            System.out.flush();
+            System.in.readAllBytes();
+            Files.write(entry.toPath(), new byte[1000]);
+            cache.stored(entry);
+            cache.release(entry);
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    public void populatesEachFileOnceAcrossProcesses() {
+        String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        Process populator = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                Populator.class.getName(), dir.toString()).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        try {
+            BufferedReader output = new BufferedReader(new InputStreamReader(populator.getInputStream(), StandardCharsets.UTF_8));
+            String line;
+            while (!"missed".equals(line = output.readLine())) assertNotNull(line, "the populator did not miss the entry");
+
+            // this process waits for the other one to populate the entry, and then hits it
+            DefaultTrapCache cache = new DefaultTrapCache(dir.toString(), null, "1", true);
+            CompletableFuture<File> waiting = CompletableFuture.supplyAsync(() -> cache.lookup("a = 1", new ExtractorConfig(true), FileType.KCL));
+            Thread.sleep(500);
+            assertFalse(waiting.isDone());
+            populator.getOutputStream().close();
+            assertTrue(populator.waitFor(30, TimeUnit.SECONDS));
+            assertEquals(0, populator.exitValue());
+            File entry = waiting.get(10, TimeUnit.SECONDS);
+            assertTrue(cache.isPopulated(entry));
+            assertEquals(1000, entry.length());
+            cache.release(entry);
+        } finally {
+            populator.destroyForcibly();
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    public void keysFilesOnTheirDependencies() {
+        ExtractorConfig config = new ExtractorConfig(true);
+        DefaultTrapCache cache = new DefaultTrapCache(dir.toString(), null, "1", true);
+        File entry = cache.lookup("a = lib.b", "lib-1", config, FileType.KCL);
+        Files.write(entry.toPath(), new byte[1000]);
+        cache.stored(entry);
+        cache.release(entry);
+
+        // the same source is not reused once a file it depends on has changed
+        File changed = cache.lookup("a = lib.b", "lib-2", config, FileType.KCL);
+        assertNotEquals(entry, changed);
+        assertFalse(cache.isPopulated(changed));
+        cache.release(changed);
+        File unchanged = cache.lookup("a = lib.b", "lib-1", config, FileType.KCL);
+        assertEquals(entry, unchanged);
+        assertTrue(cache.isPopulated(unchanged));
+        cache.release(unchanged);
+    }
+}
@@ -0,0 +1,182 @@
+package com.kcl.extractor.trapcache;
+
+import com.kcl.extractor.ExtractorConfig;
+import com.kcl.extractor.FileExtractor.FileType;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import lombok.SneakyThrows;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SegmentTrapCacheTest {
+    private static final ExtractorConfig CONFIG = new ExtractorConfig(true);
+
+    @TempDir
+    Path dir;
+
+    @TempDir
+    Path results;
+
+    private static SegmentTrapCache open(Path dir, boolean writeable) {
+        return new SegmentTrapCache(dir.toString(), null, "1", writeable, DefaultTrapCache.DEFAULT_LOCK_TIMEOUT, 4000);
+    }
+
+    private static byte[] contents(int i) {
+        byte[] contents = new byte[1000];
+        Arrays.fill(contents, (byte) i);
+        return contents;
+    }
+
+    @SneakyThrows
+    private static void populate(SegmentTrapCache cache, String source, byte[] contents) {
+        File entry = cache.lookup(source, CONFIG, FileType.KCL);
+        assertFalse(cache.isPopulated(entry));
+        Files.write(entry.toPath(), contents);
+        cache.stored(entry);
+        cache.release(entry);
+    }
+
+    @SneakyThrows
+    private byte[] read(SegmentTrapCache cache, String source) {
+        File entry = cache.lookup(source, CONFIG, FileType.KCL);
+        if (entry == null) return null;
+        File result = Files.createTempFile(results, "result", ".trap.gz").toFile();
+        Files.write(result.toPath(), "prelude".getBytes(StandardCharsets.UTF_8));
+        try {
+            if (!cache.isPopulated(entry)) return null;
+            cache.appendTo(entry, result);
+        } finally {
+            cache.release(entry);
+        }
+        byte[] bytes = Files.readAllBytes(result.toPath());
+        assertEquals("prelude", new String(bytes, 0, 7, StandardCharsets.UTF_8));
+        return Arrays.copyOfRange(bytes, 7, bytes.length);
+    }
+
+    private static long countSegments(Path dir) {
+        return Arrays.stream(dir.toFile().list()).filter(name -> name.endsWith(".pack")).count();
+    }
+
+    @Test
+    @SneakyThrows
+    public void packsEntriesIntoSegments() {
+        SegmentTrapCache cache = open(dir, true);
+        for (int i = 0; i < 10; ++i) populate(cache, "a = " + i, contents(i));
+
+        // segments are sealed once they reach 4000 bytes, and no file is kept per entry
+        assertEquals(3, countSegments(dir));
+        assertEquals(5, dir.toFile().list().length);
+
+        cache = open(dir, false);
+        for (int i = 0; i < 10; ++i) assertArrayEquals(contents(i), read(cache, "a = " + i));
+        assertNull(read(cache, "a = 10"));
+    }
+
+    @Test
+    @SneakyThrows
+    public void reclaimsSpaceOfEvictedEntries() {
+        SegmentTrapCache cache = open(dir, true);
+        for (int i = 0; i < 10; ++i) {
+            populate(cache, "a = " + i, contents(i));
+            Thread.sleep(2);
+        }
+        SegmentTrapCache reader = open(dir, true);
+        assertArrayEquals(contents(0), read(reader, "a = 0"));
+
+        // the entry hit last is kept along with the most recently stored ones
+        SegmentTrapCache trimmer = open(dir, true);
+        trimmer.awaitTrimming();
+        trimmer.trimCacheToSize(3000, 5000);
+        open(dir, true).awaitTrimming();
+        assertEquals(1, countSegments(dir));
+
+        // a process still reads the entries it has used from the segments it has mapped
+        assertArrayEquals(contents(0), read(reader, "a = 0"));
+        cache = open(dir, false);
+        for (int i = 0; i < 10; ++i) assertArrayEquals(i == 0 || i >= 8 ? contents(i) : null, read(cache, "a = " + i), "a = " + i);
+    }
+
+    @Test
+    @SneakyThrows
+    public void populatesEachEntryOnce() {
+        SegmentTrapCache first = open(dir, true), second = open(dir, true);
+        File entry = first.lookup("a = 1", CONFIG, FileType.KCL);
+        assertFalse(first.isPopulated(entry));
+
+        // another process missing the same entry waits for the first one to populate it
+        CompletableFuture<byte[]> waiting = CompletableFuture.supplyAsync(() -> read(second, "a = 1"));
+        Thread.sleep(200);
+        assertFalse(waiting.isDone());
+        Files.write(entry.toPath(), contents(1));
+        first.stored(entry);
+        first.release(entry);
+        assertArrayEquals(contents(1), waiting.get(10, TimeUnit.SECONDS));
+        assertFalse(entry.exists());
+
+        // a lost log discards the segments
+        assertTrue(new File(dir.toFile(), SegmentStore.LOG).delete());
+        assertNull(read(open(dir, true), "a = 1"));
+        assertEquals(0, countSegments(dir));
+    }
+
+    @Test
+    @SneakyThrows
+    public void neverReusesSegmentNumbers() {
+        SegmentTrapCache cache = open(dir, true);
+        populate(cache, "a = 1", contents(1));
+
+        // another process loses the log and starts over while this one still has its table, and
+        // stores an entry of the same length, which must not end up where the old one was
+        assertTrue(new File(dir.toFile(), SegmentStore.LOG).delete());
+        populate(open(dir, true), "a = 2", contents(2));
+        assertEquals(1, countSegments(dir));
+        assertFalse(dir.resolve("segment-000001.pack").toFile().exists());
+        assertNull(read(cache, "a = 1"));
+    }
+
+    @Test
+    @SneakyThrows
+    public void deletesStaleStagingFiles() {
+        SegmentTrapCache cache = open(dir, true), other = open(dir, true);
+        cache.awaitTrimming();
+        other.awaitTrimming();
+        File populating = other.lookup("a = 1", CONFIG, FileType.KCL);
+        Files.write(populating.toPath(), contents(1));
+        File own = cache.lookup("a = 2", CONFIG, FileType.KCL);
+        Files.write(own.toPath(), contents(2));
+        // a staging file left behind by a process that died while populating its entry
+        File stale = dir.resolve(String.format("%040x", 0) + SegmentTrapCache.STAGING_EXTENSION).toFile();
+        Files.write(stale.toPath(), contents(3));
+        // an entry of a default cache in the same directory
+        File entry = dir.resolve(String.format("%040x", 1) + ".trap.gz").toFile();
+        Files.write(entry.toPath(), contents(4));
+
+        // staging files of entries that are still being populated are kept, and so are other files
+        cache.deleteStaleStagingFiles();
+        assertFalse(stale.exists());
+        assertTrue(entry.exists());
+        assertTrue(populating.exists());
+        assertTrue(own.exists());
+        other.stored(populating);
+        other.release(populating);
+
+        // the size of a hit is that of its entry, although its handle does not exist
+        File hit = cache.lookup("a = 1", CONFIG, FileType.KCL);
+        assertTrue(cache.isPopulated(hit));
+        assertEquals(1000, cache.sizeOf(hit));
+        cache.release(hit);
+        cache.release(own);
+    }
+}